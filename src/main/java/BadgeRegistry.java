@@ -0,0 +1,308 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static logUtils.Logger.log;
+
+// Which badges there are and where their images are, keyed by signature: set/version,
+// like "subscriber/12". Nothing in here needs JavaFX, so the parser can use it
+// without a screen. Badges has the images.
+//
+// The global badges start out as the table below and are replaced wholesale by
+// whatever the badges API has once loadGlobal() gets it. Channels can have their
+// own subscriber and bits badges, loadChannel() gets those. Either way a registry
+// is never changed once built, so lookups take no locks.
+public class BadgeRegistry
+{
+    static final String GLOBAL_BADGES_URL = "https://badges.twitch.tv/v1/badges/global/display",
+            CHANNEL_BADGES_URL = "https://badges.twitch.tv/v1/badges/channels/%s/display";
+
+    private static final class Registry
+    {
+        // By signature. Keys are interned, they end up in every ChatMessage with that badge.
+        private final Map<String, String> urls;
+        private final Set<String> sets;
+
+        private Registry(Map<String, String> urls)
+        {
+            HashMap<String, String> interned = new HashMap<>(urls.size() * 4 / 3 + 1);
+            HashSet<String> setNames = new HashSet<>();
+            for (Map.Entry<String, String> badge : urls.entrySet())
+            {
+                String signature = badge.getKey().intern();
+                interned.put(signature, badge.getValue());
+
+                int slash = signature.indexOf('/');
+                setNames.add((slash < 0) ? signature : signature.substring(0, slash));
+            }
+
+            this.urls = Collections.unmodifiableMap(interned);
+            this.sets = Collections.unmodifiableSet(setNames);
+        }
+    }
+
+    // Built the first time a badge is looked up
+    private static final class BuiltIn
+    {
+        private static final Registry REGISTRY = new Registry(getBadgesWithURLs());
+    }
+
+    private static volatile Registry global = null;
+    private static final ConcurrentHashMap<String, Registry> channels = new ConcurrentHashMap<>();
+    // Channels we've asked the API about, so we only do it once each
+    private static final Set<String> requested = ConcurrentHashMap.newKeySet();
+
+    // Prevent instantiation
+    private BadgeRegistry() {}
+
+    private static Registry global()
+    {
+        Registry registry = global;
+        return (registry == null) ? BuiltIn.REGISTRY : registry;
+    }
+
+    // Whether we'd show a badge from the set called name
+    public static boolean isKnownSet(String name)
+    {
+        if (global().sets.contains(name))
+            return true;
+
+        for (Registry channel : channels.values())
+            if (channel.sets.contains(name))
+                return true;
+
+        return false;
+    }
+
+    // The one String we keep for signature, or null if it's from a set we don't show.
+    // Saves every message with a subscriber badge carrying its own copy of the name.
+    public static String canonical(String signature)
+    {
+        int slash = signature.indexOf('/');
+        if (slash < 0 || !isKnownSet(signature.substring(0, slash)))
+            return null;
+
+        return signature.intern();
+    }
+
+    // Where the image for signature is, channel badges first. null if there isn't one.
+    public static String getURL(String channel, String signature)
+    {
+        if (channel != null)
+        {
+            Registry registry = channels.get(channel);
+            if (registry != null)
+            {
+                String url = registry.urls.get(signature);
+                if (url != null)
+                    return url;
+            }
+        }
+
+        return global().urls.get(signature);
+    }
+
+    // Every global badge's image
+    public static Collection<String> getGlobalURLs()
+    {
+        return global().urls.values();
+    }
+
+    // Replaces the built in badges with the API's, asking through http. Completes
+    // with the new badges' image URLs, or none if the API didn't give us any.
+    public static CompletableFuture<Collection<String>> loadGlobal(DiskImageCache http)
+    {
+        return load(http, "global", GLOBAL_BADGES_URL).thenApply(registry ->
+        {
+            if (registry == null)
+                return Collections.<String>emptyList();
+
+            global = registry;
+            return registry.urls.values();
+        });
+    }
+
+    // Gets channel's own badges, once. roomID is the channel's numeric id from ROOMSTATE.
+    public static CompletableFuture<Collection<String>> loadChannel(DiskImageCache http, String channel,
+                                                                    String roomID)
+    {
+        if (channel == null || roomID == null || !requested.add(channel))
+            return CompletableFuture.completedFuture(Collections.<String>emptyList());
+
+        return load(http, channel, String.format(CHANNEL_BADGES_URL, roomID)).thenApply(registry ->
+        {
+            if (registry == null || !requested.contains(channel))
+                return Collections.<String>emptyList();
+
+            channels.put(channel, registry);
+            return registry.urls.values();
+        });
+    }
+
+    // Forget channel's badges when we leave it
+    public static void unloadChannel(String channel)
+    {
+        if (channel != null)
+        {
+            channels.remove(channel);
+            requested.remove(channel);
+        }
+    }
+
+    // Completes with null if the API wouldn't say
+    private static CompletableFuture<Registry> load(DiskImageCache http, String name, String url)
+    {
+        if (http == null)
+            return CompletableFuture.completedFuture(null);
+
+        HttpGet request = new HttpGet(url);
+        request.addHeader("Client-ID", HandleData.CLIENT_ID);
+
+        return http.execute(request, response -> parse(url, response)).handle((urls, failure) ->
+        {
+            if (failure != null)
+            {
+                log("Could not get badges from " + url + ": " + failure);
+                return null;
+            }
+
+            if (urls == null || urls.isEmpty())
+                return null;
+
+            log("Loaded " + urls.size() + " " + name + " badges");
+            return new Registry(urls);
+        });
+    }
+
+    // {"badge_sets": {"subscriber": {"versions": {"12": {"image_url_1x": "..."}}}}}
+    private static Map<String, String> parse(String url, HttpResponse response) throws IOException
+    {
+        if (response.getStatusLine().getStatusCode() != 200 || response.getEntity() == null)
+        {
+            log("Badges API said " + response.getStatusLine() + " for " + url);
+            return null;
+        }
+
+        JsonObject badgeSets = new Gson().fromJson(new InputStreamReader(response.getEntity().getContent(),
+                StandardCharsets.UTF_8), JsonObject.class).getAsJsonObject("badge_sets");
+        if (badgeSets == null)
+            return null;
+
+        HashMap<String, String> urls = new HashMap<>();
+        for (Map.Entry<String, JsonElement> set : badgeSets.entrySet())
+        {
+            JsonObject versions = set.getValue().getAsJsonObject().getAsJsonObject("versions");
+            if (versions == null)
+                continue;
+
+            for (Map.Entry<String, JsonElement> version : versions.entrySet())
+            {
+                JsonElement image = version.getValue().getAsJsonObject().get("image_url_1x");
+                if (image != null && !image.isJsonNull())
+                    urls.put(set.getKey() + "/" + version.getKey(), image.getAsString());
+            }
+        }
+
+        return urls;
+    }
+
+    // What we show until the API answers, or if it never does
+    private static Map<String, String> getBadgesWithURLs()
+    {
+        Map<String, String> badgesWithURLs = new HashMap<>();
+
+        // admin
+        badgesWithURLs.put("admin/1", "http://static-cdn.jtvnw.net/badges/v1/9ef7e029-4cdf-4d4d-a0d5-e2b3fb2583fe/1");
+
+        // bits
+        badgesWithURLs.put("bits/1", "http://static-cdn.jtvnw.net/badges/v1/73b5c3fb-24f9-4a82-a852-2f475b59411c/1");
+        badgesWithURLs.put("bits/100", "http://static-cdn.jtvnw.net/badges/v1/09d93036-e7ce-431c-9a9e-7044297133f2/1");
+        badgesWithURLs.put("bits/1000", "http://static-cdn.jtvnw.net/badges/v1/0d85a29e-79ad-4c63-a285-3acd2c66f2ba/1");
+        badgesWithURLs.put("bits/10000", "http://static-cdn.jtvnw" +
+                ".net/badges/v1/68af213b-a771-4124-b6e3-9bb6d98aa732/1");
+        badgesWithURLs.put("bits/100000", "http://static-cdn.jtvnw" +
+                ".net/badges/v1/96f0540f-aa63-49e1-a8b3-259ece3bd098/1");
+        badgesWithURLs.put("bits/1000000", "http://static-cdn.jtvnw" +
+                ".net/badges/v1/494d1c8e-c3b2-4d88-8528-baff57c9bd3f/1");
+        badgesWithURLs.put("bits/200000", "http://static-cdn.jtvnw" +
+                ".net/badges/v1/4a0b90c4-e4ef-407f-84fe-36b14aebdbb6/1");
+        badgesWithURLs.put("bits/25000", "http://static-cdn.jtvnw" +
+                ".net/badges/v1/64ca5920-c663-4bd8-bfb1-751b4caea2dd/1");
+        badgesWithURLs.put("bits/300000", "http://static-cdn.jtvnw" +
+                ".net/badges/v1/ac13372d-2e94-41d1-ae11-ecd677f69bb6/1");
+        badgesWithURLs.put("bits/400000", "http://static-cdn.jtvnw" +
+                ".net/badges/v1/a8f393af-76e6-4aa2-9dd0-7dcc1c34f036/1");
+        badgesWithURLs.put("bits/5000", "http://static-cdn.jtvnw.net/badges/v1/57cd97fc-3e9e-4c6d-9d41-60147137234e/1");
+        badgesWithURLs.put("bits/50000", "http://static-cdn.jtvnw" +
+                ".net/badges/v1/62310ba7-9916-4235-9eba-40110d67f85d/1");
+        badgesWithURLs.put("bits/500000", "http://static-cdn.jtvnw" +
+                ".net/badges/v1/f6932b57-6a6e-4062-a770-dfbd9f4302e5/1");
+        badgesWithURLs.put("bits/600000", "http://static-cdn.jtvnw" +
+                ".net/badges/v1/4d908059-f91c-4aef-9acb-634434f4c32e/1");
+        badgesWithURLs.put("bits/700000", "http://static-cdn.jtvnw" +
+                ".net/badges/v1/a1d2a824-f216-4b9f-9642-3de8ed370957/1");
+        badgesWithURLs.put("bits/75000", "http://static-cdn.jtvnw" +
+                ".net/badges/v1/ce491fa4-b24f-4f3b-b6ff-44b080202792/1");
+        badgesWithURLs.put("bits/800000", "http://static-cdn.jtvnw" +
+                ".net/badges/v1/5ec2ee3e-5633-4c2a-8e77-77473fe409e6/1");
+        badgesWithURLs.put("bits/900000", "http://static-cdn.jtvnw" +
+                ".net/badges/v1/088c58c6-7c38-45ba-8f73-63ef24189b84/1");
+
+        // broadcaster
+        badgesWithURLs.put("broadcaster/1", "http://static-cdn.jtvnw" +
+                ".net/badges/v1/5527c58c-fb7d-422d-b71b-f309dcb85cc1/1");
+
+        // global_mod
+        badgesWithURLs.put("global_mod/1", "http://static-cdn.jtvnw" +
+                ".net/badges/v1/9384c43e-4ce7-4e94-b2a1-b93656896eba/1");
+
+        // moderator
+        badgesWithURLs.put("moderator/1", "http://static-cdn.jtvnw" +
+                ".net/badges/v1/3267646d-33f0-4b17-b3df-f923a41db1d0/1");
+
+        // subscriber
+        badgesWithURLs.put("subscriber/0", "http://static-cdn.jtvnw" +
+                ".net/badges/v1/5d9f2208-5dd8-11e7-8513-2ff4adfae661/1");
+        badgesWithURLs.put("subscriber/1", "http://static-cdn.jtvnw" +
+                ".net/badges/v1/5d9f2208-5dd8-11e7-8513-2ff4adfae661/1");
+
+        // staff
+        badgesWithURLs.put("staff/1", "http://static-cdn.jtvnw.net/badges/v1/d97c37bd-a6f5-4c38-8f57-4e4bef88af34/1");
+
+        // premium
+        badgesWithURLs.put("premium/1", "http://static-cdn.jtvnw.net/badges/v1/a1dd5073-19c3-4911-8cb4-c464a7bc1510/1");
+
+        // turbo
+        badgesWithURLs.put("turbo/1", "http://static-cdn.jtvnw.net/badges/v1/bd444ec6-8f34-4bf9-91f4-af1e3428d80f/1");
+
+        return badgesWithURLs;
+    }
+}
@@ -14,121 +14,102 @@
 
 import javafx.scene.image.Image;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Collection;
+import java.util.function.Consumer;
 
+// What badges look like. Which badges there are and where their images live is
+// BadgeRegistry's business, this keeps the images, keyed by URL since badges of
+// different versions often share one.
 public class Badges
 {
-    private static ArrayList<Image> downloadedBadges = new ArrayList<>();
+    // A couple thousand 18x18 badges
+    static final long DEFAULT_MAX_BYTES = 4L * 1024 * 1024;
 
-    private static ArrayList<String> badgeNamesAtIndex = new ArrayList<>();
+    private static final ImageLoader loader = new ImageLoader("badge");
+    // Loading entries stand in for badges until they're read off disk or downloaded
+    private static final BoundedCache<Image> images =
+            new BoundedCache<>(loader::load, Badges::weigh, DEFAULT_MAX_BYTES);
 
     // Prevent instantiation
     private Badges() {}
 
-    public static ArrayList<String> getValidBadges()
+    // The badge's image if we have it in memory. null if there isn't one, or if it
+    // has to be read or downloaded first, whenLoaded() does that.
+    public static Image getBadge(String channel, String signature)
     {
-        return new ArrayList<>(Arrays.asList(
-                "admin", "bits", "broadcaster", "global_mod", "moderator", "subscriber", "staff", "premium", "turbo"));
+        String url = url(channel, signature);
+        return (url == null) ? null : images.getIfPresent(url);
     }
 
-    public static Map<String, String> getBadgesWithURLs()
+    // Loads the badge and hands it to action on the FX thread. action never runs if
+    // there's no such badge or the load fails.
+    public static void whenLoaded(String channel, String signature, Consumer<Image> action)
     {
-        Map<String, String> badgesWithURLs = new HashMap<>();
-
-        // admin
-        badgesWithURLs.put("admin/1", "http://static-cdn.jtvnw.net/badges/v1/9ef7e029-4cdf-4d4d-a0d5-e2b3fb2583fe/1");
-
-        // bits
-        badgesWithURLs.put("bits/1", "http://static-cdn.jtvnw.net/badges/v1/73b5c3fb-24f9-4a82-a852-2f475b59411c/1");
-        badgesWithURLs.put("bits/100", "http://static-cdn.jtvnw.net/badges/v1/09d93036-e7ce-431c-9a9e-7044297133f2/1");
-        badgesWithURLs.put("bits/1000", "http://static-cdn.jtvnw.net/badges/v1/0d85a29e-79ad-4c63-a285-3acd2c66f2ba/1");
-        badgesWithURLs.put("bits/10000", "http://static-cdn.jtvnw" +
-                ".net/badges/v1/68af213b-a771-4124-b6e3-9bb6d98aa732/1");
-        badgesWithURLs.put("bits/100000", "http://static-cdn.jtvnw" +
-                ".net/badges/v1/96f0540f-aa63-49e1-a8b3-259ece3bd098/1");
-        badgesWithURLs.put("bits/1000000", "http://static-cdn.jtvnw" +
-                ".net/badges/v1/494d1c8e-c3b2-4d88-8528-baff57c9bd3f/1");
-        badgesWithURLs.put("bits/200000", "http://static-cdn.jtvnw" +
-                ".net/badges/v1/4a0b90c4-e4ef-407f-84fe-36b14aebdbb6/1");
-        badgesWithURLs.put("bits/25000", "http://static-cdn.jtvnw" +
-                ".net/badges/v1/64ca5920-c663-4bd8-bfb1-751b4caea2dd/1");
-        badgesWithURLs.put("bits/300000", "http://static-cdn.jtvnw" +
-                ".net/badges/v1/ac13372d-2e94-41d1-ae11-ecd677f69bb6/1");
-        badgesWithURLs.put("bits/400000", "http://static-cdn.jtvnw" +
-                ".net/badges/v1/a8f393af-76e6-4aa2-9dd0-7dcc1c34f036/1");
-        badgesWithURLs.put("bits/5000", "http://static-cdn.jtvnw.net/badges/v1/57cd97fc-3e9e-4c6d-9d41-60147137234e/1");
-        badgesWithURLs.put("bits/50000", "http://static-cdn.jtvnw" +
-                ".net/badges/v1/62310ba7-9916-4235-9eba-40110d67f85d/1");
-        badgesWithURLs.put("bits/500000", "http://static-cdn.jtvnw" +
-                ".net/badges/v1/f6932b57-6a6e-4062-a770-dfbd9f4302e5/1");
-        badgesWithURLs.put("bits/600000", "http://static-cdn.jtvnw" +
-                ".net/badges/v1/4d908059-f91c-4aef-9acb-634434f4c32e/1");
-        badgesWithURLs.put("bits/700000", "http://static-cdn.jtvnw" +
-                ".net/badges/v1/a1d2a824-f216-4b9f-9642-3de8ed370957/1");
-        badgesWithURLs.put("bits/75000", "http://static-cdn.jtvnw" +
-                ".net/badges/v1/ce491fa4-b24f-4f3b-b6ff-44b080202792/1");
-        badgesWithURLs.put("bits/800000", "http://static-cdn.jtvnw" +
-                ".net/badges/v1/5ec2ee3e-5633-4c2a-8e77-77473fe409e6/1");
-        badgesWithURLs.put("bits/900000", "http://static-cdn.jtvnw" +
-                ".net/badges/v1/088c58c6-7c38-45ba-8f73-63ef24189b84/1");
-
-        // broadcaster
-        badgesWithURLs.put("broadcaster/1", "http://static-cdn.jtvnw" +
-                ".net/badges/v1/5527c58c-fb7d-422d-b71b-f309dcb85cc1/1");
-
-        // global_mod
-        badgesWithURLs.put("global_mod/1", "http://static-cdn.jtvnw" +
-                ".net/badges/v1/9384c43e-4ce7-4e94-b2a1-b93656896eba/1");
-
-        // moderator
-        badgesWithURLs.put("moderator/1", "http://static-cdn.jtvnw" +
-                ".net/badges/v1/3267646d-33f0-4b17-b3df-f923a41db1d0/1");
-
-        // subscriber
-        badgesWithURLs.put("subscriber/0", "http://static-cdn.jtvnw" +
-                ".net/badges/v1/5d9f2208-5dd8-11e7-8513-2ff4adfae661/1");
-        badgesWithURLs.put("subscriber/1", "http://static-cdn.jtvnw" +
-                ".net/badges/v1/5d9f2208-5dd8-11e7-8513-2ff4adfae661/1");
-
-        // staff
-        badgesWithURLs.put("staff/1", "http://static-cdn.jtvnw.net/badges/v1/d97c37bd-a6f5-4c38-8f57-4e4bef88af34/1");
-
-        // premium
-        badgesWithURLs.put("premium/1", "http://static-cdn.jtvnw.net/badges/v1/a1dd5073-19c3-4911-8cb4-c464a7bc1510/1");
-
-        // turbo
-        badgesWithURLs.put("turbo/1", "http://static-cdn.jtvnw.net/badges/v1/bd444ec6-8f34-4bf9-91f4-af1e3428d80f/1");
-
-        return badgesWithURLs;
+        String url = url(channel, signature);
+        if (url == null)
+            return;
+
+        images.get(url).thenAccept(loaded ->
+        {
+            if (loaded != null)
+                WildChat.uiUpdates.post(() -> action.accept(loaded));
+        });
     }
 
-    public static String getValue(String key)
+    // Whether the badge has an image at all, loaded or not
+    public static boolean hasBadge(String channel, String signature)
     {
-        return getBadgesWithURLs().get(key);
+        return url(channel, signature) != null;
     }
 
-    public static void cacheBadge(Image badge, String badgeName)
+    public static BoundedCache<Image> getCache()
     {
-        if (badge != null && badgeName != null)
-        {
-            downloadedBadges.add(badge);
-            badgeNamesAtIndex.add(badgeName);
-        }
+        return images;
+    }
+
+    public static ImageLoader getLoader()
+    {
+        return loader;
+    }
+
+    private static String url(String channel, String signature)
+    {
+        return (signature == null) ? null : BadgeRegistry.getURL(channel, signature);
+    }
+
+    // Bytes of pixels
+    private static long weigh(Image badge)
+    {
+        return (long) badge.getWidth() * (long) badge.getHeight() * 4;
+    }
+
+    // Gets every global badge onto disk ahead of the first message that shows one
+    public static void prefetch(DiskImageCache imageCache)
+    {
+        imageCache.prefetch(BadgeRegistry.getGlobalURLs());
     }
 
-    public static boolean hasBadge(String badgeName)
+    // Replaces the built in badges with the API's, in the background
+    public static void loadGlobal()
     {
-        return badgeName != null && badgeNamesAtIndex.contains(badgeName);
+        BadgeRegistry.loadGlobal(WildChat.imageCache).thenAccept(Badges::prefetch);
     }
 
-    public static Image getBadge(String badgeName)
+    // Gets channel's own badges in the background, once. roomID is the channel's
+    // numeric id from ROOMSTATE.
+    public static void loadChannel(String channel, String roomID)
     {
-        if (badgeName != null)
-            return downloadedBadges.get(badgeNamesAtIndex.indexOf(badgeName));
+        BadgeRegistry.loadChannel(WildChat.imageCache, channel, roomID).thenAccept(Badges::prefetch);
+    }
 
-        throw new IllegalArgumentException("You did not give me a badgeName!");
+    public static void unloadChannel(String channel)
+    {
+        BadgeRegistry.unloadChannel(channel);
+    }
+
+    private static void prefetch(Collection<String> urls)
+    {
+        if (WildChat.imageCache != null && !urls.isEmpty())
+            WildChat.imageCache.prefetch(urls);
     }
 }
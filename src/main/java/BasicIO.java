@@ -17,7 +17,6 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.URL;
-import java.util.Arrays;
 import java.util.Map;
 
 /**
@@ -38,34 +37,6 @@ public class BasicIO
         return b == 0x0A || b == 0x0B || b == 0x0C || b == 0x0D;
     }
 
-    public static char[] readLine(InputStream stream)
-    {
-        char[] chars = new char[1];
-        int index = 0;
-
-        try
-        {
-            // Remove extra EOL chars (sometimes there can be multiples)
-            while (isEOLChar((chars[index++] = (char) stream.read())))
-                index--;
-
-            // Make room for while loop
-            chars = Arrays.copyOf(chars, index + 1);
-
-            // While chars[index] is not an EOL character, read the next char in and increase the size
-            // of the char array by 1
-            while (!isEOLChar((chars[index++] = (char) stream.read())))
-                chars = Arrays.copyOf(chars, index + 1);
-        } catch (IOException e)
-        {
-            e.printStackTrace(System.out);
-            System.out.println(e.getMessage());
-            return chars;
-        }
-
-        return chars;
-    }
-
     public static String readURL(String stringURL)
     {
         BufferedReader reader = null;
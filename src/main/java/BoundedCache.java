@@ -0,0 +1,221 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+import static logUtils.Logger.log;
+
+// A cache keyed by id that loads what it doesn't have and forgets what hasn't been
+// used in a while. Safe to use from any number of threads.
+//
+// Loading is asynchronous and single flight: the first get() of a missing key puts
+// a pending entry in its place and starts the loader, and however many threads ask
+// for it until the loader finishes get that same future. Lookups are one map read
+// and never wait for a load. Each entry has a weight, taken once its value is in,
+// and once the total goes over maxWeight the least recently used entries are
+// dropped until we're back under 90% of it. Dropping a batch at a time keeps the
+// cost of that sort spread thin.
+public class BoundedCache<V>
+{
+    private static final class Entry<V>
+    {
+        private final CompletableFuture<V> value;
+        // 0 until value is in
+        private volatile long weight = 0;
+        private volatile long lastUsed;
+
+        private Entry(CompletableFuture<V> value)
+        {
+            this.value = value;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Entry<V>> entries = new ConcurrentHashMap<>();
+    private final Function<String, CompletableFuture<V>> loader;
+    private final ToLongFunction<V> weigher;
+    private final long maxWeight;
+
+    private final AtomicLong weight = new AtomicLong(), clock = new AtomicLong();
+    private final AtomicBoolean evicting = new AtomicBoolean(false);
+
+    private final LongAdder hits = new LongAdder(), misses = new LongAdder(), evictions = new LongAdder(),
+            loadFailures = new LongAdder();
+
+    // loader is called once per missing key and must not block. Completing with null
+    // or exceptionally counts as a failed load, and the key is forgotten so the next
+    // get() tries again.
+    public BoundedCache(Function<String, CompletableFuture<V>> loader, ToLongFunction<V> weigher, long maxWeight)
+    {
+        if (maxWeight < 1)
+            throw new IllegalArgumentException("Need a maxWeight of at least 1. Received: " + maxWeight);
+
+        this.loader = loader;
+        this.weigher = weigher;
+        this.maxWeight = maxWeight;
+    }
+
+    // The cached value, null if it isn't loaded yet. Never starts a load.
+    public V getIfPresent(String key)
+    {
+        Entry<V> entry = entries.get(key);
+        if (entry == null || !entry.value.isDone() || entry.value.isCompletedExceptionally())
+        {
+            misses.increment();
+            return null;
+        }
+
+        hits.increment();
+        entry.lastUsed = clock.incrementAndGet();
+        return entry.value.getNow(null);
+    }
+
+    // The value once it's loaded, starting the load if nobody has yet. Completes with
+    // null if the loader couldn't.
+    public CompletableFuture<V> get(String key)
+    {
+        Entry<V> entry = entries.get(key);
+        if (entry == null)
+        {
+            Entry<V> pending = new Entry<>(new CompletableFuture<>());
+            entry = entries.putIfAbsent(key, pending);
+            if (entry == null)
+            {
+                entry = pending;
+                load(key, pending);
+            }
+        }
+
+        entry.lastUsed = clock.incrementAndGet();
+        return entry.value;
+    }
+
+    private void load(String key, Entry<V> entry)
+    {
+        CompletableFuture<V> loading;
+        try
+        {
+            loading = loader.apply(key);
+        } catch (RuntimeException e)
+        {
+            loading = new CompletableFuture<>();
+            loading.completeExceptionally(e);
+        }
+
+        loading.whenComplete((value, error) ->
+        {
+            if (value == null)
+            {
+                if (error != null)
+                    log("Failed to load " + key + ": " + error);
+
+                loadFailures.increment();
+                entries.remove(key, entry);
+                entry.value.complete(null);
+                return;
+            }
+
+            // Weighed before it's visible, so eviction never sees it half counted
+            entry.weight = weigher.applyAsLong(value);
+            weight.addAndGet(entry.weight);
+            entry.value.complete(value);
+            evictIfNeeded();
+        });
+    }
+
+    private void evictIfNeeded()
+    {
+        // One thread does the evicting, the rest carry on
+        if (weight.get() <= maxWeight || !evicting.compareAndSet(false, true))
+            return;
+
+        try
+        {
+            ArrayList<Map.Entry<String, Entry<V>>> oldestFirst = new ArrayList<>(entries.entrySet());
+            oldestFirst.sort((a, b) -> Long.compare(a.getValue().lastUsed, b.getValue().lastUsed));
+
+            long target = maxWeight - maxWeight / 10;
+            for (Map.Entry<String, Entry<V>> candidate : oldestFirst)
+            {
+                if (weight.get() <= target)
+                    break;
+
+                // Still loading, so nothing to free yet
+                if (!candidate.getValue().value.isDone())
+                    continue;
+
+                if (entries.remove(candidate.getKey(), candidate.getValue()))
+                {
+                    weight.addAndGet(-candidate.getValue().weight);
+                    evictions.increment();
+                }
+            }
+        } finally
+        {
+            evicting.set(false);
+        }
+    }
+
+    public int size()
+    {
+        return entries.size();
+    }
+
+    public long getWeight()
+    {
+        return weight.get();
+    }
+
+    public long getMaxWeight()
+    {
+        return maxWeight;
+    }
+
+    public long getHitCount()
+    {
+        return hits.sum();
+    }
+
+    public long getMissCount()
+    {
+        return misses.sum();
+    }
+
+    public long getEvictionCount()
+    {
+        return evictions.sum();
+    }
+
+    public long getLoadFailureCount()
+    {
+        return loadFailures.sum();
+    }
+
+    @Override
+    public String toString()
+    {
+        long hitCount = getHitCount(), lookups = hitCount + getMissCount();
+
+        return size() + " entries, " + getWeight() + "/" + maxWeight + " weight, " +
+                hitCount + "/" + lookups + " hits, " + getEvictionCount() + " evictions, " +
+                getLoadFailureCount() + " failed loads";
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Recycles direct buffers between connections. Direct buffers are expensive to
+// allocate and are only given back to the OS by the GC, so connections coming and
+// going should not allocate new ones every time.
+public class BufferPool
+{
+    private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+    private final int bufferSize, maxPooled;
+
+    public BufferPool(int bufferSize, int maxPooled)
+    {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    public ByteBuffer acquire()
+    {
+        ByteBuffer buffer = free.poll();
+
+        if (buffer == null)
+            return ByteBuffer.allocateDirect(bufferSize);
+
+        pooled.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    // Buffers that were swapped for a bigger one along the way are left to the GC
+    public void release(ByteBuffer buffer)
+    {
+        if (buffer == null || !buffer.isDirect() || buffer.capacity() != bufferSize)
+            return;
+
+        if (pooled.incrementAndGet() > maxPooled)
+        {
+            pooled.decrementAndGet();
+            return;
+        }
+
+        free.offer(buffer);
+    }
+
+    public int getBufferSize()
+    {
+        return bufferSize;
+    }
+
+    public int getPooledCount()
+    {
+        return pooled.get();
+    }
+}
@@ -0,0 +1,368 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+
+// One chat line as plain data: who said it, how they look and what they said, with
+// the text already split into text and emote segments. Parsing produces these off
+// of the FX thread without touching JavaFX, and only the view turns them into nodes.
+// Immutable, so it can be shared freely between threads.
+public final class ChatMessage
+{
+    public enum Kind
+    {
+        CHAT,
+        // /me
+        ACTION,
+        WHISPER,
+        // Anything we tell the user ourselves, just text
+        NOTICE
+    }
+
+    private static final String ACTION_START = "\u0001ACTION ", ACTION_END = "\u0001";
+    private static final String[] NO_BADGES = new String[0];
+
+    private final Kind kind;
+    private final String channel, user, displayName, color, id, text;
+    private final String[] badges, emoteIDs;
+    // (start, end, emote) per segment over text, end exclusive. emote indexes
+    // emoteIDs, -1 for plain text.
+    private final int[] segments;
+
+    public ChatMessage(Kind kind, String channel, String user, String displayName, String color,
+                       ArrayList<String> badges, String id, String text, String emotes)
+    {
+        // Twitch counts emote positions inside of the ACTION wrapper
+        if (text.startsWith(ACTION_START))
+        {
+            kind = (kind == Kind.CHAT) ? Kind.ACTION : kind;
+            text = text.substring(ACTION_START.length(),
+                    text.endsWith(ACTION_END) ? text.length() - ACTION_END.length() : text.length());
+        }
+
+        this.kind = kind;
+        this.channel = intern(channel);
+        this.user = intern(user);
+        this.displayName = (displayName == null || displayName.equals(user)) ? this.user : displayName;
+        this.color = intern(color);
+        this.id = id;
+        this.text = text;
+
+        if (badges == null || badges.isEmpty())
+            this.badges = NO_BADGES;
+        else
+        {
+            this.badges = new String[badges.size()];
+            for (int badge = 0; badge < this.badges.length; badge++)
+                this.badges[badge] = badges.get(badge).intern();
+        }
+
+        ArrayList<String> ids = new ArrayList<>();
+        this.segments = splice(text, parseEmoteRanges(emotes, ids));
+        this.emoteIDs = ids.toArray(new String[0]);
+    }
+
+    public static ChatMessage notice(String channel, String text)
+    {
+        return new ChatMessage(Kind.NOTICE, channel, null, null, null, null, null, text, null);
+    }
+
+    // Builds an emotes tag for text the way twitch would, out of an emote code to id
+    // map. For showing our own messages, which twitch doesn't echo back to us.
+    public static String emotesTag(String text, Map<String, String> codesAndIDs)
+    {
+        if (codesAndIDs == null || codesAndIDs.isEmpty())
+            return null;
+
+        StringBuilder sb = new StringBuilder();
+        int length = text.length(), wordStart = 0, codePoint = 0, wordStartCodePoint = 0;
+
+        for (int index = 0; index <= length; )
+        {
+            if (index == length || text.charAt(index) == ' ')
+            {
+                String id = (index > wordStart) ? codesAndIDs.get(text.substring(wordStart, index)) : null;
+                if (id != null)
+                {
+                    if (sb.length() > 0)
+                        sb.append('/');
+
+                    sb.append(id).append(':').append(wordStartCodePoint).append('-').append(codePoint - 1);
+                }
+
+                if (index == length)
+                    break;
+
+                index++;
+                codePoint++;
+                wordStart = index;
+                wordStartCodePoint = codePoint;
+                continue;
+            }
+
+            index += Character.charCount(text.codePointAt(index));
+            codePoint++;
+        }
+
+        return (sb.length() == 0) ? null : sb.toString();
+    }
+
+    // Turns an emotes tag like "25:0-4,12-16/1902:6-10" into (start, end, id) triples
+    // sorted by start, ids being indexes into emoteIDs. Positions are code points, end
+    // inclusive. Malformed entries are skipped.
+    static int[] parseEmoteRanges(String emotes, ArrayList<String> emoteIDs)
+    {
+        if (emotes == null || emotes.isEmpty())
+            return new int[0];
+
+        int[] ranges = new int[16 * 3];
+        int count = 0, index = 0, length = emotes.length();
+
+        while (index < length)
+        {
+            // id:
+            int idEnd = emotes.indexOf(':', index), emoteEnd = emotes.indexOf('/', index);
+            if (emoteEnd < 0)
+                emoteEnd = length;
+
+            if (idEnd < 0 || idEnd > emoteEnd)
+            {
+                index = emoteEnd + 1;
+                continue;
+            }
+
+            // Only added once it turns out to have a usable range
+            int id = -1, idStart = index;
+            index = idEnd + 1;
+
+            // start-end,start-end
+            while (index < emoteEnd)
+            {
+                int start = 0, end = 0;
+                boolean sawDash = false, valid = index < emoteEnd;
+
+                for (; index < emoteEnd && emotes.charAt(index) != ','; index++)
+                {
+                    char c = emotes.charAt(index);
+                    if (c == '-' && !sawDash)
+                        sawDash = true;
+                    else if (c >= '0' && c <= '9')
+                    {
+                        if (sawDash)
+                            end = end * 10 + (c - '0');
+                        else
+                            start = start * 10 + (c - '0');
+                    } else
+                        valid = false;
+                }
+                index++; // Skip the , or /
+
+                if (!valid || !sawDash || end < start)
+                    continue;
+
+                if (id < 0)
+                {
+                    id = emoteIDs.size();
+                    emoteIDs.add(emotes.substring(idStart, idEnd).intern());
+                }
+
+                if (count * 3 == ranges.length)
+                    ranges = Arrays.copyOf(ranges, ranges.length * 2);
+
+                ranges[count * 3] = start;
+                ranges[count * 3 + 1] = end;
+                ranges[count * 3 + 2] = id;
+                count++;
+            }
+
+            index = emoteEnd + 1;
+        }
+
+        // Sort by start. Each start goes in the high half, its triple's slot in the low half.
+        long[] order = new long[count];
+        for (int triple = 0; triple < count; triple++)
+            order[triple] = ((long) ranges[triple * 3] << 32) | triple;
+
+        Arrays.sort(order);
+
+        int[] sorted = new int[count * 3];
+        for (int triple = 0; triple < count; triple++)
+            System.arraycopy(ranges, (int) order[triple] * 3, sorted, triple * 3, 3);
+
+        return sorted;
+    }
+
+    // One pass over the text, taking the sorted emote ranges in turn. Twitch counts
+    // positions in code points, so an emoji before an emote counts as one.
+    private static int[] splice(String text, int[] ranges)
+    {
+        int[] spliced = new int[(ranges.length / 3 * 2 + 1) * 3];
+        int count = 0, length = text.length(), charIndex = 0, codePoint = 0, range = 0, textStart = 0;
+
+        while (charIndex < length)
+        {
+            if (range < ranges.length && ranges[range] == codePoint)
+            {
+                if (charIndex > textStart)
+                    count = addSegment(spliced, count, textStart, charIndex, -1);
+
+                // Skip over the emote's text, its end is inclusive
+                int emoteStart = charIndex;
+                while (charIndex < length && codePoint <= ranges[range + 1])
+                {
+                    charIndex += Character.charCount(text.codePointAt(charIndex));
+                    codePoint++;
+                }
+
+                count = addSegment(spliced, count, emoteStart, charIndex, ranges[range + 2]);
+                textStart = charIndex;
+
+                // Drop anything overlapping the emote we just placed
+                do
+                    range += 3;
+                while (range < ranges.length && ranges[range] < codePoint);
+
+                continue;
+            }
+
+            charIndex += Character.charCount(text.codePointAt(charIndex));
+            codePoint++;
+        }
+
+        if (length > textStart)
+            count = addSegment(spliced, count, textStart, length, -1);
+
+        return Arrays.copyOf(spliced, count * 3);
+    }
+
+    private static int addSegment(int[] segments, int count, int start, int end, int emote)
+    {
+        segments[count * 3] = start;
+        segments[count * 3 + 1] = end;
+        segments[count * 3 + 2] = emote;
+        return count + 1;
+    }
+
+    private static String intern(String value)
+    {
+        return (value == null) ? null : value.intern();
+    }
+
+    public Kind getKind()
+    {
+        return kind;
+    }
+
+    // null for whispers and for notices not tied to a channel
+    public String getChannel()
+    {
+        return channel;
+    }
+
+    // null for notices
+    public String getUser()
+    {
+        return user;
+    }
+
+    public String getDisplayName()
+    {
+        return displayName;
+    }
+
+    public String getColor()
+    {
+        return color;
+    }
+
+    public boolean isNotice()
+    {
+        return kind == Kind.NOTICE;
+    }
+
+    // Twitch's id for the message, what CLEARMSG refers to. May be null.
+    public String getId()
+    {
+        return id;
+    }
+
+    public String getText()
+    {
+        return text;
+    }
+
+    // Badge signatures like moderator/1
+    public int getBadgeCount()
+    {
+        return badges.length;
+    }
+
+    public String getBadge(int badge)
+    {
+        return badges[badge];
+    }
+
+    public int getSegmentCount()
+    {
+        return segments.length / 3;
+    }
+
+    public boolean isEmote(int segment)
+    {
+        return segments[segment * 3 + 2] >= 0;
+    }
+
+    public String getEmoteID(int segment)
+    {
+        return isEmote(segment) ? emoteIDs[segments[segment * 3 + 2]] : null;
+    }
+
+    public int getSegmentStart(int segment)
+    {
+        return segments[segment * 3];
+    }
+
+    public int getSegmentEnd(int segment)
+    {
+        return segments[segment * 3 + 1];
+    }
+
+    public String getSegmentText(int segment)
+    {
+        return text.substring(segments[segment * 3], segments[segment * 3 + 1]);
+    }
+
+    // Every distinct emote in the message
+    public int getEmoteCount()
+    {
+        return emoteIDs.length;
+    }
+
+    public String getEmoteIDAt(int emote)
+    {
+        return emoteIDs[emote];
+    }
+
+    @Override
+    public String toString()
+    {
+        if (kind == Kind.NOTICE)
+            return ((channel == null) ? "" : channel + " ") + text;
+
+        return ((channel == null) ? "" : channel + " ") + displayName +
+                ((kind == Kind.ACTION) ? " " : ": ") + text;
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import javafx.scene.control.ListCell;
+import javafx.scene.control.ListView;
+import javafx.scene.layout.Region;
+
+// One row of the message view. The ListView keeps only enough of these around to
+// fill the screen and hands them whatever message scrolls into their spot, so a
+// message's nodes are only built while it is actually visible.
+public class ChatMessageCell extends ListCell<ChatMessage>
+{
+    // Leaves room for the scroll bar
+    private static final double SCROLL_BAR_ROOM = 20.0;
+
+    public ChatMessageCell()
+    {
+        getStyleClass().add(ThemeStylesheet.CELL);
+    }
+
+    @Override
+    protected void updateItem(ChatMessage message, boolean empty)
+    {
+        super.updateItem(message, empty);
+        setText(null);
+
+        if (empty || message == null)
+        {
+            setGraphic(null);
+            return;
+        }
+
+        Region row = ChatMessageRenderer.render(message);
+        ListView<ChatMessage> view = getListView();
+
+        if (view != null)
+        {
+            row.maxWidthProperty().bind(view.widthProperty().subtract(SCROLL_BAR_ROOM));
+            row.prefWidthProperty().bind(row.maxWidthProperty());
+        }
+
+        setGraphic(row);
+    }
+}
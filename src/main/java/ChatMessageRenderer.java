@@ -0,0 +1,168 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import javafx.scene.Node;
+import javafx.scene.control.Label;
+import javafx.scene.image.ImageView;
+import javafx.scene.layout.Region;
+import javafx.scene.text.Text;
+import javafx.scene.text.TextFlow;
+
+import java.util.ArrayList;
+
+// Turns a ChatMessage into nodes. The only place messages meet JavaFX, so call it
+// on the FX thread when the message is actually going on screen.
+public class ChatMessageRenderer
+{
+    // Prevent instantiation
+    private ChatMessageRenderer() {}
+
+    public static Region render(ChatMessage message)
+    {
+        if (message.isNotice())
+            return renderNotice(message.getText());
+
+        return renderChat(message);
+    }
+
+    public static Label renderNotice(String text)
+    {
+        Label notice = new Label(WildChat.uiSettings.getMessagePrefix() + text);
+        notice.setWrapText(true);
+        notice.getStyleClass().add(ThemeStylesheet.NOTICE);
+
+        return notice;
+    }
+
+    // One TextFlow per message. Each run of plain text between emotes is a single
+    // Text, only emotes, links and mentions get nodes of their own.
+    public static TextFlow renderChat(ChatMessage message)
+    {
+        ArrayList<Node> nodes = new ArrayList<>();
+        String text = message.getText();
+        String textClass = (message.getKind() == ChatMessage.Kind.ACTION) ? ThemeStylesheet.ACTION
+                           : (message.getKind() == ChatMessage.Kind.WHISPER) ? ThemeStylesheet.WHISPER
+                           : ThemeStylesheet.TEXT;
+
+        nodes.add(text(WildChat.uiSettings.getMessagePrefix(), ThemeStylesheet.TEXT));
+
+        boolean badged = false;
+        for (int badge = 0; badge < message.getBadgeCount(); badge++)
+        {
+            ImageView view = badgeView(message.getChannel(), message.getBadge(badge));
+            if (view != null)
+            {
+                nodes.add(view);
+                badged = true;
+            }
+        }
+
+        Text name = text(badged ? " " + message.getDisplayName() : message.getDisplayName(),
+                ThemeStylesheet.NAME);
+        name.setFill(ThemeStylesheet.nameColor(message.getColor()));
+        nodes.add(name);
+        nodes.add(text(": ", ThemeStylesheet.TEXT));
+
+        for (int segment = 0; segment < message.getSegmentCount(); segment++)
+        {
+            if (message.isEmote(segment))
+            {
+                String emoteID = message.getEmoteID(segment);
+                ImageView emote = new ImageView(Emotes.getEmote(emoteID));
+                if (emote.getImage() == null)
+                    Emotes.whenLoaded(emoteID, emote::setImage);
+
+                nodes.add(emote);
+            }
+            else
+                addRuns(text, message.getSegmentStart(segment), message.getSegmentEnd(segment), textClass, nodes);
+        }
+
+        TextFlow holder = new TextFlow();
+        holder.getChildren().setAll(nodes);
+
+        return holder;
+    }
+
+    // The badge as it will look once loaded, which may be a frame or two after it's
+    // shown. null if the badge has no image.
+    public static ImageView badgeView(String channel, String signature)
+    {
+        if (!Badges.hasBadge(channel, signature))
+            return null;
+
+        ImageView view = new ImageView(Badges.getBadge(channel, signature));
+        if (view.getImage() == null)
+            Badges.whenLoaded(channel, signature, view::setImage);
+
+        return view;
+    }
+
+    // text[start, end) as few Text nodes as possible: one for each link and mention,
+    // and one for all the plain text between them
+    private static void addRuns(String text, int start, int end, String textClass, ArrayList<Node> nodes)
+    {
+        int runStart = start, wordStart = start;
+
+        for (int index = start; index <= end; index++)
+        {
+            if (index < end && text.charAt(index) != ' ')
+                continue;
+
+            if (index > wordStart)
+            {
+                String word = text.substring(wordStart, index);
+                String styleClass = isLink(word) ? ThemeStylesheet.LINK
+                                    : isMention(word) ? ThemeStylesheet.MENTION
+                                    : null;
+
+                if (styleClass != null)
+                {
+                    if (wordStart > runStart)
+                        nodes.add(text(text.substring(runStart, wordStart), textClass));
+
+                    Text special = text(word, styleClass);
+                    if (styleClass.equals(ThemeStylesheet.LINK))
+                        special.setOnMouseClicked(event -> BareBonesBrowserLaunch.openURL(word));
+
+                    nodes.add(special);
+                    runStart = index;
+                }
+            }
+
+            wordStart = index + 1;
+        }
+
+        if (end > runStart)
+            nodes.add(text(text.substring(runStart, end), textClass));
+    }
+
+    private static boolean isLink(String word)
+    {
+        return word.length() > 9 && (word.startsWith("http://") || word.startsWith("https://"));
+    }
+
+    private static boolean isMention(String word)
+    {
+        return word.length() > 1 && word.charAt(0) == '@';
+    }
+
+    private static Text text(String text, String styleClass)
+    {
+        Text node = new Text(text);
+        node.getStyleClass().add(styleClass);
+
+        return node;
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.TreeSet;
+
+// Words to TAB complete, chatters or emote codes, found by prefix and ranked by how
+// recently they were used.
+//
+// Words live in a map for adding, removing and touching, in an array kept sorted by
+// lowercase word, and in a set kept in rank order. Adding or removing a word is a
+// binary search and one array copy. A batch of k (a NAMES roster, an emote set) is
+// sorted on its own and merged in with one pass from the back, a binary search and
+// a block copy per word, O(k log n) compares and at most n moves. Touching a word is
+// O(log n), and nothing is ever re-sorted.
+//
+// Two binary searches find the m words with a prefix. If m is small those are
+// ranked directly, if it's large walking the ranked set from the top finds limit of
+// them after looking at about limit * n / m words, so a lookup costs
+// O(log n + min(m, limit * n / m)) however common the prefix is.
+//
+// Safe to use from any thread.
+public class CompletionIndex
+{
+    private static final class Entry
+    {
+        private final String word, key;
+        private long lastUsed = 0;
+
+        private Entry(String word, String key)
+        {
+            this.word = word;
+            this.key = key;
+        }
+    }
+
+    // Most recently used first, then shortest, then alphabetical
+    private static final Comparator<Entry> RANK = (a, b) ->
+    {
+        if (a.lastUsed != b.lastUsed)
+            return Long.compare(b.lastUsed, a.lastUsed);
+        if (a.key.length() != b.key.length())
+            return Integer.compare(a.key.length(), b.key.length());
+
+        return a.key.compareTo(b.key);
+    };
+
+    private static final Comparator<Entry> BY_KEY = (a, b) -> a.key.compareTo(b.key);
+
+    private final HashMap<String, Entry> entries = new HashMap<>();
+    // By key, the first count slots are in use
+    private Entry[] sorted = new Entry[16];
+    private int count = 0;
+    private final TreeSet<Entry> ranked = new TreeSet<>(RANK);
+    private long clock = 0;
+
+    public synchronized void add(String word)
+    {
+        if (word == null || word.isEmpty())
+            return;
+
+        String key = key(word);
+        if (!entries.containsKey(key))
+        {
+            Entry entry = new Entry(word, key);
+            insert(entry);
+            ranked.add(entry);
+        }
+    }
+
+    // A roster's or an emote set's worth at once: the new words are sorted among
+    // themselves and merged into sorted in one pass, O(n + k log k) for k words
+    public synchronized void addAll(Collection<String> words)
+    {
+        ArrayList<Entry> added = new ArrayList<>(words.size());
+        for (String word : words)
+        {
+            if (word == null || word.isEmpty())
+                continue;
+
+            String key = key(word);
+            if (!entries.containsKey(key))
+            {
+                Entry entry = new Entry(word, key);
+                entries.put(key, entry);
+                ranked.add(entry);
+                added.add(entry);
+            }
+        }
+
+        if (added.isEmpty())
+            return;
+
+        added.sort(BY_KEY);
+
+        // Fill from the back so the old entries can be moved up in place
+        if (count + added.size() > sorted.length)
+            sorted = Arrays.copyOf(sorted, Math.max(count + added.size(), sorted.length * 2));
+
+        // Each new key binary searches for its spot among the old ones still
+        // unmoved, and the run of old entries above it shifts up in one copy
+        int old = count, to = count + added.size();
+        for (int next = added.size() - 1; next >= 0; next--)
+        {
+            Entry entry = added.get(next);
+            int at = -Arrays.binarySearch(sorted, 0, old, entry, BY_KEY) - 1;
+            int run = old - at;
+            to -= run;
+            System.arraycopy(sorted, at, sorted, to, run);
+            sorted[--to] = entry;
+            old = at;
+        }
+
+        count += added.size();
+    }
+
+    // Takes everyone in words out with one pass over sorted
+    public synchronized void removeAll(Collection<String> words)
+    {
+        int removed = 0;
+        for (String word : words)
+        {
+            Entry entry = (word == null) ? null : entries.remove(key(word));
+            if (entry != null)
+            {
+                ranked.remove(entry);
+                removed++;
+            }
+        }
+
+        if (removed == 0)
+            return;
+
+        int to = 0;
+        for (int index = 0; index < count; index++)
+            if (entries.get(sorted[index].key) == sorted[index])
+                sorted[to++] = sorted[index];
+
+        Arrays.fill(sorted, to, count, null);
+        count = to;
+    }
+
+    public synchronized void remove(String word)
+    {
+        if (word == null)
+            return;
+
+        Entry entry = entries.remove(key(word));
+        if (entry == null)
+            return;
+
+        ranked.remove(entry);
+        int index = lowerBound(entry.key);
+        System.arraycopy(sorted, index + 1, sorted, index, count - index - 1);
+        sorted[--count] = null;
+    }
+
+    // word was just used, so it ranks first. Adds it if need be, and takes its
+    // spelling if the case differs.
+    public synchronized void touch(String word)
+    {
+        if (word == null || word.isEmpty())
+            return;
+
+        String key = key(word);
+        Entry entry = entries.get(key);
+        // Its rank is about to change, take it out while the set can still find it
+        if (entry != null)
+            ranked.remove(entry);
+
+        if (entry == null || !entry.word.equals(word))
+        {
+            Entry replacement = new Entry(word, key);
+            if (entry == null)
+                insert(replacement);
+            else
+            {
+                entries.put(key, replacement);
+                sorted[lowerBound(key)] = replacement;
+            }
+
+            entry = replacement;
+        }
+
+        entry.lastUsed = ++clock;
+        ranked.add(entry);
+    }
+
+    public synchronized int size()
+    {
+        return entries.size();
+    }
+
+    // Up to limit words starting with prefix, ignoring case, best first
+    public synchronized ArrayList<String> complete(String prefix, int limit)
+    {
+        ArrayList<String> words = new ArrayList<>();
+        if (prefix == null || limit < 1)
+            return words;
+
+        String key = key(prefix);
+        int from = lowerBound(key), to = lowerBound(key + Character.MAX_VALUE), matches = to - from;
+
+        if ((long) matches * matches <= (long) limit * count)
+        {
+            // The limit best, worst on top so it's the one pushed out
+            PriorityQueue<Entry> best = new PriorityQueue<>(limit + 1, RANK.reversed());
+            for (int index = from; index < to; index++)
+            {
+                best.add(sorted[index]);
+                if (best.size() > limit)
+                    best.poll();
+            }
+
+            ArrayList<Entry> top = new ArrayList<>(best);
+            top.sort(RANK);
+            for (Entry entry : top)
+                words.add(entry.word);
+        } else
+        {
+            // Plenty of matches, the best of them are near the top
+            for (Entry entry : ranked)
+            {
+                if (entry.key.startsWith(key))
+                {
+                    words.add(entry.word);
+                    if (words.size() == limit)
+                        break;
+                }
+            }
+        }
+
+        return words;
+    }
+
+    // Into entries and sorted. Whoever calls this puts it in ranked once it's ranked.
+    private void insert(Entry entry)
+    {
+        entries.put(entry.key, entry);
+
+        if (count == sorted.length)
+            sorted = Arrays.copyOf(sorted, count * 2);
+
+        int index = lowerBound(entry.key);
+        System.arraycopy(sorted, index, sorted, index + 1, count - index);
+        sorted[index] = entry;
+        count++;
+    }
+
+    // Index of the first key not below key
+    private int lowerBound(String key)
+    {
+        int low = 0, high = count;
+        while (low < high)
+        {
+            int middle = (low + high) >>> 1;
+            if (sorted[middle].key.compareTo(key) < 0)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+
+        return low;
+    }
+
+    private static String key(String word)
+    {
+        return word.toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.UnresolvedAddressException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static logUtils.Logger.log;
+
+// Runs any number of IrcConnections on a small, fixed set of selector threads.
+// Adding channels or accounts adds connections, not threads.
+public class ConnectionEngine
+{
+    static final int DEFAULT_LOOP_COUNT = 1;
+
+    private final ArrayList<EventLoop> loops = new ArrayList<>();
+    private final BufferPool pool;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    public ConnectionEngine()
+    {
+        this(DEFAULT_LOOP_COUNT, new BufferPool(IrcLineReader.DEFAULT_CAPACITY, 64));
+    }
+
+    public ConnectionEngine(int loopCount, BufferPool pool)
+    {
+        if (loopCount < 1)
+            throw new IllegalArgumentException("Need at least one event loop. Received: " + loopCount);
+
+        this.pool = pool;
+
+        for (int count = 0; count < loopCount; count++)
+        {
+            EventLoop loop = new EventLoop("connectionEngine-" + count);
+            loops.add(loop);
+            loop.thread.start();
+        }
+    }
+
+    // Start connecting. Everything else about the connection arrives through its Handler.
+    public void register(IrcConnection connection)
+    {
+        EventLoop loop = loops.get(Math.floorMod(nextLoop.getAndIncrement(), loops.size()));
+        loop.execute(() -> loop.open(connection));
+    }
+
+    // Run a task on one of the event loops once the delay has passed
+    public void schedule(Runnable task, long delay, TimeUnit unit)
+    {
+        EventLoop loop = loops.get(Math.floorMod(nextLoop.getAndIncrement(), loops.size()));
+        long due = System.nanoTime() + unit.toNanos(delay);
+        loop.execute(() -> loop.timers.add(new Timer(due, task)));
+    }
+
+    public void shutdown()
+    {
+        for (EventLoop loop : loops)
+            loop.thread.interrupt();
+    }
+
+    public int getConnectionCount()
+    {
+        int count = 0;
+        for (EventLoop loop : loops)
+            count += loop.connectionCount;
+
+        return count;
+    }
+
+    private static class Timer implements Comparable<Timer>
+    {
+        private final long due;
+        private final Runnable task;
+
+        Timer(long due, Runnable task)
+        {
+            this.due = due;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Timer other)
+        {
+            return Long.signum(due - other.due);
+        }
+    }
+
+    class EventLoop implements Runnable
+    {
+        private final Thread thread;
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        // Only touched from thread
+        private final PriorityQueue<Timer> timers = new PriorityQueue<>();
+        // Only touched from thread
+        private final HashSet<IrcConnection> connections = new HashSet<>();
+        private volatile int connectionCount = 0;
+        private volatile Selector selector;
+
+        EventLoop(String name)
+        {
+            thread = new Thread(this, name);
+            thread.setDaemon(true);
+        }
+
+        void execute(Runnable task)
+        {
+            tasks.add(task);
+            wakeup();
+        }
+
+        void wakeup()
+        {
+            Selector current = selector;
+            if (current != null && Thread.currentThread() != thread)
+                current.wakeup();
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                selector = Selector.open();
+            } catch (IOException e)
+            {
+                log("Failed to open selector: " + e.getMessage());
+                return;
+            }
+
+            // Tasks queued before the selector existed had nobody to wake up
+            selector.wakeup();
+
+            while (!Thread.currentThread().isInterrupted())
+            {
+                Runnable task;
+                while ((task = tasks.poll()) != null)
+                    task.run();
+
+                long now = System.nanoTime(), wait = Long.MAX_VALUE;
+                while (!timers.isEmpty() && timers.peek().due - now <= 0)
+                    timers.poll().task.run();
+
+                if (!timers.isEmpty())
+                    wait = timers.peek().due - now;
+
+                // Send what the rate limits allow and work out when the next line is due
+                for (IrcConnection connection : connections)
+                    wait = Math.min(wait, connection.flush(now));
+
+                try
+                {
+                    // Tasks queued from this thread (by a timer or a handler) had nobody to wake us up
+                    if (!tasks.isEmpty())
+                        selector.selectNow();
+                    else if (wait == Long.MAX_VALUE)
+                        selector.select();
+                    else
+                        selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait + 999999)));
+                } catch (IOException e)
+                {
+                    log(e.getMessage());
+                    break;
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext())
+                {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    IrcConnection connection = (IrcConnection) key.attachment();
+                    if (key.isValid())
+                        connection.handle(key);
+                }
+
+                connections.removeIf(IrcConnection::isClosed);
+                connectionCount = connections.size();
+            }
+
+            for (IrcConnection connection : connections)
+                connection.close(new IOException("Connection engine shut down"));
+
+            try
+            {
+                selector.close();
+            } catch (IOException e)
+            {
+                log(e.getMessage());
+            }
+        }
+
+        private void open(IrcConnection connection)
+        {
+            try
+            {
+                connection.open(this, selector, pool);
+                connections.add(connection);
+                connectionCount = connections.size();
+            } catch (IOException e)
+            {
+                connection.close(e);
+            } catch (UnresolvedAddressException e)
+            {
+                connection.close(new IOException("Could not resolve address", e));
+            }
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.EnumMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static logUtils.Logger.log;
+
+// Tracks where a connection to twitch is in its life. Threads that need the
+// connection to reach a certain point wait on a future instead of polling, and
+// every transition is timed so we can see where connection time goes.
+public class ConnectionLifecycle
+{
+    public enum State
+    {
+        // Opening the socket
+        CONNECTING,
+        // Socket is open, PASS/NICK/CAP are on their way and we wait for 001
+        AUTHENTICATING,
+        // Twitch welcomed us, fully usable
+        READY,
+        // Lost the connection and trying to get it back
+        RECONNECTING,
+        // Done for good
+        CLOSED
+    }
+
+    // Completed while the connection is in the state, replaced when it leaves it
+    private final EnumMap<State, CompletableFuture<State>> entered = new EnumMap<>(State.class);
+    private final EnumMap<State, Long> timeSpent = new EnumMap<>(State.class),
+            lastDuration = new EnumMap<>(State.class);
+    private final long created = System.nanoTime();
+    private State state = null;
+    private long stateSince = created;
+
+    public ConnectionLifecycle()
+    {
+        for (State possibleState : State.values())
+        {
+            entered.put(possibleState, new CompletableFuture<>());
+            timeSpent.put(possibleState, 0L);
+            lastDuration.put(possibleState, 0L);
+        }
+    }
+
+    public void transition(State next)
+    {
+        CompletableFuture<State> toComplete;
+
+        synchronized (this)
+        {
+            if (state == next || state == State.CLOSED)
+                return;
+
+            long now = System.nanoTime(), duration = now - stateSince;
+
+            if (state != null)
+            {
+                timeSpent.put(state, timeSpent.get(state) + duration);
+                lastDuration.put(state, duration);
+                entered.put(state, new CompletableFuture<>());
+            }
+
+            log("Connection " + (state == null ? "created" : state) + " -> " + next + " after " +
+                    TimeUnit.NANOSECONDS.toMillis(duration) + "ms (" +
+                    TimeUnit.NANOSECONDS.toMillis(now - created) + "ms total)");
+
+            state = next;
+            stateSince = now;
+            toComplete = entered.get(next);
+        }
+
+        // Outside of the lock so waiters' callbacks can't deadlock against us
+        toComplete.complete(next);
+    }
+
+    public synchronized State getState()
+    {
+        return state;
+    }
+
+    // Completes as soon as the connection is in the given state, right away if it already is
+    public synchronized CompletableFuture<State> whenState(State wanted)
+    {
+        return entered.get(wanted);
+    }
+
+    // Completes as soon as the connection is in any of the given states
+    public CompletableFuture<State> whenAnyState(State... wanted)
+    {
+        CompletableFuture<State> any = new CompletableFuture<>();
+
+        for (State possibleState : wanted)
+            whenState(possibleState).thenAccept(any::complete);
+
+        return any;
+    }
+
+    // Blocks until the socket can be written to. Returns false if the connection closed instead.
+    public boolean awaitConnected() throws InterruptedException
+    {
+        try
+        {
+            return whenAnyState(State.AUTHENTICATING, State.READY, State.CLOSED).get() != State.CLOSED;
+        } catch (ExecutionException e)
+        {
+            return false;
+        }
+    }
+
+    // Total time spent in a state, including the current stretch if we're in it
+    public synchronized long getTimeSpent(State inState, TimeUnit unit)
+    {
+        long spent = timeSpent.get(inState);
+
+        if (state == inState)
+            spent += System.nanoTime() - stateSince;
+
+        return unit.convert(spent, TimeUnit.NANOSECONDS);
+    }
+
+    // How long the most recent finished stay in a state took
+    public synchronized long getLastDuration(State inState, TimeUnit unit)
+    {
+        return unit.convert(lastDuration.get(inState), TimeUnit.NANOSECONDS);
+    }
+}
@@ -12,14 +12,6 @@
  * limitations under the License.
  */
 
-import javafx.application.Platform;
-import javafx.geometry.Orientation;
-import javafx.scene.Cursor;
-import javafx.scene.Node;
-import javafx.scene.control.Label;
-import javafx.scene.image.Image;
-import javafx.scene.image.ImageView;
-import javafx.scene.layout.FlowPane;
 
 import java.util.ArrayList;
 
@@ -40,231 +32,325 @@ public class DataProcessor implements Runnable
             setSettings(WildChat.uiSettings);
     }
 
-    public static FlowPane formatMessage(ArrayList<Image> badges, String displayName,
-                                         String color, ArrayList<Node> msgData, boolean isWhisper)
+    public void run()
     {
-        FlowPane holder = new FlowPane();
-        Label userName = null, messagePreAppen = new Label(WildChat.uiSettings.getMessagePrefix()),
-                messageSeperator = new Label(":");
+        if (data == null)
+            return;
 
-        messagePreAppen.setStyle("-fx-font-size:" + getMessageFontSize() + ";" +
-                "-fx-text-fill: " + getTextFill() + ";");
-        messageSeperator.setStyle("-fx-font-size: " + getMessageFontSize() + ";" +
-                "-fx-text-fill: " + getTextFill() + ";");
+        log(data);
 
-        holder.setOrientation(Orientation.HORIZONTAL);
-        holder.setHgap(WildChat.messageFontSize * 0.33);
-        holder.getChildren().add(messagePreAppen);
+        if (dataHandler.isLocalMessage())
+        {
+            handleLocalMessage();
+            return;
+        }
 
-        // Add badges
-        if (badges != null)
+        // Lines about a channel we haven't joined (or already left) are dropped,
+        // everything else goes to that channel's session
+        final String channel = dataHandler.getChannel();
+        final Session session = WildChat.sessions.get(channel);
+        if (channel != null && session == null)
         {
-            for (Image icon : badges)
-            {
-                ImageView img = new ImageView(icon);
-                holder.getChildren().add(img);
-            }
+            log("Dropping line for " + channel + ", no session open for it");
+            return;
         }
 
-        // Add display name with color effects
-        if (displayName != null)
+        switch (dataHandler.getCommand())
         {
-            userName = new Label(displayName);
+            case PRIVMSG:
+                handlePrivMsg(session);
+                break;
+            case WHISPER:
+                handleWhisper();
+                break;
+            case USERSTATE:
+                handleUserState(channel, session);
+                break;
+            case GLOBALUSERSTATE:
+                handleGlobalUserState();
+                break;
+            case WELCOME:
+                handleWelcome();
+                break;
+            case ROOMSTATE:
+                handleRoomState(channel, session);
+                break;
+            case JOIN:
+                handleJoin(channel, session);
+                break;
+            case PART:
+                handlePart(session);
+                break;
+            case NAMES:
+                handleNames(session);
+                break;
+            case END_OF_NAMES:
+                handleEndOfNames(session);
+                break;
+            case CLEARCHAT:
+                handleClearChat(session);
+                break;
+            case CLEARMSG:
+                handleClearMsg(session);
+                break;
+            case USERNOTICE:
+                handleUserNotice(session);
+                break;
+            case HOSTTARGET:
+                handleHostTarget(session);
+                break;
+            case NOTICE:
+                handleNotice(session);
+                break;
+            case RECONNECT:
+                handleReconnect();
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void handlePrivMsg(Session session)
+    {
+        if (session == null || !session.isJoined())
+            return;
 
-            if (color != null)
-                userName.setStyle("-fx-font-size: " + getMessageFontSize() + ";" +
-                        "-fx-text-fill: " + color + ";");
+        log("PRIVMSG received");
+
+        // Parsed here, turned into nodes on the FX thread
+        final ChatMessage message = dataHandler.toChatMessage();
+        if (message == null)
+            return;
 
-            else
-                userName.setStyle("-fx-font-size: " + getMessageFontSize() + ";" +
-                        "-fx-text-fill: " + getTextFill() + ";");
+        session.getRosterUpdates().spoke(message);
+        WildChat.uiUpdates.post(session, message);
+    }
+
+    private void handleWhisper()
+    {
+        log("Whisper message received");
+
+        final ChatMessage message = dataHandler.toChatMessage();
+        if (message == null)
+            return;
+
+        log(message.toString());
+
+        // Whispers aren't tied to a channel, show them wherever the user is looking
+        Session active = WildChat.sessions.getActive();
+        if (active != null)
+            active.getRosterUpdates().spoke(message);
+
+        WildChat.uiUpdates.post(active, message);
+    }
 
-            holder.getChildren().addAll(userName, messageSeperator);
+    private void handleUserState(String channel, Session session)
+    {
+        if (session == null)
+            return;
+
+        log("User state update received for " + channel);
+
+        final ArrayList<String> badgeSignatures = dataHandler.getBadgeSignatures();
+        final String displayName = dataHandler.getDisplayName();
+
+        // Compute all the stuffs
+        session.setBadgeSignatures(badgeSignatures);
+        session.setClientColor(dataHandler.getUserNameColor());
+        session.setClientDisplayName(displayName);
+        session.setElevated(dataHandler.hasElevatedRateLimit());
+
+        // Once per channel, no spam twitch. Twitch no likey. Sets fill in as they arrive.
+        if (session.claimEmoteLoad())
+            WildChat.emoteSetLoader.load(dataHandler.getEmoteSetIDs(), session::addEmoteCodesAndIDs);
+
+        session.getRosterUpdates().userState(WildChat.client.getNick(), displayName, badgeSignatures);
+    }
+
+    // The channel's settings. The first one after joining also tells us its id,
+    // which is what its own badges are looked up by.
+    private void handleRoomState(String channel, Session session)
+    {
+        log("Roomstate data received");
+
+        if (session != null)
+            Badges.loadChannel(channel, dataHandler.getTag("room-id"));
+    }
+
+    // Who we are outside of any channel. Arrives once after logging in.
+    private void handleGlobalUserState()
+    {
+        log("Global user state received");
+        WildChat.sessions.setGlobalUserState(dataHandler.getUserNameColor(), dataHandler.getDisplayName());
+    }
+
+    private void handleWelcome()
+    {
+        if (!WildChat.connectionMessageReceived)
+        {
+            WildChat.connectionMessageReceived = true;
+            log("Connected to twitch.tv");
+
+            WildChat.uiUpdates.post(() -> WildChat.displayMessage("Connected to twitch.tv!"));
         }
+    }
+
+    private void handleLocalMessage()
+    {
+        log("Incorrect user credentials entered"); // only local message sent out at this time
+        WildChat.credentialsAvailable = false;
 
-        boolean isFirst = true, isAction = false;
-        for (Node node : msgData)
+        WildChat.uiUpdates.post(() ->
         {
-            if (node instanceof Label)
+            WildChat.displayMessage("Incorrect login credentials entered!");
+            WildChat.displayMessage("You must restart this application to " +
+                    "enter correct credentials for twitch.tv.");
+        });
+    }
+
+    private void handleJoin(String channel, Session session)
+    {
+        if (session == null)
+            return;
+
+        log("User join channel received");
+
+        // Compute all the stuffs
+        final String uName = dataHandler.getUserName();
+        if (uName.equalsIgnoreCase(WildChat.client.getNick()))
+        {
+            if (!session.isJoined())
             {
-                String potentialLink = ((Label) node).getText();
-                String linkBegin = null;
-                if (potentialLink.length() > 9)
-                    linkBegin = potentialLink.substring(0, 8);
-
-
-                if (isFirst)
-                {
-                    isFirst = false;
-    
-                    if (potentialLink.contains("ACTION"))
-                    {
-                        log("Action message detected");
-                        isAction = true;
-                        continue;
-                    }
-                }
-
-                if (isAction)
-                {
-                    node.setStyle("-fx-font-size: " + getMessageFontSize() + ";" +
-                            "-fx-text-fill: " + getActionColor() + ";");
-                } else if (isWhisper)
-                {
-                    node.setStyle("-fx-font-size: " + getMessageFontSize() + ";" +
-                            "-fx-text-fill: " + getWhisperTextColor() + ";");
-                } else
-                {
-                    node.setStyle("-fx-font-size: " + getMessageFontSize() + ";" +
-                            "-fx-text-fill: " + getTextFill());
-                }
-
-
-                if (linkBegin != null && (linkBegin.contains("http://") || linkBegin.contains("https://")))
-                {
-                    if (potentialLink.matches(".+"))
-                    { // Is a link
-                        log("Found link!");
-                        node.setStyle("-fx-text-fill: dodgerblue;" +
-                                "-fx-underline: true;" +
-                                "-fx-font-size: " + getUiFont() + ";");
-                        node.setOnMouseClicked(event -> BareBonesBrowserLaunch.openURL(potentialLink));
-                        node.setOnMouseEntered(event -> WildChat.userList.getScene().setCursor(Cursor.HAND));
-                        node.setOnMouseExited(event -> WildChat.userList.getScene().setCursor(Cursor.DEFAULT));
-                    }
-                }
+                session.setJoined(true);
+                WildChat.uiUpdates.postNotice(session, "Connected to " + channel + "!");
+                WildChat.uiUpdates.post(WildChat::updateTitle);
             }
+        } else
+        { session.getRosterUpdates().join(uName); }
+    }
 
-            holder.getChildren().add(node);
-        }
+    private void handlePart(Session session)
+    {
+        if (session == null)
+            return;
+
+        log("User left channel received");
 
-        return holder;
+        // Compute all the stuffs
+        session.getRosterUpdates().part(dataHandler.getUserName());
     }
 
-    public void run()
+    // Some of the users already in a channel, sent after we join it
+    private void handleNames(Session session)
     {
-        if (data == null)
+        if (session == null)
             return;
 
-        log(data);
+        session.getRosterUpdates().names(dataHandler.getTrailing());
+    }
 
-        if (dataHandler.isPrivMsg())
-        {
-            if (!WildChat.connectedToChannel)
-                return;
+    private void handleEndOfNames(Session session)
+    {
+        if (session != null)
+            session.getRosterUpdates().endOfNames();
+    }
 
-            log("PRIVMSG received");
+    // A timeout or ban for one user, or the whole chat being cleared
+    private void handleClearChat(Session session)
+    {
+        if (session == null)
+            return;
 
-            // Compute all the stuffs
-            final String displayName = dataHandler.getDisplayName();
-            final String uName = dataHandler.getUserName();
-            final String uColor = dataHandler.getUserNameColor();
-            final ArrayList<Node> msgData = dataHandler.getPrivMsgData();
-            final ArrayList<Image> badges = dataHandler.getBadges();
+        log("Clear chat received");
 
-            final FlowPane holder = formatMessage(badges, displayName, uColor, msgData, false);
+        final String target = dataHandler.getTrailing();
+        final String duration = dataHandler.getTag("ban-duration");
+        final String notice;
 
-            Platform.runLater(() ->
-            {
-                WildChat.userList.addUser(uName, badges);
-                WildChat.displayMessage(holder);
-            });
+        if (target == null)
+            notice = "Chat was cleared by a moderator";
+        else if (duration == null)
+            notice = target + " has been banned";
+        else
+            notice = target + " has been timed out for " + duration + " second(s)";
 
-        } else if (dataHandler.isWhisperMsg())
-        {
-            log("Whisper message received");
+        if (target == null)
+            WildChat.uiUpdates.post(() -> session.getMessages().clear());
 
-            // Compute all the stuffs
-            final String displayName = dataHandler.getDisplayName();
-            final String uName = dataHandler.getUserName();
-            final String uColor = dataHandler.getUserNameColor();
-            final ArrayList<Node> msgData = dataHandler.getWhisperMsgData();
-            final ArrayList<Image> badges = dataHandler.getBadges();
+        WildChat.uiUpdates.postNotice(session, notice);
+    }
 
-            log(displayName);
-            log(uName);
-            log(uColor);
-            log(msgData.toString());
-            log(badges.toString());
+    // A single message was deleted by a moderator
+    private void handleClearMsg(Session session)
+    {
+        if (session == null)
+            return;
 
-            final FlowPane holder = formatMessage(badges, displayName, uColor, msgData, true);
+        log("Clear message received");
 
-            log(holder.toString());
+        final String notice = "A message from " + dataHandler.getTag("login") + " was deleted: " +
+                dataHandler.getTrailing();
 
-            Platform.runLater(() ->
-            {
-                WildChat.userList.addUser(uName, badges);
-                WildChat.displayMessage(holder);
-            });
+        WildChat.uiUpdates.postNotice(session, notice);
+    }
 
-        } else if (dataHandler.isUserStateUpdate())
-        {
-            log("User state update received");
+    // Subs, resubs, gift subs, raids, rituals...
+    private void handleUserNotice(Session session)
+    {
+        if (session == null || !session.isJoined())
+            return;
 
-            // Compute all the stuffs
-            final ArrayList<Image> badges = dataHandler.getBadges();
-            final String displayName = dataHandler.getDisplayName();
+        log("User notice received: " + dataHandler.getTag("msg-id"));
 
-            // Compute all the stuffs
-            WildChat.session.setBadgeSignatures(dataHandler.getBadgeSignatures());
-            WildChat.session.setClientColor(dataHandler.getUserNameColor());
-            WildChat.session.setClientDisplayName(dataHandler.getDisplayName());
-            WildChat.hasUserState = true;
+        final String systemMessage = dataHandler.getTag("system-msg");
+        // The message the user chose to share along with it, if any
+        final ChatMessage message = dataHandler.toChatMessage();
 
-            log("Map Set: " + WildChat.session.isMapSet());
-            if (!WildChat.session.isMapSet()) // No spam twitch. Twitch no likey
-            { WildChat.session.setEmoteCodesAndIDs(dataHandler.getEmoteCodesAndIDs()); }
+        if (systemMessage != null && !systemMessage.isEmpty())
+            WildChat.uiUpdates.postNotice(session, systemMessage);
 
-            Platform.runLater(() -> WildChat.userList.addUser(displayName, badges));
-        } else if (dataHandler.isSuccessfulConnectMsg())
-        {
-            if (!WildChat.connectionMessageReceived)
-            {
-                WildChat.connectionMessageReceived = true;
-                log("Connected to twitch.tv");
+        if (message != null)
+            WildChat.uiUpdates.post(session, message);
+    }
 
-                Platform.runLater(() -> WildChat.displayMessage("Connected to twitch.tv!"));
-            }
-        } else if (dataHandler.isLocalMessage())
-        {
-            log("Incorrect user credentials entered"); // only local message sent out at this time
-            WildChat.credentialsAvailable = false;
+    private void handleHostTarget(Session session)
+    {
+        if (session == null)
+            return;
 
-            Platform.runLater(() ->
-            {
-                WildChat.displayMessage("Incorrect login credentials entered!");
-                WildChat.displayMessage("You must restart this application to " +
-                        "enter correct credentials for twitch.tv.");
-            });
-        } else if (dataHandler.isRoomstateData())
-        {
-            log("Roomstate data received");
+        // "target viewers", target is "-" when hosting stops
+        String trailing = dataHandler.getTrailing();
+        if (trailing == null)
+            return;
 
-        } else if (dataHandler.isUserJoinMsg())
-        {
-            log("User join channel received");
+        int targetEnd = trailing.indexOf(' ');
+        final String target = (targetEnd < 0) ? trailing : trailing.substring(0, targetEnd);
+        log("Host target received: " + target);
 
-            // Compute all the stuffs
-            final String uName = dataHandler.getUserName();
-            if (!WildChat.connectedToChannel)
-            {
-                WildChat.connectedToChannel = true;
-                Platform.runLater(() ->
-                {
-                    WildChat.displayMessage("Connected to " + Session.getChannel() + "!") ;
-                    WildChat.title.set("WildChat - " + WildChat.VERSION + " - " + Session.getChannel());
-                });
-            }
+        WildChat.uiUpdates.postNotice(session, target.equals("-")
+                                               ? "Stopped hosting"
+                                               : "Now hosting " + target);
+    }
 
-            if (!uName.equals(WildChat.client.getNick()))
-            { Platform.runLater(() -> WildChat.userList.addUser(uName)); }
-        } else if (dataHandler.isUserLeaveMsg())
-        {
-            log("User left channel received");
+    private void handleNotice(Session session)
+    {
+        final String notice = dataHandler.getTrailing();
+        if (notice == null)
+            return;
 
-            // Compute all the stuffs
-            final String uName = dataHandler.getUserName();
-            Platform.runLater(() -> WildChat.userList.removeUser(uName));
-        }
+        log("Notice received: " + dataHandler.getTag("msg-id"));
+
+        // Channel notices go to that channel, the rest to whatever is on screen
+        if (session != null)
+            WildChat.uiUpdates.postNotice(session, notice);
+        else
+            WildChat.uiUpdates.post(() -> WildChat.displayMessage(notice));
+    }
+
+    // Twitch is about to restart the server we're on
+    private void handleReconnect()
+    {
+        log("Twitch asked us to reconnect");
+        WildChat.socketRunner.requestReconnect();
     }
 }
@@ -0,0 +1,658 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.http.Header;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static logUtils.Logger.log;
+
+// Emote and badge images kept on disk between runs, so a restart doesn't download
+// every image again.
+//
+// Files are named by the SHA-256 of what's in them and live in objects/, an index
+// file maps each URL to its file along with the ETag and Last-Modified the server
+// sent. An image we have is read by memory mapping its file, no network involved.
+// Once an entry is older than revalidateAfter it is fetched again conditionally,
+// which costs a 304 when nothing changed. Past maxBytes the least recently used
+// entries are deleted.
+//
+// Nothing here touches JavaFX, callers turn the bytes into Images. Safe to use from
+// any number of threads.
+public class DiskImageCache
+{
+    static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+    // Emote and badge images don't change once they're up, this is just in case
+    static final long DEFAULT_REVALIDATE_AFTER = TimeUnit.DAYS.toMillis(30);
+    static final int DEFAULT_FETCHERS = 4;
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000, READ_TIMEOUT_MILLIS = 10000;
+    // Write the index out after this many changes, and on close
+    private static final int SAVE_EVERY = 32;
+    private static final String INDEX_FILE = "index", OBJECTS_DIR = "objects", NONE = "-";
+
+    private static final class Record
+    {
+        private final String hash;
+        private final long size;
+        private final String etag, lastModified;
+        private volatile long fetchedAt;
+
+        private Record(String hash, long size, String etag, String lastModified, long fetchedAt)
+        {
+            this.hash = hash;
+            this.size = size;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.fetchedAt = fetchedAt;
+        }
+    }
+
+    private final Path dir, objects, indexFile;
+    private final long maxBytes, revalidateAfter;
+    private final boolean usable;
+
+    // By URL, least recently used first. Guarded by this, along with everything
+    // after it.
+    private final LinkedHashMap<String, Record> index = new LinkedHashMap<>(256, 0.75f, true);
+    // How many URLs point at each file
+    private final HashMap<String, Integer> references = new HashMap<>();
+    // Of the files, so content shared by several URLs counts once
+    private long totalBytes = 0;
+    private int unsaved = 0;
+
+    private final ConcurrentHashMap<String, CompletableFuture<ByteBuffer>> inFlight = new ConcurrentHashMap<>();
+    private final Object saveLock = new Object();
+    private final ExecutorService fetchers;
+    private final CloseableHttpClient http;
+
+    private final LongAdder diskHits = new LongAdder(), downloads = new LongAdder(),
+            notModified = new LongAdder(), failures = new LongAdder(), evictions = new LongAdder();
+
+    public DiskImageCache(File dir)
+    {
+        this(dir, DEFAULT_MAX_BYTES, DEFAULT_REVALIDATE_AFTER, DEFAULT_FETCHERS);
+    }
+
+    public DiskImageCache(File dir, long maxBytes, long revalidateAfter, int fetcherCount)
+    {
+        if (maxBytes < 1 || fetcherCount < 1)
+            throw new IllegalArgumentException("Need a maxBytes and fetcherCount of at least 1. Received: " +
+                    maxBytes + ", " + fetcherCount);
+
+        this.dir = dir.toPath();
+        this.objects = this.dir.resolve(OBJECTS_DIR);
+        this.indexFile = this.dir.resolve(INDEX_FILE);
+        this.maxBytes = maxBytes;
+        this.revalidateAfter = revalidateAfter;
+
+        boolean canStore;
+        try
+        {
+            Files.createDirectories(objects);
+            canStore = true;
+        } catch (IOException e)
+        {
+            log("Can't use " + objects + " for images, they won't be kept between runs: " + e);
+            canStore = false;
+        }
+        this.usable = canStore;
+
+        if (usable)
+            loadIndex();
+
+        AtomicInteger count = new AtomicInteger();
+        fetchers = Executors.newFixedThreadPool(fetcherCount, task ->
+        {
+            Thread fetcher = new Thread(task, "imageFetcher-" + count.incrementAndGet());
+            fetcher.setDaemon(true);
+            return fetcher;
+        });
+
+        http = HttpClients.custom()
+                .useSystemProperties()
+                .setMaxConnPerRoute(fetcherCount)
+                .setMaxConnTotal(fetcherCount * 2)
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectTimeout(CONNECT_TIMEOUT_MILLIS)
+                        .setSocketTimeout(READ_TIMEOUT_MILLIS)
+                        .build())
+                .build();
+    }
+
+    // What we have on disk for url, mapped into memory. null if we don't have it or
+    // it's due for a revalidation, fetch() it then. Never touches the network.
+    public ByteBuffer lookup(String url)
+    {
+        Record record;
+        synchronized (this)
+        {
+            record = index.get(url);
+        }
+
+        if (record == null || System.currentTimeMillis() - record.fetchedAt > revalidateAfter)
+            return null;
+
+        ByteBuffer bytes = map(record);
+        if (bytes != null)
+            diskHits.increment();
+
+        return bytes;
+    }
+
+    // What url points at, from disk if we have it and from the server if we don't.
+    // Blocks, so not for the FX thread. null if it can't be had.
+    public ByteBuffer fetch(String url)
+    {
+        ByteBuffer bytes = lookup(url);
+        if (bytes != null)
+            return bytes;
+
+        Record stale;
+        synchronized (this)
+        {
+            stale = index.get(url);
+        }
+
+        try
+        {
+            return download(url, stale);
+        } catch (IOException | RuntimeException e)
+        {
+            failures.increment();
+            log("Failed to get " + url + ": " + e);
+
+            // Better an old image than none
+            return (stale == null) ? null : map(stale);
+        }
+    }
+
+    // fetch() on one of our threads. Asking again for a url that's already on its
+    // way gets the same future.
+    public CompletableFuture<ByteBuffer> fetchAsync(String url)
+    {
+        CompletableFuture<ByteBuffer> pending = inFlight.get(url);
+        if (pending != null)
+            return pending;
+
+        CompletableFuture<ByteBuffer> created = new CompletableFuture<>();
+        pending = inFlight.putIfAbsent(url, created);
+        if (pending != null)
+            return pending;
+
+        fetchers.execute(() ->
+        {
+            try
+            {
+                created.complete(fetch(url));
+            } catch (Throwable t)
+            {
+                created.completeExceptionally(t);
+            } finally
+            {
+                inFlight.remove(url, created);
+            }
+        });
+
+        return created;
+    }
+
+    // Runs a request that isn't for an image, like an API call that says which images
+    // there are, on our threads and client so it gets the same timeouts and pooled
+    // connections. Completes with whatever handler makes of the response.
+    public <T> CompletableFuture<T> execute(HttpUriRequest request, ResponseHandler<? extends T> handler)
+    {
+        CompletableFuture<T> result = new CompletableFuture<>();
+
+        try
+        {
+            fetchers.execute(() ->
+            {
+                try
+                {
+                    result.complete(http.execute(request, handler));
+                } catch (Throwable t)
+                {
+                    result.completeExceptionally(t);
+                }
+            });
+        } catch (RejectedExecutionException e)
+        {
+            result.completeExceptionally(e);
+        }
+
+        return result;
+    }
+
+    // Gets everything in urls onto disk in the background, for images we know we
+    // will want before anybody asks for them
+    public void prefetch(Collection<String> urls)
+    {
+        for (String url : urls)
+            if (lookup(url) == null)
+                fetchAsync(url);
+    }
+
+    private ByteBuffer download(String url, Record stale) throws IOException
+    {
+        HttpGet request = new HttpGet(url);
+        boolean haveFile = stale != null && Files.isRegularFile(objects.resolve(stale.hash));
+        if (haveFile)
+        {
+            if (stale.etag != null)
+                request.addHeader("If-None-Match", stale.etag);
+            if (stale.lastModified != null)
+                request.addHeader("If-Modified-Since", stale.lastModified);
+        }
+
+        try (CloseableHttpResponse response = http.execute(request))
+        {
+            int status = response.getStatusLine().getStatusCode();
+
+            if (status == HttpStatus.SC_NOT_MODIFIED && haveFile)
+            {
+                EntityUtils.consumeQuietly(response.getEntity());
+                notModified.increment();
+                stale.fetchedAt = System.currentTimeMillis();
+                changed();
+                return map(stale);
+            }
+
+            if (status != HttpStatus.SC_OK || response.getEntity() == null)
+            {
+                EntityUtils.consumeQuietly(response.getEntity());
+                throw new IOException("HTTP " + status);
+            }
+
+            byte[] content = EntityUtils.toByteArray(response.getEntity());
+            downloads.increment();
+
+            store(url, content, header(response, "ETag"), header(response, "Last-Modified"));
+            return ByteBuffer.wrap(content).asReadOnlyBuffer();
+        }
+    }
+
+    private static String header(CloseableHttpResponse response, String name)
+    {
+        Header header = response.getFirstHeader(name);
+        return (header == null || header.getValue().isEmpty()) ? null : header.getValue();
+    }
+
+    private void store(String url, byte[] content, String etag, String lastModified) throws IOException
+    {
+        if (!usable)
+            return;
+
+        String hash = hash(content);
+        Path file = objects.resolve(hash);
+
+        // Same content under another URL is already there
+        if (!Files.isRegularFile(file))
+        {
+            Path temp = Files.createTempFile(objects, hash, ".part");
+            try
+            {
+                Files.write(temp, content);
+                move(temp, file);
+            } finally
+            {
+                Files.deleteIfExists(temp);
+            }
+        }
+
+        ArrayList<String> unreferenced = new ArrayList<>();
+        synchronized (this)
+        {
+            Record old = index.put(url, new Record(hash, content.length, etag, lastModified,
+                    System.currentTimeMillis()));
+            reference(hash, content.length);
+
+            if (old != null)
+                forget(old, unreferenced);
+
+            Iterator<Map.Entry<String, Record>> oldestFirst = index.entrySet().iterator();
+            while (totalBytes > maxBytes && oldestFirst.hasNext())
+            {
+                Map.Entry<String, Record> eldest = oldestFirst.next();
+                if (eldest.getKey().equals(url))
+                    continue;
+
+                oldestFirst.remove();
+                forget(eldest.getValue(), unreferenced);
+                evictions.increment();
+            }
+        }
+
+        for (String orphan : unreferenced)
+            delete(orphan);
+
+        changed();
+    }
+
+    // Memory maps record's file. null if it went missing, it's dropped then.
+    private ByteBuffer map(Record record)
+    {
+        try (FileChannel channel = FileChannel.open(objects.resolve(record.hash), StandardOpenOption.READ))
+        {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException e)
+        {
+            log("Lost cached image " + record.hash + ": " + e);
+            dropRecordsFor(record.hash);
+            return null;
+        }
+    }
+
+    private void dropRecordsFor(String hash)
+    {
+        synchronized (this)
+        {
+            ArrayList<String> ignored = new ArrayList<>();
+            Iterator<Record> records = index.values().iterator();
+            while (records.hasNext())
+            {
+                Record record = records.next();
+                if (record.hash.equals(hash))
+                {
+                    records.remove();
+                    forget(record, ignored);
+                }
+            }
+        }
+
+        changed();
+    }
+
+    // Guarded by this
+    private void reference(String hash, long size)
+    {
+        if (references.merge(hash, 1, Integer::sum) == 1)
+            totalBytes += size;
+    }
+
+    // Guarded by this. Adds record's file to unreferenced if nothing points at it anymore.
+    private void forget(Record record, ArrayList<String> unreferenced)
+    {
+        Integer count = references.get(record.hash);
+        if (count == null || count <= 1)
+        {
+            if (references.remove(record.hash) != null)
+                totalBytes -= record.size;
+
+            unreferenced.add(record.hash);
+        } else
+            references.put(record.hash, count - 1);
+    }
+
+    private void delete(String hash)
+    {
+        // A mapped file can't be deleted on Windows, loadIndex() gets it next time
+        try
+        {
+            Files.deleteIfExists(objects.resolve(hash));
+        } catch (IOException e)
+        {
+            log("Could not delete cached image " + hash + ": " + e);
+        }
+    }
+
+    private void changed()
+    {
+        boolean save;
+        synchronized (this)
+        {
+            save = ++unsaved >= SAVE_EVERY;
+        }
+
+        if (save)
+            save();
+    }
+
+    // One line per URL, least recently used first:
+    // url \t hash \t size \t fetchedAt \t etag \t lastModified
+    private void loadIndex()
+    {
+        if (Files.isRegularFile(indexFile))
+        {
+            try (BufferedReader in = Files.newBufferedReader(indexFile, StandardCharsets.UTF_8))
+            {
+                String line;
+                while ((line = in.readLine()) != null)
+                {
+                    String[] fields = line.split("\t", -1);
+                    if (fields.length != 6 || !Files.isRegularFile(objects.resolve(fields[1])))
+                        continue;
+
+                    try
+                    {
+                        Record record = new Record(fields[1], Long.parseLong(fields[2]), orNull(fields[4]),
+                                orNull(fields[5]), Long.parseLong(fields[3]));
+
+                        Record old = index.put(fields[0], record);
+                        if (old != null)
+                            forget(old, new ArrayList<>());
+
+                        reference(record.hash, record.size);
+                    } catch (NumberFormatException e)
+                    {
+                        log("Skipping bad image cache entry: " + line);
+                    }
+                }
+            } catch (IOException e)
+            {
+                log("Could not read " + indexFile + ", starting with an empty image cache: " + e);
+                index.clear();
+                references.clear();
+                totalBytes = 0;
+            }
+        }
+
+        // Files nothing points at anymore, left over from a crash or a failed delete
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(objects))
+        {
+            for (Path file : files)
+                if (!references.containsKey(file.getFileName().toString()))
+                    Files.deleteIfExists(file);
+        } catch (IOException e)
+        {
+            log("Could not clean up " + objects + ": " + e);
+        }
+
+        log("Image cache: " + index.size() + " images, " + totalBytes + " bytes in " + dir);
+    }
+
+    // Writes the index out, to a temp file first so a crash can't leave half of one
+    public void save()
+    {
+        if (!usable)
+            return;
+
+        StringBuilder lines = new StringBuilder();
+        synchronized (this)
+        {
+            for (Map.Entry<String, Record> entry : index.entrySet())
+            {
+                Record record = entry.getValue();
+                lines.append(entry.getKey()).append('\t')
+                        .append(record.hash).append('\t')
+                        .append(record.size).append('\t')
+                        .append(record.fetchedAt).append('\t')
+                        .append((record.etag == null) ? NONE : record.etag).append('\t')
+                        .append((record.lastModified == null) ? NONE : record.lastModified).append('\n');
+            }
+
+            unsaved = 0;
+        }
+
+        try
+        {
+            Path temp = Files.createTempFile(dir, INDEX_FILE, ".part");
+            try
+            {
+                try (BufferedWriter out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8))
+                {
+                    out.write(lines.toString());
+                }
+
+                synchronized (saveLock)
+                {
+                    move(temp, indexFile);
+                }
+            } finally
+            {
+                Files.deleteIfExists(temp);
+            }
+        } catch (IOException e)
+        {
+            log("Could not write " + indexFile + ": " + e);
+        }
+    }
+
+    public void close()
+    {
+        fetchers.shutdownNow();
+        save();
+
+        try
+        {
+            http.close();
+        } catch (IOException e)
+        {
+            log(e.getMessage());
+        }
+    }
+
+    private static void move(Path from, Path to) throws IOException
+    {
+        try
+        {
+            Files.move(from, to, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e)
+        {
+            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static String orNull(String field)
+    {
+        return (field.isEmpty() || field.equals(NONE)) ? null : field;
+    }
+
+    private static String hash(byte[] content)
+    {
+        try
+        {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest)
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e)
+        {
+            // Every JVM has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Reads bytes from where they are to where they end, without copying them first.
+    // For handing what lookup() and fetch() return to an Image.
+    public static InputStream stream(ByteBuffer bytes)
+    {
+        ByteBuffer source = bytes.duplicate();
+
+        return new InputStream()
+        {
+            @Override
+            public int read()
+            {
+                return source.hasRemaining() ? source.get() & 0xFF : -1;
+            }
+
+            @Override
+            public int read(byte[] into, int offset, int length)
+            {
+                if (length == 0)
+                    return 0;
+                if (!source.hasRemaining())
+                    return -1;
+
+                int count = Math.min(length, source.remaining());
+                source.get(into, offset, count);
+                return count;
+            }
+
+            @Override
+            public int available()
+            {
+                return source.remaining();
+            }
+        };
+    }
+
+    public synchronized int size()
+    {
+        return index.size();
+    }
+
+    public synchronized long getBytes()
+    {
+        return totalBytes;
+    }
+
+    @Override
+    public String toString()
+    {
+        return size() + " images, " + getBytes() + "/" + maxBytes + " bytes, " + diskHits.sum() +
+                " read from disk, " + downloads.sum() + " downloaded, " + notModified.sum() + " revalidated, " +
+                failures.sum() + " failed, " + evictions.sum() + " evicted";
+    }
+}
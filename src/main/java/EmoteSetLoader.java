@@ -0,0 +1,284 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.google.gson.stream.JsonReader;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static logUtils.Logger.log;
+
+// Gets the emotes in our emote sets, which USERSTATE lists by id. Every set is its
+// own request, so they all go out at once, at most maxConcurrent at a time over one
+// pooled client, and each set is handed over as soon as it's in. Nothing waits on
+// all of them, least of all the dispatcher worker that saw the USERSTATE.
+//
+// Sets that aren't in by timeout are given up on.
+public class EmoteSetLoader
+{
+    static final int DEFAULT_MAX_CONCURRENT = 6;
+    static final long DEFAULT_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(15);
+
+    private final String urlFormat;
+    private final int maxConcurrent;
+    private final long timeoutMillis;
+    private final ExecutorService requests;
+    private final CloseableHttpClient http;
+
+    public EmoteSetLoader()
+    {
+        this(HandleData.EMOTE_SET_DOWNLOAD_URL, DEFAULT_MAX_CONCURRENT, DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    // urlFormat has a %s for the set id
+    public EmoteSetLoader(String urlFormat, int maxConcurrent, long timeoutMillis)
+    {
+        if (maxConcurrent < 1 || timeoutMillis < 1)
+            throw new IllegalArgumentException("Need a maxConcurrent and timeoutMillis of at least 1. Received: " +
+                    maxConcurrent + ", " + timeoutMillis);
+
+        this.urlFormat = urlFormat;
+        this.maxConcurrent = maxConcurrent;
+        this.timeoutMillis = timeoutMillis;
+
+        AtomicInteger count = new AtomicInteger();
+        requests = Executors.newFixedThreadPool(maxConcurrent, task ->
+        {
+            Thread request = new Thread(task, "emoteSetLoader-" + count.incrementAndGet());
+            request.setDaemon(true);
+            return request;
+        });
+
+        int timeout = (int) Math.min(timeoutMillis, Integer.MAX_VALUE);
+        http = HttpClients.custom()
+                .useSystemProperties()
+                .setMaxConnPerRoute(maxConcurrent)
+                .setMaxConnTotal(maxConcurrent)
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectTimeout(timeout)
+                        .setConnectionRequestTimeout(timeout)
+                        .setSocketTimeout(timeout)
+                        .build())
+                .build();
+    }
+
+    // Fetches every set in setIDs and gives each one's codes and ids to whenLoaded,
+    // from one of our threads, as it comes in. The future completes once every set
+    // is in, failed or timed out, with how many sets made it.
+    public CompletableFuture<Integer> load(Collection<String> setIDs, Consumer<Map<String, String>> whenLoaded)
+    {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        AtomicInteger loaded = new AtomicInteger();
+        ArrayList<CompletableFuture<Void>> sets = new ArrayList<>(setIDs.size());
+
+        for (String setID : setIDs)
+        {
+            sets.add(CompletableFuture.runAsync(() ->
+            {
+                // Waited in line past the deadline
+                if (System.currentTimeMillis() > deadline)
+                {
+                    log("Gave up on emote set " + setID + ", out of time");
+                    return;
+                }
+
+                Map<String, String> emotes = fetch(setID);
+                if (emotes != null)
+                {
+                    whenLoaded.accept(emotes);
+                    loaded.incrementAndGet();
+                }
+            }, requests));
+        }
+
+        long start = System.nanoTime();
+        return CompletableFuture.allOf(sets.toArray(new CompletableFuture<?>[0])).handle((done, error) ->
+        {
+            log("Loaded " + loaded.get() + "/" + sets.size() + " emote sets in " +
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms, " + maxConcurrent + " at a time");
+            return loaded.get();
+        });
+    }
+
+    // One set's codes and ids, null if we couldn't get it
+    private Map<String, String> fetch(String setID)
+    {
+        String url = String.format(urlFormat, setID);
+        log("Emote set: " + setID + " Get link: " + url);
+
+        HttpGet request = new HttpGet(url);
+        request.addHeader("Accept", "application/vnd.twitchtv.v5+json");
+        request.addHeader("Client-ID", HandleData.CLIENT_ID);
+
+        try (CloseableHttpResponse response = http.execute(request))
+        {
+            if (response.getStatusLine().getStatusCode() != 200 || response.getEntity() == null)
+            {
+                EntityUtils.consumeQuietly(response.getEntity());
+                log("Emote set " + setID + ": " + response.getStatusLine());
+                return null;
+            }
+
+            HttpEntity entity = response.getEntity();
+            Charset charset = ContentType.getOrDefault(entity).getCharset();
+            HashMap<String, String> emotes = new HashMap<>();
+
+            try (Reader json = new InputStreamReader(entity.getContent(),
+                    (charset == null) ? StandardCharsets.UTF_8 : charset))
+            {
+                log("Finished getting " + parse(json, emotes) + " emotes for: " + setID);
+            }
+
+            return emotes;
+        } catch (IOException | RuntimeException e)
+        {
+            log("Failed to get emote set " + setID + ": " + e);
+            return null;
+        }
+    }
+
+    // {"emoticon_sets": {"<setID>": [{"code": "Kappa", "id": 25}, ...]}}
+    //
+    // Read as it streams in, each code and id going straight into into. No tree, and
+    // no String of the whole body, which for the big sets is most of a megabyte.
+    // Returns how many emotes it read.
+    static int parse(Reader json, Map<String, String> into) throws IOException
+    {
+        JsonReader reader = new JsonReader(json);
+        int count = 0;
+
+        reader.beginObject();
+        while (reader.hasNext())
+        {
+            if (!reader.nextName().equals("emoticon_sets"))
+            {
+                reader.skipValue();
+                continue;
+            }
+
+            reader.beginObject();
+            while (reader.hasNext())
+            {
+                reader.nextName();
+                reader.beginArray();
+                while (reader.hasNext())
+                {
+                    String id = null, code = null;
+
+                    reader.beginObject();
+                    while (reader.hasNext())
+                    {
+                        switch (reader.nextName())
+                        {
+                            case "id":
+                                // A number, which nextString() hands over as written
+                                id = reader.nextString();
+                                break;
+                            case "code":
+                                code = reader.nextString();
+                                break;
+                            default:
+                                reader.skipValue();
+                                break;
+                        }
+                    }
+                    reader.endObject();
+
+                    if (id != null && code != null)
+                    {
+                        into.put(fixCode(id, code), id);
+                        count++;
+                    }
+                }
+                reader.endArray();
+            }
+            reader.endObject();
+        }
+        reader.endObject();
+
+        return count;
+    }
+
+    // The API sends the smileys as regexes, this is what people actually type
+    static String fixCode(String id, String code)
+    {
+        switch (id)
+        {
+            case "4":
+                return ">(";
+            case "8":
+                return ":o";
+            case "3":
+                return ":D";
+            case "14":
+                return "R)";
+            case "11":
+                return ";)";
+            case "9":
+                return "<3";
+            case "13":
+                return ";p";
+            case "12":
+                return ":p";
+            case "2":
+                return ":(";
+            case "1":
+                return ":)";
+            case "5":
+                return ":z";
+            case "7":
+                return "B)";
+            case "6":
+                return "o_O";
+            case "10":
+                return ":\\";
+            default:
+                return code;
+        }
+    }
+
+    public void close()
+    {
+        requests.shutdownNow();
+
+        try
+        {
+            http.close();
+        } catch (IOException e)
+        {
+            log(e.getMessage());
+        }
+    }
+}
@@ -14,33 +14,59 @@
 
 import javafx.scene.image.Image;
 
-import java.util.ArrayList;
+import java.util.function.Consumer;
 
+// Every emote image we have, by emote id. Kept in memory here, and on disk in
+// WildChat.imageCache so the next run has them too.
 public class Emotes
 {
-    private static ArrayList<Image> downloadedEmotes = new ArrayList<>();
+    // Roughly 10000 28x28 emotes
+    static final long DEFAULT_MAX_BYTES = 32L * 1024 * 1024;
 
-    private static ArrayList<String> emoteIDAtIndex = new ArrayList<>();
+    private static final ImageLoader loader = new ImageLoader("emote");
+    // Loading entries stand in for emotes until they're read off disk or downloaded
+    private static final BoundedCache<Image> cache =
+            new BoundedCache<>(emoteID -> loader.load(url(emoteID)), Emotes::weigh, DEFAULT_MAX_BYTES);
 
     // Prevent instantiation
     private Emotes() {}
 
-    public static void cacheEmote(Image emote, String emoteID)
+    // The emote's image if we have it in memory. null if it has to be read or
+    // downloaded first, whenLoaded() does that.
+    public static Image getEmote(String emoteID)
+    {
+        return (emoteID == null) ? null : cache.getIfPresent(emoteID);
+    }
+
+    // Loads the emote and hands it to action on the FX thread. action never runs if
+    // the load fails.
+    public static void whenLoaded(String emoteID, Consumer<Image> action)
     {
-        if (!emoteIDAtIndex.contains(emoteID))
+        cache.get(emoteID).thenAccept(loaded ->
         {
-            downloadedEmotes.add(emote);
-            emoteIDAtIndex.add(emoteID);
-        }
+            if (loaded != null)
+                WildChat.uiUpdates.post(() -> action.accept(loaded));
+        });
     }
 
-    public static boolean hasEmote(String emoteID)
+    public static BoundedCache<Image> getCache()
     {
-        return emoteID != null && emoteIDAtIndex.contains(emoteID);
+        return cache;
     }
 
-    public static Image getEmote(String emoteID)
+    public static ImageLoader getLoader()
+    {
+        return loader;
+    }
+
+    private static String url(String emoteID)
+    {
+        return String.format(HandleData.EMOTE_DOWNLOAD_URL, emoteID);
+    }
+
+    // Bytes of pixels
+    private static long weigh(Image emote)
     {
-        return downloadedEmotes.get(emoteIDAtIndex.indexOf(emoteID));
+        return (long) emote.getWidth() * (long) emote.getHeight() * 4;
     }
 }
@@ -12,25 +12,7 @@
  * limitations under the License.
  */
 
-import com.google.gson.Gson;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import javafx.scene.Node;
-import javafx.scene.control.Label;
-import javafx.scene.image.Image;
-import javafx.scene.image.ImageView;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.util.EntityUtils;
-
-import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Random;
 
 import static logUtils.Logger.log;
 
@@ -39,274 +21,101 @@ public class HandleData
     public static final String CLIENT_ID = "fb7mlvnq5fgh7isjrx0ce14f27f6nq",
             EMOTE_DOWNLOAD_URL = "http://static-cdn.jtvnw.net/emoticons/v1/%s/1.0",
             EMOTE_SET_DOWNLOAD_URL = "https://api.twitch.tv/kraken/chat/emoticon_images?emotesets=%s";
-    private final char[] RAW_DATA;
     private String data = null;
-    private boolean isPrivMsg = false,
-            isWhisper = false,
-            isUserJoinMsg = false,
-            isUserLeaveMsg = false,
-            isSuccessfulConnectMsg = false,
-            isUserStateUpdate = false,
-            hasEmoteData = false,
-            isRoomstateData = false,
+    // Where the tags, prefix, command and params sit in data
+    private final IrcMessage message = new IrcMessage();
+    private IrcCommand command = IrcCommand.UNKNOWN;
+    private boolean hasEmoteData = false,
             isLocalMessage = false;
 
     public HandleData(String data)
     {
         this.data = data;
-        RAW_DATA = data.toCharArray();
+        message.parse(data);
         determineMessageType();
     }
 
     private void determineMessageType()
     {
-        if ( ! ((isPrivMsg = data.contains("PRIVMSG")) || (isWhisper = data.contains("WHISPER"))))
-        {
-            isUserJoinMsg = data.contains("JOIN");
-            isUserLeaveMsg = data.contains("PART");
-            isSuccessfulConnectMsg = data.contains("001");
-            isUserStateUpdate = data.contains("USERSTATE");
-            isRoomstateData = data.contains("ROOMSTATE");
-            isLocalMessage = data.equals("EEE: Incorrect login information!");
-        }
-
-        hasEmoteData = !data.contains("emotes=;");
+        // Only the command token counts. Chat that happens to say "PARTy" is still a PRIVMSG.
+        isLocalMessage = data.equals("EEE: Incorrect login information!");
+        command = isLocalMessage ? IrcCommand.UNKNOWN : IrcCommand.of(message);
+        hasEmoteData = !message.isTagEmpty("emotes");
     }
-    public ArrayList<Node> getWhisperMsgData()
-    {
-        ArrayList<Node> whisperMsgData = null;
-
-        if (isWhisper)
-        {
-            // Grab the message
-            int categoryStart = data.indexOf(":", data.indexOf("WHISPER")) + 1;
-            String message = data.substring(categoryStart);
-            message = message.substring(0, message.length() - 1);
-
-            if (hasEmoteData)
-            {
-                whisperMsgData = getMsgDataWithEmotes(message);
-            } else
-            {
-                whisperMsgData = getMsgDataWithoutEmotes(message);
-            }
-        }
 
-        return whisperMsgData;
+    public IrcCommand getCommand()
+    {
+        return command;
     }
 
-    // PRIVMSG and USERSTATE
-    public ArrayList<Node> getPrivMsgData()
+    // For the commands that only need a tag or two and the text
+    public String getTag(String key)
     {
-        ArrayList<Node> privMsgData = null;
-
-        if (isPrivMsg)
-        {
-            // Grab the message
-            int categoryStart = data.indexOf(":", data.indexOf("PRIVMSG")) + 1;
-            String message = data.substring(categoryStart);
-            message = message.substring(0, message.length() - 1);
-
-            if (hasEmoteData)
-            {
-                privMsgData = getMsgDataWithEmotes(message);
-            } else
-            {
-                privMsgData = getMsgDataWithoutEmotes(message);
-            }
-        }
-
-        return privMsgData;
+        return message.getTag(key);
     }
 
-    private ArrayList<Node> getMsgDataWithoutEmotes(String specificData)
+    public String getTrailing()
     {
-        char[] rawMessage = specificData.toCharArray();
-        ArrayList<Node> msgData = new ArrayList<>();
-        int lastChar = rawMessage.length;
-        int index = 0;
-        StringBuilder sb = new StringBuilder();
-        for (char c : rawMessage)
-        {
-            index++;
-            if (c != 32)
-            {
-                sb.append(c);
-            }
-
-            if (c == 32 || index == lastChar)
-            {
-                msgData.add(new Label(sb.toString()));
-                sb.setLength(0); // Clear the string builder
-            }
-        }
-
-        return msgData;
+        return message.getTrailing();
     }
 
-    private ArrayList<Node> getMsgDataWithEmotes(String specificData)
+    // Lines that describe a user through color, display-name, badges, etc
+    private boolean hasUserTags()
     {
-        char[] rawMessage = specificData.toCharArray();
-        ArrayList<Node> msgData = new ArrayList<>();
-        ArrayList<String> emoteIDs = new ArrayList<>();
-        ArrayList<String> emoteIndex = new ArrayList<>();
-        int emoteStart = data.indexOf("emotes=") + 7;
-        int endEmoteCategory = data.indexOf(';', emoteStart) + 1;
-        StringBuilder sb = new StringBuilder();
-
-        char[] emoteDataChars = data.substring(emoteStart, endEmoteCategory).toCharArray();
-
-        int indexOfEmoteID = -1;
-        int countOfEmoteIndex = 0;
-        for (char c : emoteDataChars)
+        switch (command)
         {
-            if (c == ':')
-            {
-                emoteIDs.add(sb.toString());
-                sb.setLength(0);
-                indexOfEmoteID++;
-                continue;
-            }
-            if (c == ',')
-            {
-                emoteIndex.add(sb.toString());
-                emoteIDs.add(emoteIDs.get(indexOfEmoteID));
-                countOfEmoteIndex++;
-                sb.setLength(0);
-                continue;
-            }
-            if (c == '/')
-            {
-                emoteIndex.add(sb.toString());
-                countOfEmoteIndex++;
-                sb.setLength(0);
-                continue;
-            }
-            if (c == ';')
-            {
-                emoteIndex.add(sb.toString());
-                sb.setLength(0);
-                countOfEmoteIndex++;
-                break;
-            }
-
-            sb.append(c);
-        }
-
-        // Get emotes in the message from twitch
-        for (String id : emoteIDs)
-        {
-            if (!Emotes.hasEmote(id))
-            {
-                log("Getting emote: " + id);
-                Emotes.cacheEmote(new Image(
-                        String.format(EMOTE_DOWNLOAD_URL, id), true), id);
-            } else
-            { log("Already have emote: " + id); }
-        }
-        sb.setLength(0);
-
-        int[][] emoteIndexes = new int[countOfEmoteIndex][2];
-        int firstNumber = 0;
-        for (String combinedIndex : emoteIndex)
-        {
-            int indexGroupLength = combinedIndex.toCharArray().length;
-            int index = 0;
-            for (char c : combinedIndex.toCharArray())
-            {
-                index++;
-                if (c != '-')
-                {
-                    sb.append(c);
-                }
-                if (c == '-')
-                {
-                    emoteIndexes[firstNumber][0] = Integer.parseInt(sb.toString());
-                    sb.setLength(0);
-                    continue;
-                }
-                if (index == indexGroupLength)
-                {
-                    // + 1 to include last char
-                    emoteIndexes[firstNumber][1] = Integer.parseInt(sb.toString());
-                    sb.setLength(0);
-                }
-            }
-            firstNumber++;
+            case PRIVMSG:
+            case WHISPER:
+            case USERSTATE:
+            case GLOBALUSERSTATE:
+            case USERNOTICE:
+                return true;
+            default:
+                return false;
         }
+    }
 
-        sb = new StringBuilder();
-
-        // Add the words to the final message and all emotes too.
-        int lasChar = rawMessage.length - 1;
-        boolean emoteDetected;
-        for (int index = 0; index < rawMessage.length; index++)
-        {
-            emoteDetected = false;
-            char c = rawMessage[index];
+    // PRIVMSG, WHISPER and USERNOTICE as plain data, null for anything else. Nothing
+    // here touches JavaFX, the nodes are only built once the message is shown.
+    public ChatMessage toChatMessage()
+    {
+        ChatMessage.Kind kind;
 
-            int count = 0; // row count
-            for (int[] row : emoteIndexes)
-            {
-                if (row[0] == index)
-                {
-                    log("Emote detected");
-                    emoteDetected = true;
-                    msgData.add(new ImageView(Emotes.getEmote(emoteIDs.get(count))));
-                    while (index != row[1])
-                    {
-                        index++; // skip over the emote data
-                    }
-                }
-                count++;
-            }
+        if (command == IrcCommand.PRIVMSG || command == IrcCommand.USERNOTICE)
+            kind = ChatMessage.Kind.CHAT;
+        else if (command == IrcCommand.WHISPER)
+            kind = ChatMessage.Kind.WHISPER;
+        else
+            return null;
 
-            if (c != 32 && !emoteDetected)
-            {
-                sb.append(c);
-            }
+        String text = message.getTrailing();
+        if (text == null)
+            return null;
 
-            if ((c == 32 || index == lasChar) && !emoteDetected)
-            {
-                msgData.add(new Label(sb.toString()));
-                sb.setLength(0);
-            }
-        }
-        log("Finished emote operation..");
-
-        return msgData;
+        return new ChatMessage(kind, getChannel(), getUserName(), getDisplayName(), getUserNameColor(),
+                getBadgeSignatures(), message.getTag("id"), text, hasEmoteData ? message.getTag("emotes") : null);
     }
 
     public String getUserNameColor()
     {
         String userNameColor = null;
 
-        if ((isPrivMsg || isUserStateUpdate || isWhisper))
+        if (hasUserTags())
         {
-            int categoryStart = 0, endOfCategoryLocation = 0;
-            StringBuilder sb = new StringBuilder();
-
             // Test for color
-            categoryStart = data.indexOf("color=") + 6; // Always 6. Length of color declaration
-            endOfCategoryLocation = data.indexOf(';', categoryStart);
-
-            if (!(categoryStart == endOfCategoryLocation))
+            if (!message.isTagEmpty("color"))
             { // Message has color data
-                for (int count = categoryStart; count <= endOfCategoryLocation; count++)
-                {
-                    if (count != endOfCategoryLocation)
-                        sb.append(RAW_DATA[count]);
-
-                    else
-                        userNameColor = sb.toString();
-                }
+                userNameColor = message.getTag("color");
             } else
             { // Message does not have color data
+                // Pick one from the login so the same user always gets the same one
                 final String RED = "#d60027", BLUE = "#0066cc", GREEN = "#15c39a";
 
-                Random rng = new Random();
+                String login = getUserName();
+                if (login == null)
+                    login = message.isTagEmpty("display-name") ? "" : message.getTag("display-name");
 
-                switch (rng.nextInt(3))
+                switch (Math.floorMod(login.toLowerCase().hashCode(), 3))
                 {
                     case 1:
                         userNameColor = RED;
@@ -314,9 +123,6 @@ public class HandleData
                     case 2:
                         userNameColor = BLUE;
                         break;
-                    case 3:
-                        userNameColor = GREEN;
-                        break;
                     default:
                         userNameColor = GREEN;
                 }
@@ -332,302 +138,145 @@ public class HandleData
     {
         String displayName = null;
 
-        if ((isPrivMsg || isUserStateUpdate || isWhisper))
+        if (hasUserTags())
         {
             // Grab the displayName
-            int categoryStart = data.indexOf("display-name=") + 13,
-                    endOfCategoryLocation = data.indexOf(';', categoryStart);
-
-            if (categoryStart == endOfCategoryLocation)
+            if (message.isTagEmpty("display-name"))
                 return getUserName();
 
-            displayName = data.substring(categoryStart, endOfCategoryLocation);
+            displayName = message.getTag("display-name");
             log("Calculated displayName: " + displayName);
         }
 
         return displayName;
     }
 
-    // TODO: refine
-    public ArrayList<Image> getBadges()
-    {
-        ArrayList<Image> badges = null;
-
-        if (isPrivMsg || isUserStateUpdate || isWhisper)
-        {
-            badges = new ArrayList<>();
-
-            for (String badge : getBadgeSignatures())
-            {
-                if (Badges.hasBadge(badge))
-                {
-                    log("Already have key: " + badge);
-                    badges.add(Badges.getBadge(badge));
-                } else
-                {
-                    log("Do not have key: " + badge);
-                    if (Badges.getValue(badge) != null)
-                    {
-                        Image badgeImage = new Image(Badges.getValue(badge), true);
-                        Badges.cacheBadge(badgeImage, badge);
-                        badges.add(badgeImage);
-                    }
-                }
-            }
-        }
-
-        return badges;
-    }
-
     public ArrayList<String> getBadgeSignatures()
     {
         ArrayList<String> badgeSignatures = null;
 
-        if (isPrivMsg || isUserStateUpdate || isWhisper)
+        if (hasUserTags())
         {
             badgeSignatures = new ArrayList<>();
-            StringBuilder sb = new StringBuilder();
-
-            // Test for badges
-            int categoryStart = data.indexOf("badges=") + 7; // Always 7. Length of badges declaration
-            int endOfCategoryLocation = data.indexOf(';', categoryStart);
 
-            if (!(categoryStart == endOfCategoryLocation))
+            // Test for badges, walking the value in place: name/version,name/version
+            int badgesTag = message.indexOfTag("badges");
+            if (badgesTag >= 0)
             { // Message has badges data
-                for (int count = categoryStart; count <= endOfCategoryLocation; count++)
+                int count = message.getTagValueStart(badgesTag), end = message.getTagValueEnd(badgesTag);
+
+                while (count < end)
                 {
-                    // End of badges
-                    if (count == endOfCategoryLocation)
-                        break;
+                    int badgeEnd = data.indexOf(',', count);
+                    if (badgeEnd < 0 || badgeEnd > end)
+                        badgeEnd = end;
 
                     // Found badge name end and beginning of badge version
-                    if (RAW_DATA[count] == '/')
+                    int slash = data.indexOf('/', count);
+                    if (slash >= 0 && slash < badgeEnd)
                     {
-                        // End of badge name found
-                        String badgeNameString = sb.toString();
+                        String signature = BadgeRegistry.canonical(data.substring(count, badgeEnd));
+                        if (signature != null)
+                            badgeSignatures.add(signature);
+                    }
 
-                        if (!Badges.getValidBadges().contains(badgeNameString))
-                        {
-                            sb.setLength(0);
-                            continue;
-                        }
+                    count = badgeEnd + 1;
+                }
+                log("Calculated badge signatures");
+            }
+        }
 
-                        count++; // Skip the /
-                        sb.setLength(0); // Clear the StringBuilder
+        return badgeSignatures;
+    }
 
-                        while (RAW_DATA[count] != ',' && RAW_DATA[count] != ';')
-                            sb.append(RAW_DATA[count++]);
+    // Moderators, VIPs and the broadcaster get twitch's higher chat rate limit
+    public boolean hasElevatedRateLimit()
+    {
+        if (command != IrcCommand.USERSTATE)
+            return false;
 
-                        String badgeVersion = sb.toString();
+        if (message.tagEquals("mod", "1"))
+            return true;
 
-                        badgeSignatures.add(badgeNameString + "/" + badgeVersion);
+        int badges = message.indexOfTag("badges");
+        if (badges < 0)
+            return false;
 
-                        sb.setLength(0); // Clear the StringBuilder
-                    } else
-                    { sb.append(RAW_DATA[count]); }
-                }
-                log("Calculated badge signatures");
-            }
+        // Walked in place like getBadgeSignatures(), every USERSTATE comes through here
+        int count = message.getTagValueStart(badges), end = message.getTagValueEnd(badges);
+        while (count < end)
+        {
+            if (isBadgeSet(count, "broadcaster") || isBadgeSet(count, "moderator") || isBadgeSet(count, "vip"))
+                return true;
+
+            int badgeEnd = data.indexOf(',', count);
+            count = (badgeEnd < 0) ? end : badgeEnd + 1;
         }
 
-        return badgeSignatures;
+        return false;
+    }
+
+    // Whether the badge starting at index in data is from set
+    private boolean isBadgeSet(int index, String set)
+    {
+        return data.startsWith(set, index) && index + set.length() < data.length() &&
+                data.charAt(index + set.length()) == '/';
     }
-    // END TODO
 
     // PART and JOIN
     public String getUserName()
     {
         String userName = null;
 
-        if (isPrivMsg || isWhisper)
+        if (command == IrcCommand.PRIVMSG || command == IrcCommand.WHISPER ||
+                command == IrcCommand.JOIN || command == IrcCommand.PART)
         {
-            int nameStart = data.indexOf(":", data.indexOf("user-type="));
-            int endOfNameLocation = data.indexOf("!", nameStart);
-            userName = data.substring(nameStart + 1, endOfNameLocation);
+            userName = message.getNick();
             log("Calculated userName: " + userName);
-        } else if ((isUserJoinMsg || isUserLeaveMsg))
+        } else if (command == IrcCommand.USERNOTICE)
         {
-            int nameStart = (data.indexOf(':'));
-            int endOfNameLocation = (data.indexOf('!', nameStart));
-            userName = data.substring(nameStart + 1, endOfNameLocation);
+            // Comes from twitch itself, the user is only in the tags
+            userName = message.getTag("login");
             log("Calculated userName: " + userName);
         }
 
         return userName;
     }
 
+    // The #channel a line is about, null for lines that aren't about one (WHISPER, 001, etc)
     public String getChannel()
     {
-        String userChannel = null;
+        if (message.getParamCount() == 0)
+            return null;
 
-        if ((isUserJoinMsg || isUserLeaveMsg || isRoomstateData))
-        {
-            int channelStart = data.indexOf('#');
-            userChannel = data.substring(channelStart, data.length() - 1);
-            log("Calculated userChannel: " + userChannel);
-        }
+        // NAMES replies start with our nick, the channel is last
+        String userChannel = (command == IrcCommand.NAMES || command == IrcCommand.END_OF_NAMES)
+                             ? message.getParam(message.getParamCount() - 1)
+                             : message.getParam(0);
+        if (!userChannel.startsWith("#"))
+            return null;
+
+        log("Calculated userChannel: " + userChannel);
 
         return userChannel;
     }
 
-    public Map<String, String> getEmoteCodesAndIDs()
+    // The ids of the emote sets we can use, from USERSTATE. EmoteSetLoader gets what's in them.
+    public ArrayList<String> getEmoteSetIDs()
     {
-        HashMap<String, String> map = null;
-        if (isUserStateUpdate)
+        ArrayList<String> emoteSetIDs = new ArrayList<>();
+        if (command == IrcCommand.USERSTATE && !message.isTagEmpty("emote-sets"))
         {
-            map = new HashMap<>();
-            int emoteSetStart = data.indexOf("emote-sets=") + 11;
-            int emoteSetEndLocation = data.indexOf(';', emoteSetStart) + 1;
-            StringBuilder sb = new StringBuilder();
-            ArrayList<String> emoteSetIds = new ArrayList<>();
-            ArrayList<String> jsonToLookAtArray = new ArrayList<>();
-
-            char[] rawEmoteSet = data.substring(emoteSetStart, emoteSetEndLocation).toCharArray();
-
-            for (char c : rawEmoteSet)
-            {
-                if (c == ',' || c == ';')
-                {
-                    emoteSetIds.add(sb.toString());
-                    sb.setLength(0);
-                } else
-                    sb.append(c);
-            }
-
-            try
-            {
-                for (String emoteID : emoteSetIds)
-                {
-                    String urlString = String.format(EMOTE_SET_DOWNLOAD_URL, emoteID);
-                    log("Emote set: " + emoteID + " Get link: " + urlString);
-                    HttpGet getRequest = new HttpGet(urlString);
-                    getRequest.addHeader("Accept", "application/vnd.twitchtv.v5+json");
-                    getRequest.addHeader("Client-ID", CLIENT_ID);
-                    HttpClient client = HttpClients.createSystem();
-                    HttpResponse response = client.execute(getRequest);
-                    jsonToLookAtArray.add(EntityUtils.toString(response.getEntity()));
-                }
-            } catch (IOException e)
-            {
-                log(e.getMessage());
-            }
-
-            for (String jsonToLookAt : jsonToLookAtArray)
-            {
-                String emoteID = emoteSetIds.get(jsonToLookAtArray.indexOf(jsonToLookAt));
-
-                Gson jsonParser = new Gson();
-
-                JsonObject jsonObject = jsonParser.fromJson(jsonToLookAt, JsonObject.class);
-
-                JsonObject innerObject = jsonObject.getAsJsonObject("emoticon_sets");
-
-                JsonArray emoteJsonArray = innerObject.getAsJsonArray(emoteID);
-
-                JsonElement innerArray;
-                int count = 0;
-                int size = emoteJsonArray.size() - 1;
-                while (count <= size)
-                {
-                    innerArray = emoteJsonArray.get(count);
-                    JsonObject keyValuePair = innerArray.getAsJsonObject();
-                    String id = keyValuePair.get("id").getAsString(),
-                            code = keyValuePair.get("code").getAsString();
-
-                    // Fuck JSON escape sequences
-                    switch (id)
-                    {
-                        case "4":
-                            code = ">(";
-                            break;
-                        case "8":
-                            code = ":o";
-                            break;
-                        case "3":
-                            code = ":D";
-                            break;
-                        case "14":
-                            code = "R)";
-                            break;
-                        case "11":
-                            code = ";)";
-                            break;
-                        case "9":
-                            code = "<3";
-                            break;
-                        case "13":
-                            code = ";p";
-                            break;
-                        case "12":
-                            code = ":p";
-                            break;
-                        case "2":
-                            code = ":(";
-                            break;
-                        case "1":
-                            code = ":)";
-                            break;
-                        case "5":
-                            code = ":z";
-                            break;
-                        case "7":
-                            code = "B)";
-                            break;
-                        case "6":
-                            code = "o_O";
-                            break;
-                        case "10":
-                            code = ":\\";
-                            break;
-                    }
-
-                    map.put(code, id);
-                    count++;
-                }
-
-                log("Finished getting emotes for: " + emoteID);
-            }
+            for (String setID : message.getTag("emote-sets").split(","))
+                if (!setID.isEmpty())
+                    emoteSetIDs.add(setID);
         }
-        return map;
-    }
-
-    public boolean isUserJoinMsg()
-    {
-        return isUserJoinMsg;
-    }
 
-    public boolean isPrivMsg()
-    {
-        return isPrivMsg;
-    }
-
-    public boolean isWhisperMsg()
-    {
-        return isWhisper;
-    }
-
-    public boolean isUserLeaveMsg()
-    {
-        return isUserLeaveMsg;
-    }
-
-    public boolean isSuccessfulConnectMsg()
-    {
-        return isSuccessfulConnectMsg;
-    }
-
-    public boolean isUserStateUpdate()
-    {
-        return isUserStateUpdate;
+        return emoteSetIDs;
     }
 
     public boolean isLocalMessage()
     {
         return isLocalMessage;
     }
-
-    public boolean isRoomstateData()
-    {
-        return isRoomstateData;
-    }
 }
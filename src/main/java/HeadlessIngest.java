@@ -0,0 +1,84 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.channels.Channels;
+
+// Runs raw IRC lines through the same parser the client uses, without a window or
+// the toolkit. Reads a chat log off of stdin and writes one line per chat message:
+//
+//     java -cp WildChat.jar HeadlessIngest < chat.log
+//
+// channel, user, kind, id, then the text with emotes as {emote:id}, tab separated.
+public class HeadlessIngest
+{
+    // Prevent instantiation
+    private HeadlessIngest() {}
+
+    public static void main(String[] args)
+    {
+        try
+        {
+            long count = run(System.in, System.out);
+            System.err.println("Parsed " + count + " message(s)");
+        } catch (IOException e)
+        {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    // Returns how many chat messages were written
+    public static long run(InputStream in, PrintStream out) throws IOException
+    {
+        IrcLineReader reader = new IrcLineReader(Channels.newChannel(in));
+        StringBuilder sb = new StringBuilder();
+        long count = 0;
+        IrcLine line;
+
+        while ((line = reader.readLine()) != null)
+        {
+            ChatMessage message = new HandleData(line.toString()).toChatMessage();
+            if (message == null)
+                continue;
+
+            sb.setLength(0);
+            out.println(format(message, sb));
+            count++;
+        }
+
+        out.flush();
+        return count;
+    }
+
+    static StringBuilder format(ChatMessage message, StringBuilder sb)
+    {
+        sb.append(message.getChannel() == null ? "-" : message.getChannel()).append('\t')
+                .append(message.getUser()).append('\t')
+                .append(message.getKind().name().toLowerCase()).append('\t')
+                .append(message.getId() == null ? "-" : message.getId()).append('\t');
+
+        for (int segment = 0; segment < message.getSegmentCount(); segment++)
+        {
+            if (message.isEmote(segment))
+                sb.append("{emote:").append(message.getEmoteID(segment)).append('}');
+            else
+                sb.append(message.getText(), message.getSegmentStart(segment), message.getSegmentEnd(segment));
+        }
+
+        return sb;
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import javafx.scene.image.Image;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static logUtils.Logger.log;
+
+// Gets images out of WildChat.imageCache and decodes them, on a thread of its own so
+// the FX thread never maps a file or decodes a PNG. What's on disk is read straight
+// away, the rest is downloaded first and decoded once it's in. Disk reads and
+// downloads are timed apart, a download takes a hundred times as long.
+public class ImageLoader
+{
+    private static final ExecutorService decoder = Executors.newSingleThreadExecutor(task ->
+    {
+        Thread thread = new Thread(task, "imageDecoder");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final String kind;
+    private final LongAdder diskLoads = new LongAdder(), diskNanos = new LongAdder(),
+            downloads = new LongAdder(), downloadNanos = new LongAdder();
+
+    // kind names the images in the log, "emote" or "badge"
+    public ImageLoader(String kind)
+    {
+        this.kind = kind;
+    }
+
+    // The decoded image at url. Completes with null if it can't be had or read.
+    public CompletableFuture<Image> load(String url)
+    {
+        CompletableFuture<Image> result = new CompletableFuture<>();
+        try
+        {
+            decoder.execute(() -> loadFromDisk(url, result));
+        } catch (RejectedExecutionException e)
+        {
+            result.complete(null);
+        }
+
+        return result;
+    }
+
+    private void loadFromDisk(String url, CompletableFuture<Image> result)
+    {
+        DiskImageCache imageCache = WildChat.imageCache;
+        if (imageCache == null)
+        {
+            result.complete(null);
+            return;
+        }
+
+        long start = System.nanoTime();
+        ByteBuffer bytes = imageCache.lookup(url);
+        if (bytes != null)
+        {
+            Image image = decode(url, bytes);
+            if (image != null)
+            {
+                diskLoads.increment();
+                diskNanos.add(System.nanoTime() - start);
+            }
+
+            result.complete(image);
+            return;
+        }
+
+        log("Getting " + kind + ": " + url);
+        imageCache.fetchAsync(url).whenCompleteAsync((downloaded, error) ->
+        {
+            Image image = (downloaded == null) ? null : decode(url, downloaded);
+            if (image == null)
+                log("Failed to get " + kind + ": " + url);
+            else
+            {
+                downloads.increment();
+                downloadNanos.add(System.nanoTime() - start);
+            }
+
+            result.complete(image);
+        }, decoder);
+    }
+
+    private Image decode(String url, ByteBuffer bytes)
+    {
+        Image image = new Image(DiskImageCache.stream(bytes));
+        if (image.isError())
+        {
+            log("Could not read the image of " + kind + " " + url);
+            return null;
+        }
+
+        return image;
+    }
+
+    public long getDiskLoadCount()
+    {
+        return diskLoads.sum();
+    }
+
+    public long getDownloadCount()
+    {
+        return downloads.sum();
+    }
+
+    public long getAverageDiskLoadTime(TimeUnit unit)
+    {
+        return average(diskNanos, diskLoads, unit);
+    }
+
+    public long getAverageDownloadTime(TimeUnit unit)
+    {
+        return average(downloadNanos, downloads, unit);
+    }
+
+    private static long average(LongAdder nanos, LongAdder count, TimeUnit unit)
+    {
+        long loads = count.sum();
+        return (loads == 0) ? 0 : unit.convert(nanos.sum() / loads, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public String toString()
+    {
+        return getDiskLoadCount() + " from disk at " + getAverageDiskLoadTime(TimeUnit.MICROSECONDS) +
+                "us average, " + getDownloadCount() + " downloaded at " +
+                getAverageDownloadTime(TimeUnit.MILLISECONDS) + "ms average";
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Every command we act on. Anything else comes out as UNKNOWN.
+// https://dev.twitch.tv/docs/irc/commands
+public enum IrcCommand
+{
+    PRIVMSG,
+    WHISPER,
+    JOIN,
+    PART,
+    USERSTATE,
+    GLOBALUSERSTATE,
+    ROOMSTATE,
+    CLEARCHAT,
+    CLEARMSG,
+    USERNOTICE,
+    HOSTTARGET,
+    NOTICE,
+    RECONNECT,
+    PING,
+    PONG,
+    CAP,
+    // 001
+    WELCOME,
+    // 353 and 366
+    NAMES,
+    END_OF_NAMES,
+    UNKNOWN;
+
+    // Looks at the command only, never the rest of the line
+    public static IrcCommand of(IrcMessage message)
+    {
+        // Compiles to a switch on the hash code, then one equals() on a hit
+        switch (message.getCommand())
+        {
+            case "PRIVMSG":
+                return PRIVMSG;
+            case "WHISPER":
+                return WHISPER;
+            case "JOIN":
+                return JOIN;
+            case "PART":
+                return PART;
+            case "USERSTATE":
+                return USERSTATE;
+            case "GLOBALUSERSTATE":
+                return GLOBALUSERSTATE;
+            case "ROOMSTATE":
+                return ROOMSTATE;
+            case "CLEARCHAT":
+                return CLEARCHAT;
+            case "CLEARMSG":
+                return CLEARMSG;
+            case "USERNOTICE":
+                return USERNOTICE;
+            case "HOSTTARGET":
+                return HOSTTARGET;
+            case "NOTICE":
+                return NOTICE;
+            case "RECONNECT":
+                return RECONNECT;
+            case "PING":
+                return PING;
+            case "PONG":
+                return PONG;
+            case "CAP":
+                return CAP;
+            case "001":
+                return WELCOME;
+            case "353":
+                return NAMES;
+            case "366":
+                return END_OF_NAMES;
+            default:
+                return UNKNOWN;
+        }
+    }
+}
@@ -0,0 +1,384 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static logUtils.Logger.log;
+
+// One non-blocking IRC connection living on one of ConnectionEngine's event loops.
+// Everything in here except wakeup() and close() runs on that loop's thread.
+public class IrcConnection
+{
+    public interface Handler
+    {
+        void onConnected(IrcConnection connection);
+
+        // line is only valid for the duration of the call. Returning false means there
+        // is no room for it right now: the connection keeps it, stops reading and
+        // hands it out again after resumeReading().
+        boolean onLine(IrcConnection connection, IrcLine line);
+
+        // Nothing has been received for a while. A good time to PING the other side.
+        void onIdle(IrcConnection connection);
+
+        // cause is null when the other side closed the connection cleanly
+        void onClosed(IrcConnection connection, IOException cause);
+    }
+
+    // Most lines taken from the scheduler for one gather write
+    private static final int WRITE_BATCH_SIZE = 64;
+
+    private final InetSocketAddress address;
+    private final OutboundScheduler outbound;
+    private final Handler handler;
+
+    // Encoded lines waiting to go out, and the lines they belong to, in the same order
+    private final ArrayDeque<ByteBuffer> pendingWrites = new ArrayDeque<>();
+    private final ArrayDeque<OutboundScheduler.PendingLine> pendingLines = new ArrayDeque<>();
+    private final ArrayList<OutboundScheduler.PendingLine> batch = new ArrayList<>();
+    private ByteBuffer[] gather = new ByteBuffer[WRITE_BATCH_SIZE];
+
+    private volatile ConnectionEngine.EventLoop loop = null;
+    private SocketChannel channel = null;
+    private SelectionKey key = null;
+    private IrcLineReader reader = null;
+    private BufferPool pool = null;
+    private volatile boolean connected = false, closed = false;
+    // close() was called, maybe before open() gave us a loop to close on
+    private volatile boolean closeRequested = false;
+    // Silence after which the handler is told we are idle, and after which we give up
+    // on the other side. 0 turns the checks off.
+    private long idleNanos = 0, timeoutNanos = 0;
+    private long lastRead = 0;
+    private boolean idleReported = false;
+    // The handler had no room for a line, so OP_READ is off until it asks for more
+    private boolean readPaused = false;
+    // Set by wakeup(). Otherwise flush() has nothing to do until flushDue.
+    private volatile boolean flushRequested = true;
+    private long flushDue = Long.MAX_VALUE;
+
+    public IrcConnection(InetSocketAddress address, OutboundScheduler outbound, Handler handler)
+    {
+        this.address = address;
+        this.outbound = outbound;
+        this.handler = handler;
+    }
+
+    public boolean isConnected()
+    {
+        return connected;
+    }
+
+    public boolean isClosed()
+    {
+        return closed;
+    }
+
+    public OutboundScheduler getOutbound()
+    {
+        return outbound;
+    }
+
+    // Call before registering. The timeout also covers connecting.
+    public void setTimeouts(long idle, long timeout, TimeUnit unit)
+    {
+        idleNanos = unit.toNanos(idle);
+        timeoutNanos = unit.toNanos(timeout);
+    }
+
+    // Nudge our loop, e.g. because the scheduler has something new for us
+    public void wakeup()
+    {
+        flushRequested = true;
+        ConnectionEngine.EventLoop current = loop;
+        if (current != null)
+            current.wakeup();
+    }
+
+    // The handler has room again after turning a line down. Safe from any thread.
+    public void resumeReading()
+    {
+        ConnectionEngine.EventLoop current = loop;
+        if (current != null)
+            current.execute(this::resume);
+    }
+
+    // Safe from any thread, and before open(), which then doesn't connect
+    public void close()
+    {
+        // Written before loop is read, while open() writes loop before reading this,
+        // so at least one of us closes
+        closeRequested = true;
+        ConnectionEngine.EventLoop current = loop;
+        if (current != null)
+            current.execute(() -> close(null));
+    }
+
+    void open(ConnectionEngine.EventLoop loop, Selector selector, BufferPool pool) throws IOException
+    {
+        this.loop = loop;
+        this.pool = pool;
+        if (closeRequested)
+        {
+            close(null);
+            return;
+        }
+
+        outbound.setWakeup(this::wakeup);
+
+        channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        reader = new IrcLineReader(channel, pool.acquire());
+        lastRead = System.nanoTime();
+
+        if (channel.connect(address))
+        {
+            key = channel.register(selector, SelectionKey.OP_READ, this);
+            finishConnect();
+        } else
+            key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+    }
+
+    void handle(SelectionKey readyKey)
+    {
+        try
+        {
+            if (readyKey.isConnectable() && channel.finishConnect())
+            {
+                updateInterest();
+                finishConnect();
+            }
+
+            if (readyKey.isValid() && readyKey.isReadable())
+                read();
+
+            if (readyKey.isValid() && readyKey.isWritable())
+            {
+                write();
+
+                // The socket took it all, the scheduler may have more waiting behind it
+                if (pendingWrites.isEmpty())
+                    flushRequested = true;
+            }
+        } catch (IOException | RuntimeException e)
+        {
+            close(e instanceof IOException ? (IOException) e : new IOException(e));
+        }
+    }
+
+    // Send whatever the rate limits allow. Returns how long until the scheduler will
+    // have more for us or a timeout is due, Long.MAX_VALUE if neither. Between those
+    // times, and unless the scheduler wakes us, there is nothing to do.
+    long flush(long now)
+    {
+        if (!flushRequested && (flushDue == Long.MAX_VALUE || now - flushDue < 0))
+            return flushDue == Long.MAX_VALUE ? Long.MAX_VALUE : flushDue - now;
+
+        flushRequested = false;
+        long wait = send(now);
+        flushDue = (wait == Long.MAX_VALUE) ? Long.MAX_VALUE : now + wait;
+        return wait;
+    }
+
+    private long send(long now)
+    {
+        long timeoutWait = checkTimeouts(now);
+
+        if (!connected || closed)
+            return timeoutWait;
+
+        try
+        {
+            // Don't pile more on while the socket is still choking on the last batch
+            if (pendingWrites.isEmpty() && outbound.drainReady(batch, WRITE_BATCH_SIZE, now) > 0)
+            {
+                for (OutboundScheduler.PendingLine pending : batch)
+                {
+                    log("messageSender sending: " + pending.getLine());
+                    pendingWrites.add(ByteBuffer.wrap(pending.getBytes()));
+                    pendingLines.add(pending);
+                }
+
+                batch.clear();
+                write();
+            }
+        } catch (IOException e)
+        {
+            close(e);
+            return Long.MAX_VALUE;
+        }
+
+        return Math.min(timeoutWait, pendingWrites.isEmpty() ? outbound.nanosUntilReady(now) : Long.MAX_VALUE);
+    }
+
+    void close(IOException cause)
+    {
+        if (closed)
+            return;
+
+        closed = true;
+        connected = false;
+
+        if (key != null)
+            key.cancel();
+
+        try
+        {
+            if (channel != null)
+                channel.close();
+        } catch (IOException e)
+        {
+            log(e.getMessage());
+        }
+
+        if (reader != null)
+            pool.release(reader.getBuffer());
+
+        // Lines the socket never fully took go back to the scheduler for whoever
+        // connects next. The scheduler outlives us, it's up to its owner to clear it.
+        outbound.requeue(pendingLines);
+        pendingLines.clear();
+        pendingWrites.clear();
+        handler.onClosed(this, cause);
+    }
+
+    // Returns how long until the next check is due
+    private long checkTimeouts(long now)
+    {
+        // We aren't listening while paused, so the silence is ours
+        if (timeoutNanos <= 0 || closed || readPaused)
+            return Long.MAX_VALUE;
+
+        long silence = now - lastRead;
+
+        if (silence >= timeoutNanos)
+        {
+            close(new SocketTimeoutException((connected ? "Nothing received for " : "Could not connect within ") +
+                    TimeUnit.NANOSECONDS.toSeconds(silence) + " seconds"));
+            return Long.MAX_VALUE;
+        }
+
+        if (connected && !idleReported && idleNanos > 0 && silence >= idleNanos)
+        {
+            idleReported = true;
+            handler.onIdle(this);
+        }
+
+        return (!connected || idleReported || idleNanos <= 0 ? timeoutNanos : idleNanos) - silence;
+    }
+
+    private void finishConnect()
+    {
+        connected = true;
+        flushRequested = true;
+        lastRead = System.nanoTime();
+        log("Connection started");
+        handler.onConnected(this);
+    }
+
+    // The selector only tells us there is something to read, so keep going until the
+    // socket runs dry rather than coming back through select for every chunk
+    private void read() throws IOException
+    {
+        int read;
+        do
+        {
+            read = reader.fill();
+
+            if (read > 0)
+            {
+                lastRead = System.nanoTime();
+                idleReported = false;
+            }
+
+            deliverLines();
+        } while (read > 0 && !closed && !readPaused);
+
+        if (read < 0)
+            close(null);
+    }
+
+    // Hand out the lines already in the buffer until the handler has no more room
+    private void deliverLines()
+    {
+        IrcLine line;
+        while (!closed && !readPaused && (line = reader.nextLine()) != null)
+        {
+            if (!handler.onLine(this, line))
+            {
+                reader.unread();
+                readPaused = true;
+                updateInterest();
+            }
+        }
+    }
+
+    private void resume()
+    {
+        if (closed || !readPaused)
+            return;
+
+        readPaused = false;
+        lastRead = System.nanoTime();
+        flushRequested = true;
+        // We may have stopped reading with whole lines still buffered
+        deliverLines();
+
+        if (!closed)
+            updateInterest();
+    }
+
+    private void updateInterest()
+    {
+        int ops = readPaused ? 0 : SelectionKey.OP_READ;
+        if (!pendingWrites.isEmpty())
+            ops |= SelectionKey.OP_WRITE;
+
+        key.interestOps(ops);
+    }
+
+    // One gather write for everything queued. Whatever the socket won't take now waits for OP_WRITE.
+    private void write() throws IOException
+    {
+        if (pendingWrites.size() > gather.length)
+            gather = new ByteBuffer[pendingWrites.size()];
+
+        int count = 0;
+        for (ByteBuffer buffer : pendingWrites)
+            gather[count++] = buffer;
+
+        channel.write(gather, 0, count);
+
+        while (!pendingWrites.isEmpty() && !pendingWrites.peek().hasRemaining())
+        {
+            pendingWrites.poll();
+            pendingLines.poll().written();
+        }
+
+        for (int index = 0; index < count; index++)
+            gather[index] = null;
+
+        updateInterest();
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// A view of one line of IRC data sitting in an IrcLineReader's char buffer, where
+// the reader decoded it straight out of the receive buffer. The same instance is
+// handed out for every line, so it is only valid until the next call into the
+// reader. Call toString() to keep the data around.
+public class IrcLine implements CharSequence
+{
+    private char[] chars = null;
+    private int length = 0;
+
+    IrcLine() {}
+
+    void set(char[] chars, int length)
+    {
+        this.chars = chars;
+        this.length = length;
+    }
+
+    @Override
+    public int length()
+    {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index)
+    {
+        if (index < 0 || index >= length)
+            throw new IndexOutOfBoundsException("index: " + index + " length: " + length);
+
+        return chars[index];
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end)
+    {
+        if (start < 0 || end > length || start > end)
+            throw new IndexOutOfBoundsException("start: " + start + " end: " + end + " length: " + length);
+
+        return new String(chars, start, end - start);
+    }
+
+    @Override
+    public String toString()
+    {
+        return new String(chars, 0, length);
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+// Splits the data coming off of a channel into IRC lines. Reads are done in bulk
+// into one reusable direct buffer, and each line is decoded once into a reusable
+// char buffer and handed out as a view of it, so no String is made until somebody
+// asks for one.
+//
+// Lines are framed on the raw bytes before they are decoded. CR and LF never show
+// up inside a multi-byte UTF-8 sequence, so a code point split across two reads
+// just sits in the buffer until the rest of its line arrives.
+public class IrcLineReader
+{
+    static final int DEFAULT_CAPACITY = 16 * 1024,
+            MAX_CAPACITY = 1024 * 1024;
+
+    private final ReadableByteChannel channel;
+
+    private final IrcLine line = new IrcLine();
+
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    // Kept in read mode between calls: position..limit is data we have not handed out yet
+    private ByteBuffer buffer;
+
+    // Second view of buffer handed to the decoder so we don't disturb buffer's position
+    private ByteBuffer decodeView;
+
+    // Decoded chars of the current line. UTF-8 never decodes to more chars than bytes.
+    private CharBuffer chars = CharBuffer.allocate(512);
+
+    // How many bytes past position we already know contain no EOL char
+    private int scanned = 0;
+
+    // OR of every byte scanned so far for the current line. If the high bit is never
+    // set the line is plain ASCII and can skip the decoder.
+    private int highBits = 0;
+
+    // Where the last line handed out starts, for unread()
+    private int lineStart = 0;
+
+    public IrcLineReader(ReadableByteChannel channel)
+    {
+        this(channel, DEFAULT_CAPACITY);
+    }
+
+    public IrcLineReader(ReadableByteChannel channel, int capacity)
+    {
+        this(channel, ByteBuffer.allocateDirect(capacity));
+    }
+
+    // Read through a buffer somebody else owns, like one out of a BufferPool
+    public IrcLineReader(ReadableByteChannel channel, ByteBuffer buffer)
+    {
+        this.channel = channel;
+        this.buffer = buffer;
+        buffer.clear();
+        buffer.flip();
+        decodeView = buffer.duplicate();
+    }
+
+    // The buffer currently in use. May not be the one we were given if a long line made us grow.
+    public ByteBuffer getBuffer()
+    {
+        return buffer;
+    }
+
+    // Blocks until a full line is available. Returns null once the channel hits EOF.
+    public IrcLine readLine() throws IOException
+    {
+        IrcLine next;
+        while ((next = nextLine()) == null)
+        {
+            if (fill() < 0)
+                return null;
+        }
+
+        return next;
+    }
+
+    // Frame the next line out of data that is already buffered. Returns null if
+    // there is no complete line yet.
+    public IrcLine nextLine()
+    {
+        int start = buffer.position(), limit = buffer.limit();
+
+        // Remove extra EOL chars (sometimes there can be multiples)
+        while (start < limit && BasicIO.isEOLChar(buffer.get(start)))
+            start++;
+
+        buffer.position(start);
+
+        for (int index = start + scanned; index < limit; index++)
+        {
+            byte b = buffer.get(index);
+            if (BasicIO.isEOLChar(b))
+            {
+                decode(start, index);
+                lineStart = start;
+                buffer.position(index + 1);
+                scanned = 0;
+                highBits = 0;
+                return line;
+            }
+
+            highBits |= b;
+        }
+
+        scanned = limit - start;
+        return null;
+    }
+
+    // Put the last line handed out back, so the next nextLine() hands it out again.
+    // Only good until the next fill().
+    public void unread()
+    {
+        buffer.position(lineStart);
+        scanned = 0;
+        highBits = 0;
+    }
+
+    private void decode(int start, int end)
+    {
+        int byteLength = end - start;
+
+        if (chars.capacity() < byteLength)
+            chars = CharBuffer.allocate(Math.max(byteLength, chars.capacity() * 2));
+
+        char[] dest = chars.array();
+        boolean ascii = (highBits & 0x80) == 0;
+        int length;
+
+        if (ascii)
+        {
+            for (int index = 0; index < byteLength; index++)
+                dest[index] = (char) buffer.get(start + index);
+
+            length = byteLength;
+        } else
+        {
+            decodeView.limit(end).position(start);
+            chars.clear();
+            decoder.reset();
+            decoder.decode(decodeView, chars, true);
+            decoder.flush(chars);
+            length = chars.position();
+        }
+
+        line.set(dest, length);
+    }
+
+    // Pull whatever the channel has for us. Invalidates the last line handed out.
+    public int fill() throws IOException
+    {
+        buffer.compact();
+
+        if (!buffer.hasRemaining())
+            grow();
+
+        int read = channel.read(buffer);
+        buffer.flip();
+        return read;
+    }
+
+    // Only happens for lines that do not fit in the buffer. IRCv3 lines can reach 8K
+    // with tags, so this should be rare with the default capacity.
+    private void grow() throws IOException
+    {
+        if (buffer.capacity() >= MAX_CAPACITY)
+            throw new IOException("IRC line longer than " + MAX_CAPACITY + " bytes");
+
+        ByteBuffer bigger = ByteBuffer.allocateDirect(Math.min(buffer.capacity() * 2, MAX_CAPACITY));
+        buffer.flip();
+        bigger.put(buffer);
+        buffer = bigger;
+        decodeView = buffer.duplicate();
+    }
+}
@@ -0,0 +1,325 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Arrays;
+
+// Splits an IRCv3 line into its tags, prefix, command, params and trailing in one
+// pass. Only offsets into the line are recorded, and nothing is copied out of it
+// until a value is actually asked for. parse() can be called again to reuse the
+// instance for the next line.
+//
+// [@key=value;key2 ][:prefix ]COMMAND[ param ...][ :trailing]
+// https://ircv3.net/specs/extensions/message-tags.html
+public class IrcMessage
+{
+    // Start/end pairs at fixed spots, then 4 ints per tag (key start/end, value
+    // start/end), then 2 ints per param
+    private static final int PREFIX = 0, COMMAND = 2, TRAILING = 4, TAGS = 6;
+
+    private CharSequence line = null;
+    private int[] offsets = new int[TAGS + 32];
+    private int tagCount = 0, paramCount = 0;
+
+    public IrcMessage() {}
+
+    public IrcMessage(CharSequence line)
+    {
+        parse(line);
+    }
+
+    public IrcMessage parse(CharSequence line)
+    {
+        this.line = line;
+        tagCount = 0;
+        paramCount = 0;
+        offsets[PREFIX] = offsets[PREFIX + 1] = -1;
+        offsets[TRAILING] = offsets[TRAILING + 1] = -1;
+
+        int length = line.length(), index = 0;
+
+        if (index < length && line.charAt(index) == '@')
+        {
+            index++;
+            while (index < length && line.charAt(index) != ' ')
+            {
+                int keyStart = index;
+                while (index < length && !isTagDelimiter(line.charAt(index)) && line.charAt(index) != '=')
+                    index++;
+
+                int keyEnd = index, valueStart = index;
+                if (index < length && line.charAt(index) == '=')
+                    valueStart = ++index;
+
+                while (index < length && !isTagDelimiter(line.charAt(index)))
+                    index++;
+
+                if (keyEnd > keyStart)
+                    addTag(keyStart, keyEnd, valueStart, index);
+
+                if (index < length && line.charAt(index) == ';')
+                    index++;
+            }
+        }
+
+        index = skipSpaces(index);
+
+        if (index < length && line.charAt(index) == ':')
+        {
+            offsets[PREFIX] = ++index;
+            index = wordEnd(index);
+            offsets[PREFIX + 1] = index;
+            index = skipSpaces(index);
+        }
+
+        offsets[COMMAND] = index;
+        index = wordEnd(index);
+        offsets[COMMAND + 1] = index;
+
+        while ((index = skipSpaces(index)) < length)
+        {
+            if (line.charAt(index) == ':')
+            {
+                offsets[TRAILING] = index + 1;
+                offsets[TRAILING + 1] = length;
+                break;
+            }
+
+            int paramStart = index;
+            index = wordEnd(index);
+            addParam(paramStart, index);
+        }
+
+        return this;
+    }
+
+    public CharSequence getLine()
+    {
+        return line;
+    }
+
+    // Which tag has the given key, -1 if none
+    public int indexOfTag(String key)
+    {
+        for (int tag = 0; tag < tagCount; tag++)
+        {
+            int start = offsets[TAGS + tag * 4], end = offsets[TAGS + tag * 4 + 1];
+            if (regionEquals(start, end, key))
+                return tag;
+        }
+
+        return -1;
+    }
+
+    // The unescaped value of a tag. "" for a tag without a value, null if the tag isn't there.
+    public String getTag(String key)
+    {
+        int tag = indexOfTag(key);
+        return (tag < 0) ? null : getTagValue(tag);
+    }
+
+    public String getTagValue(int tag)
+    {
+        int start = offsets[TAGS + tag * 4 + 2], end = offsets[TAGS + tag * 4 + 3];
+
+        for (int index = start; index < end; index++)
+            if (line.charAt(index) == '\\')
+                return unescape(start, end);
+
+        return line.subSequence(start, end).toString();
+    }
+
+    // True if the tag is missing or has no value
+    public boolean isTagEmpty(String key)
+    {
+        int tag = indexOfTag(key);
+        return tag < 0 || offsets[TAGS + tag * 4 + 2] == offsets[TAGS + tag * 4 + 3];
+    }
+
+    // Compares without copying the value out, as long as it has nothing escaped in it
+    public boolean tagEquals(String key, String value)
+    {
+        int tag = indexOfTag(key);
+        if (tag < 0)
+            return false;
+
+        int start = offsets[TAGS + tag * 4 + 2], end = offsets[TAGS + tag * 4 + 3];
+        for (int index = start; index < end; index++)
+            if (line.charAt(index) == '\\')
+                return value.equals(unescape(start, end));
+
+        return regionEquals(start, end, value);
+    }
+
+    // Where a tag's raw, still escaped, value sits in the line. For walking values
+    // like badges in place.
+    public int getTagValueStart(int tag)
+    {
+        return offsets[TAGS + tag * 4 + 2];
+    }
+
+    public int getTagValueEnd(int tag)
+    {
+        return offsets[TAGS + tag * 4 + 3];
+    }
+
+    public boolean hasPrefix()
+    {
+        return offsets[PREFIX] >= 0;
+    }
+
+    // nick out of nick!user@host, or the whole prefix for a server
+    public String getNick()
+    {
+        if (!hasPrefix())
+            return null;
+
+        int start = offsets[PREFIX], end = offsets[PREFIX + 1];
+        for (int index = start; index < end; index++)
+        {
+            char c = line.charAt(index);
+            if (c == '!' || c == '@')
+                return line.subSequence(start, index).toString();
+        }
+
+        return line.subSequence(start, end).toString();
+    }
+
+    public String getCommand()
+    {
+        return line.subSequence(offsets[COMMAND], offsets[COMMAND + 1]).toString();
+    }
+
+    // Params before the trailing one
+    public int getParamCount()
+    {
+        return paramCount;
+    }
+
+    public String getParam(int param)
+    {
+        int base = TAGS + tagCount * 4 + param * 2;
+        return line.subSequence(offsets[base], offsets[base + 1]).toString();
+    }
+
+    public boolean hasTrailing()
+    {
+        return offsets[TRAILING] >= 0;
+    }
+
+    public String getTrailing()
+    {
+        return hasTrailing() ? line.subSequence(offsets[TRAILING], offsets[TRAILING + 1]).toString() : null;
+    }
+
+    // Escapes per https://ircv3.net/specs/extensions/message-tags.html#escaping-values
+    private String unescape(int start, int end)
+    {
+        StringBuilder sb = new StringBuilder(end - start);
+
+        for (int index = start; index < end; index++)
+        {
+            char c = line.charAt(index);
+            if (c != '\\')
+            {
+                sb.append(c);
+                continue;
+            }
+
+            // A lone backslash at the end is dropped
+            if (++index >= end)
+                break;
+
+            switch (c = line.charAt(index))
+            {
+                case ':':
+                    sb.append(';');
+                    break;
+                case 's':
+                    sb.append(' ');
+                    break;
+                case 'r':
+                    sb.append('\r');
+                    break;
+                case 'n':
+                    sb.append('\n');
+                    break;
+                default:
+                    // Covers \\ and drops the backslash from anything unknown
+                    sb.append(c);
+            }
+        }
+
+        return sb.toString();
+    }
+
+    private void addTag(int keyStart, int keyEnd, int valueStart, int valueEnd)
+    {
+        // Tags come before params, nothing to move yet
+        int base = TAGS + tagCount * 4;
+        ensureCapacity(base + 4);
+        offsets[base] = keyStart;
+        offsets[base + 1] = keyEnd;
+        offsets[base + 2] = valueStart;
+        offsets[base + 3] = valueEnd;
+        tagCount++;
+    }
+
+    private void addParam(int start, int end)
+    {
+        int base = TAGS + tagCount * 4 + paramCount * 2;
+        ensureCapacity(base + 2);
+        offsets[base] = start;
+        offsets[base + 1] = end;
+        paramCount++;
+    }
+
+    private void ensureCapacity(int needed)
+    {
+        if (needed > offsets.length)
+            offsets = Arrays.copyOf(offsets, Math.max(needed, offsets.length * 2));
+    }
+
+    private boolean regionEquals(int start, int end, String other)
+    {
+        if (end - start != other.length())
+            return false;
+
+        for (int index = start; index < end; index++)
+            if (line.charAt(index) != other.charAt(index - start))
+                return false;
+
+        return true;
+    }
+
+    private int skipSpaces(int index)
+    {
+        while (index < line.length() && line.charAt(index) == ' ')
+            index++;
+
+        return index;
+    }
+
+    private int wordEnd(int index)
+    {
+        while (index < line.length() && line.charAt(index) != ' ')
+            index++;
+
+        return index;
+    }
+
+    private static boolean isTagDelimiter(char c)
+    {
+        return c == ';' || c == ' ';
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static logUtils.Logger.log;
+
+// Fans received lines out to a fixed set of worker threads. Every line is routed
+// by the channel it is about, so everything that happens in one channel (JOIN,
+// PRIVMSG, CLEARCHAT, PART) is handled by the same worker in the order it arrived.
+// Lines without a channel (PING, WHISPER, GLOBALUSERSTATE) all share one worker,
+// keeping them in order too.
+public class MessageDispatcher
+{
+    public enum OverflowPolicy
+    {
+        // Make the caller wait for room. Pushes back all the way to the socket.
+        BLOCK,
+        // Throw away the line that did not fit
+        DROP_NEWEST,
+        // Throw away the oldest queued line to make room
+        DROP_OLDEST;
+
+        public static OverflowPolicy fromString(String name)
+        {
+            for (OverflowPolicy policy : values())
+            {
+                if (policy.name().equalsIgnoreCase(name) ||
+                        policy.name().replace('_', '-').equalsIgnoreCase(name))
+                    return policy;
+            }
+
+            throw new IllegalArgumentException("Unknown overflow policy: " + name);
+        }
+    }
+
+    static final int DEFAULT_WORKER_COUNT = Math.max(2, Runtime.getRuntime().availableProcessors()),
+            DEFAULT_QUEUE_CAPACITY = 1024;
+    static final OverflowPolicy DEFAULT_OVERFLOW_POLICY = OverflowPolicy.BLOCK;
+
+    private final ArrayList<ArrayBlockingQueue<String>> queues = new ArrayList<>();
+    private final ArrayList<Thread> workers = new ArrayList<>();
+    private final OverflowPolicy overflowPolicy;
+    private final AtomicLong dispatched = new AtomicLong(), dropped = new AtomicLong();
+
+    public MessageDispatcher()
+    {
+        this(DEFAULT_WORKER_COUNT, DEFAULT_QUEUE_CAPACITY, DEFAULT_OVERFLOW_POLICY);
+    }
+
+    public MessageDispatcher(int workerCount, int queueCapacity, OverflowPolicy overflowPolicy)
+    {
+        if (workerCount < 1 || queueCapacity < 1)
+            throw new IllegalArgumentException("Need at least one worker with room for one line. Received: " +
+                    workerCount + " workers, " + queueCapacity + " capacity");
+
+        this.overflowPolicy = overflowPolicy;
+
+        for (int count = 0; count < workerCount; count++)
+        {
+            ArrayBlockingQueue<String> queue = new ArrayBlockingQueue<>(queueCapacity);
+            Thread worker = new Thread(() -> work(queue), "messageDispatcher-" + count);
+            worker.setDaemon(true);
+
+            queues.add(queue);
+            workers.add(worker);
+        }
+    }
+
+    public void start()
+    {
+        for (Thread worker : workers)
+            worker.start();
+    }
+
+    // Workers finish the lines already queued and stop
+    public void shutdown()
+    {
+        for (Thread worker : workers)
+            worker.interrupt();
+    }
+
+    // Queue a line for processing. Returns false if the overflow policy threw it away.
+    public boolean dispatch(String data) throws InterruptedException
+    {
+        ArrayBlockingQueue<String> queue = queues.get(shardOf(data, queues.size()));
+        dispatched.incrementAndGet();
+
+        switch (overflowPolicy)
+        {
+            case DROP_NEWEST:
+                if (!queue.offer(data))
+                {
+                    dropped();
+                    return false;
+                }
+                break;
+            case DROP_OLDEST:
+                while (!queue.offer(data))
+                {
+                    if (queue.poll() != null)
+                        dropped();
+                }
+                break;
+            default:
+                queue.put(data);
+        }
+
+        return true;
+    }
+
+    // Lines waiting across all workers
+    public int getQueueDepth()
+    {
+        int depth = 0;
+        for (ArrayBlockingQueue<String> queue : queues)
+            depth += queue.size();
+
+        return depth;
+    }
+
+    public int getQueueDepth(int worker)
+    {
+        return queues.get(worker).size();
+    }
+
+    public int getWorkerCount()
+    {
+        return workers.size();
+    }
+
+    public long getDispatchedCount()
+    {
+        return dispatched.get();
+    }
+
+    public long getDroppedCount()
+    {
+        return dropped.get();
+    }
+
+    public OverflowPolicy getOverflowPolicy()
+    {
+        return overflowPolicy;
+    }
+
+    private void dropped()
+    {
+        long count = dropped.incrementAndGet();
+
+        // Don't flood the log during a raid
+        if (Long.bitCount(count) == 1)
+            log("messageDispatcher behind, dropped " + count + " lines so far. Queue depth: " + getQueueDepth());
+    }
+
+    private void work(ArrayBlockingQueue<String> queue)
+    {
+        while (!Thread.currentThread().isInterrupted())
+        {
+            try
+            {
+                process(queue.take());
+            } catch (InterruptedException e)
+            {
+                break;
+            }
+        }
+
+        // Shut down: what was dispatched before that still gets processed, like the
+        // notice that explains why we're closing
+        String data;
+        while ((data = queue.poll()) != null)
+            process(data);
+    }
+
+    private static void process(String data)
+    {
+        try
+        {
+            new DataProcessor(data).run();
+        } catch (RuntimeException e)
+        {
+            // One bad line should not take the worker down with it
+            log("Failed to process: " + data + " " + e);
+        }
+    }
+
+    // Hash the channel, the first parameter starting with '#', out of a line
+    // (after any IRCv3 tags and prefix) without allocating. Lines without a channel
+    // hash to the same shard.
+    static int shardOf(String data, int shards)
+    {
+        int index = 0, length = data.length();
+
+        // Skip the tags and the prefix
+        for (int skip = 0; skip < 2; skip++)
+        {
+            if (index < length && (data.charAt(index) == '@' || data.charAt(index) == ':'))
+            {
+                index = data.indexOf(' ', index);
+                if (index < 0)
+                    return 0;
+
+                index++;
+            }
+        }
+
+        // Walk the command and the middle parameters. The trailing parameter is
+        // free text, a '#' in it isn't a channel.
+        while (index < length)
+        {
+            char first = data.charAt(index);
+            if (first == ':')
+                return 0;
+
+            if (first == '#')
+                break;
+
+            index = data.indexOf(' ', index);
+            if (index < 0)
+                return 0;
+
+            index++;
+        }
+
+        if (index >= length)
+            return 0;
+
+        int hash = 0;
+        for (; index < length; index++)
+        {
+            char c = data.charAt(index);
+            if (c == ' ')
+                break;
+
+            hash = 31 * hash + c;
+        }
+
+        hash ^= (hash >>> 16);
+        return (hash & Integer.MAX_VALUE) % shards;
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import javafx.collections.ObservableListBase;
+
+import java.util.Collection;
+
+// A channel's scrollback. Fixed size ring of messages: once full, each new message
+// pushes the oldest one out, and neither costs more than a couple of array writes.
+// Handed straight to the message ListView, which only builds nodes for the rows
+// on screen. Like any other list the view looks at, only touch it on the FX thread.
+public class MessageStore extends ObservableListBase<ChatMessage>
+{
+    static final int DEFAULT_CAPACITY = 20000;
+
+    private final ChatMessage[] messages;
+    // Slot of the oldest message
+    private int head = 0, size = 0;
+
+    public MessageStore()
+    {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public MessageStore(int capacity)
+    {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Need a capacity of at least 1. Received: " + capacity);
+
+        messages = new ChatMessage[capacity];
+    }
+
+    @Override
+    public ChatMessage get(int index)
+    {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("index: " + index + " size: " + size);
+
+        return messages[slot(index)];
+    }
+
+    @Override
+    public int size()
+    {
+        return size;
+    }
+
+    public int capacity()
+    {
+        return messages.length;
+    }
+
+    // Adds to the end, dropping the oldest message if we're full
+    public void append(ChatMessage message)
+    {
+        beginChange();
+        push(message);
+        endChange();
+    }
+
+    // One change for the whole batch, so the view only lays out once
+    public void appendAll(Collection<ChatMessage> batch)
+    {
+        if (batch.isEmpty())
+            return;
+
+        beginChange();
+        for (ChatMessage message : batch)
+            push(message);
+        endChange();
+    }
+
+    @Override
+    public void clear()
+    {
+        if (size == 0)
+            return;
+
+        beginChange();
+        for (int index = 0; index < size; index++)
+        {
+            nextRemove(0, messages[slot(index)]);
+            messages[slot(index)] = null;
+        }
+        head = 0;
+        size = 0;
+        endChange();
+    }
+
+    private void push(ChatMessage message)
+    {
+        if (size == messages.length)
+        {
+            nextRemove(0, messages[head]);
+            messages[head] = message;
+            head = (head + 1) % messages.length;
+        } else
+        {
+            messages[slot(size)] = message;
+            size++;
+        }
+
+        nextAdd(size - 1, size);
+    }
+
+    private int slot(int index)
+    {
+        int slot = head + index;
+        return (slot >= messages.length) ? slot - messages.length : slot;
+    }
+}
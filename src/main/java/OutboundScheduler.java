@@ -0,0 +1,338 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+// Decides when each outgoing line may be written so we stay inside Twitch's rate
+// limits. Every kind of traffic Twitch limits separately gets its own token bucket
+// and its own queue, so a backlog of chat never holds up a JOIN and nothing ever
+// holds up a PONG.
+//
+// Twitch counts all of our chat in one window, and only allows the smaller normal
+// budget of it in channels where we aren't a moderator, VIP or the broadcaster. So
+// every chat line is charged to the shared chat bucket, and lines to the other
+// channels to the normal bucket as well.
+public class OutboundScheduler
+{
+    // https://dev.twitch.tv/docs/irc#irc-command-and-message-limits
+    static final int USER_CHAT_LIMIT = 20, MODERATOR_CHAT_LIMIT = 100, CHAT_WINDOW_SECONDS = 30,
+            JOIN_LIMIT = 20, JOIN_WINDOW_SECONDS = 10,
+            WHISPER_LIMIT_PER_SECOND = 3, WHISPER_LIMIT_PER_MINUTE = 100;
+
+    public enum Lane
+    {
+        // Keep alive and login traffic. Never waits on a bucket.
+        PRIORITY,
+        JOIN,
+        WHISPER,
+        CHAT,
+        // Anything Twitch doesn't limit on its own (PART, etc)
+        OTHER
+    }
+
+    public static class PendingLine
+    {
+        private final String line, channel;
+        private final Lane lane;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        PendingLine(String line, Lane lane)
+        {
+            this.line = line;
+            this.lane = lane;
+            this.channel = channelOf(line);
+        }
+
+        public String getLine()
+        {
+            return line;
+        }
+
+        public Lane getLane()
+        {
+            return lane;
+        }
+
+        // The #channel a PRIVMSG goes to, null for anything else
+        public String getChannel()
+        {
+            return channel;
+        }
+
+        public byte[] getBytes()
+        {
+            return (line + "\r\n").getBytes(StandardCharsets.UTF_8);
+        }
+
+        public CompletableFuture<Void> getFuture()
+        {
+            return future;
+        }
+
+        public void written()
+        {
+            future.complete(null);
+        }
+
+        public void failed(Throwable cause)
+        {
+            future.completeExceptionally(cause);
+        }
+    }
+
+    private final ArrayDeque<PendingLine> priority = new ArrayDeque<>(),
+            joins = new ArrayDeque<>(),
+            whispers = new ArrayDeque<>(),
+            chat = new ArrayDeque<>(),
+            other = new ArrayDeque<>();
+
+    private final TokenBucket joinBucket, whisperSecondBucket, whisperMinuteBucket, userChatBucket,
+            chatBucket;
+    // Whether a channel gets the moderator chat budget. Asked every time a line to it
+    // is about to go out, so it may change at any time.
+    private Predicate<String> elevated = channel -> false;
+    // Lets whoever does the writing know there is something new to look at
+    private Runnable wakeup = () -> {};
+
+    public OutboundScheduler()
+    {
+        long now = System.nanoTime();
+        joinBucket = TokenBucket.forWindow(JOIN_LIMIT, JOIN_WINDOW_SECONDS, TimeUnit.SECONDS, now);
+        whisperSecondBucket = TokenBucket.forWindow(WHISPER_LIMIT_PER_SECOND, 1, TimeUnit.SECONDS, now);
+        whisperMinuteBucket = TokenBucket.forWindow(WHISPER_LIMIT_PER_MINUTE, 60, TimeUnit.SECONDS, now);
+        userChatBucket = TokenBucket.forWindow(USER_CHAT_LIMIT, CHAT_WINDOW_SECONDS, TimeUnit.SECONDS, now);
+        chatBucket = TokenBucket.forWindow(MODERATOR_CHAT_LIMIT, CHAT_WINDOW_SECONDS, TimeUnit.SECONDS, now);
+    }
+
+    static Lane laneOf(String line)
+    {
+        if (line.startsWith("PING") || line.startsWith("PONG") || line.startsWith("CAP ") ||
+                line.startsWith("PASS ") || line.startsWith("NICK "))
+            return Lane.PRIORITY;
+
+        if (line.startsWith("JOIN "))
+            return Lane.JOIN;
+
+        if (line.startsWith("PRIVMSG "))
+        {
+            int trailing = line.indexOf(" :");
+            if (trailing >= 0 && (line.startsWith("/w ", trailing + 2) ||
+                    line.startsWith("/whisper ", trailing + 2)))
+                return Lane.WHISPER;
+
+            return Lane.CHAT;
+        }
+
+        return Lane.OTHER;
+    }
+
+    static String channelOf(String line)
+    {
+        if (!line.startsWith("PRIVMSG #"))
+            return null;
+
+        int end = line.indexOf(' ', "PRIVMSG ".length());
+        return line.substring("PRIVMSG ".length(), end < 0 ? line.length() : end);
+    }
+
+    public synchronized CompletableFuture<Void> send(String line)
+    {
+        PendingLine pending = new PendingLine(line, laneOf(line));
+        queueFor(pending.getLane()).add(pending);
+        wakeup.run();
+        return pending.getFuture();
+    }
+
+    public synchronized void setWakeup(Runnable wakeup)
+    {
+        this.wakeup = wakeup;
+    }
+
+    // Moderators (and broadcasters/VIPs) get a much bigger chat budget in their channels
+    public synchronized void setElevatedChannels(Predicate<String> elevated)
+    {
+        this.elevated = elevated;
+        wakeup.run();
+    }
+
+    // Move every line that may be sent right now into batch, up to max lines
+    public synchronized int drainReady(List<PendingLine> batch, int max, long now)
+    {
+        int drained = 0;
+
+        while (drained < max && !priority.isEmpty())
+        {
+            batch.add(priority.poll());
+            drained++;
+        }
+
+        while (drained < max && !other.isEmpty())
+        {
+            batch.add(other.poll());
+            drained++;
+        }
+
+        while (drained < max && !joins.isEmpty() && joinBucket.tryAcquire(now))
+        {
+            batch.add(joins.poll());
+            drained++;
+        }
+
+        while (drained < max && !whispers.isEmpty() &&
+                whisperSecondBucket.hasToken(now) && whisperMinuteBucket.hasToken(now))
+        {
+            whisperSecondBucket.tryAcquire(now);
+            whisperMinuteBucket.tryAcquire(now);
+            batch.add(whispers.poll());
+            drained++;
+        }
+
+        if (drained < max && !chat.isEmpty())
+            drained += drainChat(batch, max - drained, now);
+
+        return drained;
+    }
+
+    // Chat to a channel whose bucket is empty waits without holding up chat to the
+    // others. Lines to one channel still go out in the order they were sent.
+    private int drainChat(List<PendingLine> batch, int max, long now)
+    {
+        int drained = 0;
+        HashSet<String> held = null;
+        Iterator<PendingLine> queued = chat.iterator();
+
+        while (drained < max && queued.hasNext())
+        {
+            PendingLine pending = queued.next();
+            if (held != null && held.contains(pending.getChannel()))
+                continue;
+
+            // Nothing goes out to any channel until the shared bucket refills
+            if (!chatBucket.hasToken(now))
+                break;
+
+            if (isElevated(pending.getChannel()) || userChatBucket.tryAcquire(now))
+            {
+                chatBucket.tryAcquire(now);
+                queued.remove();
+                batch.add(pending);
+                drained++;
+            } else
+            {
+                if (held == null)
+                    held = new HashSet<>();
+
+                held.add(pending.getChannel());
+            }
+        }
+
+        return drained;
+    }
+
+    private boolean isElevated(String channel)
+    {
+        return channel != null && elevated.test(channel);
+    }
+
+    private long nanosUntilChat(String channel, long now)
+    {
+        long wait = chatBucket.nanosUntilAvailable(now);
+        return isElevated(channel) ? wait : Math.max(wait, userChatBucket.nanosUntilAvailable(now));
+    }
+
+    // How long until drainReady would hand something out. 0 if it would right now,
+    // Long.MAX_VALUE if nothing is queued.
+    public synchronized long nanosUntilReady(long now)
+    {
+        if (!priority.isEmpty() || !other.isEmpty())
+            return 0;
+
+        long wait = Long.MAX_VALUE;
+
+        if (!joins.isEmpty())
+            wait = Math.min(wait, joinBucket.nanosUntilAvailable(now));
+
+        if (!whispers.isEmpty())
+            wait = Math.min(wait, Math.max(whisperSecondBucket.nanosUntilAvailable(now),
+                    whisperMinuteBucket.nanosUntilAvailable(now)));
+
+        for (PendingLine pending : chat)
+            wait = Math.min(wait, nanosUntilChat(pending.getChannel(), now));
+
+        return wait;
+    }
+
+    // Put lines that were taken but never made it out back at the front of their
+    // queues, in their original order. Their futures carry over.
+    public synchronized void requeue(Deque<PendingLine> unsent)
+    {
+        Iterator<PendingLine> newestFirst = unsent.descendingIterator();
+        while (newestFirst.hasNext())
+        {
+            PendingLine pending = newestFirst.next();
+            queueFor(pending.getLane()).addFirst(pending);
+        }
+    }
+
+    public synchronized int size()
+    {
+        return priority.size() + joins.size() + whispers.size() + chat.size() + other.size();
+    }
+
+    // Drop everything still waiting. Their futures fail with the given cause.
+    public synchronized void clear(Throwable cause)
+    {
+        for (ArrayDeque<PendingLine> queue : Arrays.asList(priority, joins, whispers, chat, other))
+            clear(queue, cause);
+    }
+
+    // Drop what is waiting in one lane, e.g. login lines that are about to be sent again
+    public synchronized void clear(Lane lane, Throwable cause)
+    {
+        clear(queueFor(lane), cause);
+    }
+
+    private void clear(ArrayDeque<PendingLine> queue, Throwable cause)
+    {
+        PendingLine pending;
+        while ((pending = queue.poll()) != null)
+            pending.failed(cause);
+    }
+
+    private ArrayDeque<PendingLine> queueFor(Lane lane)
+    {
+        switch (lane)
+        {
+            case PRIORITY:
+                return priority;
+            case JOIN:
+                return joins;
+            case WHISPER:
+                return whispers;
+            case CHAT:
+                return chat;
+            default:
+                return other;
+        }
+    }
+}
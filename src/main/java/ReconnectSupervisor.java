@@ -0,0 +1,135 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static logUtils.Logger.log;
+
+// Decides when to try a lost connection again and keeps score of how that goes.
+// Waits grow exponentially up to a cap. Each wait is randomized between half and
+// all of its step so a crowd of clients dropped by the same outage doesn't come
+// back in lock step.
+public class ReconnectSupervisor
+{
+    static final long DEFAULT_BASE_DELAY_MILLIS = 1000, DEFAULT_MAX_DELAY_MILLIS = 60 * 1000;
+
+    private final ConnectionEngine engine;
+    private final Runnable reconnect;
+    private final long baseDelayNanos, maxDelayNanos;
+
+    // Failed attempts since the connection was last healthy
+    private int attempts = 0;
+    private int reconnectCount = 0;
+    // Whether we are in an outage, and since when
+    private boolean lost = false;
+    private long lostSince = 0;
+    private long lastRecoveryNanos = 0, totalRecoveryNanos = 0, maxRecoveryNanos = 0;
+
+    public ReconnectSupervisor(ConnectionEngine engine, Runnable reconnect)
+    {
+        this(engine, reconnect, DEFAULT_BASE_DELAY_MILLIS, DEFAULT_MAX_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public ReconnectSupervisor(ConnectionEngine engine, Runnable reconnect, long baseDelay, long maxDelay,
+                               TimeUnit unit)
+    {
+        if (baseDelay <= 0 || maxDelay < baseDelay)
+            throw new IllegalArgumentException("Need 0 < baseDelay <= maxDelay. Received: " +
+                    baseDelay + ", " + maxDelay);
+
+        this.engine = engine;
+        this.reconnect = reconnect;
+        this.baseDelayNanos = unit.toNanos(baseDelay);
+        this.maxDelayNanos = unit.toNanos(maxDelay);
+    }
+
+    // The connection dropped or an attempt failed. Schedules the next attempt and
+    // returns how long until it happens.
+    public synchronized long connectionLost(TimeUnit unit)
+    {
+        if (!lost)
+        {
+            lost = true;
+            lostSince = System.nanoTime();
+        }
+
+        long delay = delayFor(attempts++);
+        log("Reconnect attempt " + attempts + " in " + TimeUnit.NANOSECONDS.toMillis(delay) + "ms");
+        engine.schedule(reconnect, delay, TimeUnit.NANOSECONDS);
+
+        return unit.convert(delay, TimeUnit.NANOSECONDS);
+    }
+
+    // The connection is healthy again
+    public synchronized void connectionRecovered()
+    {
+        if (!lost)
+            return;
+
+        lastRecoveryNanos = System.nanoTime() - lostSince;
+        totalRecoveryNanos += lastRecoveryNanos;
+        maxRecoveryNanos = Math.max(maxRecoveryNanos, lastRecoveryNanos);
+        reconnectCount++;
+
+        log("Recovered connection after " + attempts + " attempt(s) in " +
+                TimeUnit.NANOSECONDS.toMillis(lastRecoveryNanos) + "ms (" + reconnectCount + " reconnect(s) so far)");
+
+        attempts = 0;
+        lost = false;
+    }
+
+    long delayFor(int attempt)
+    {
+        // Past 62 doublings a long overflows, the cap has long since kicked in anyway
+        long step = (attempt >= 62 || baseDelayNanos > maxDelayNanos >> attempt)
+                    ? maxDelayNanos
+                    : baseDelayNanos << attempt;
+
+        return step / 2 + ThreadLocalRandom.current().nextLong(step / 2 + 1);
+    }
+
+    // How many times we lost the connection and got it back
+    public synchronized int getReconnectCount()
+    {
+        return reconnectCount;
+    }
+
+    // Failed attempts in the current outage
+    public synchronized int getAttempts()
+    {
+        return attempts;
+    }
+
+    public synchronized boolean isRecovering()
+    {
+        return lost;
+    }
+
+    // From losing the connection to being fully usable again, for the last outage
+    public synchronized long getLastRecoveryTime(TimeUnit unit)
+    {
+        return unit.convert(lastRecoveryNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public synchronized long getMaxRecoveryTime(TimeUnit unit)
+    {
+        return unit.convert(maxRecoveryNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public synchronized long getAverageRecoveryTime(TimeUnit unit)
+    {
+        return (reconnectCount == 0) ? 0 : unit.convert(totalRecoveryNanos / reconnectCount, TimeUnit.NANOSECONDS);
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+// Bounded lock free queue for exactly one producer thread and one consumer thread.
+// Used to hand lines from the socket reader to the message processor without
+// locking or copying them.
+public class RingBuffer<E>
+{
+    public enum WaitStrategy
+    {
+        // Burn the core. Lowest latency, only worth it with cores to spare.
+        SPIN,
+        // Give the core away between checks
+        YIELD,
+        // Sleep until the producer signals us
+        PARK;
+
+        public static WaitStrategy fromString(String name)
+        {
+            for (WaitStrategy strategy : values())
+            {
+                if (strategy.name().equalsIgnoreCase(name))
+                    return strategy;
+            }
+
+            throw new IllegalArgumentException("Unknown wait strategy: " + name);
+        }
+    }
+
+    private final Object[] elements;
+    private final int mask;
+    private final WaitStrategy waitStrategy;
+
+    // Next slot to read. Only written by the consumer.
+    private final AtomicLong head = new AtomicLong();
+    // Next slot to write. Only written by the producer.
+    private final AtomicLong tail = new AtomicLong();
+
+    // The producer's last look at head, so it only touches the consumer's cache line
+    // when it thinks we're full
+    private long cachedHead = 0;
+
+    // Set while the consumer is parked, or about to be
+    private volatile Thread waitingConsumer = null;
+
+    public RingBuffer(int capacity, WaitStrategy waitStrategy)
+    {
+        if (capacity < 2)
+            throw new IllegalArgumentException("Capacity must be at least 2. Received: " + capacity);
+
+        // Round up to a power of two so we can mask instead of mod
+        int size = Integer.highestOneBit(capacity - 1) << 1;
+
+        elements = new Object[size];
+        mask = size - 1;
+        this.waitStrategy = waitStrategy;
+    }
+
+    // Producer only
+    public boolean offer(E element)
+    {
+        if (element == null)
+            throw new NullPointerException("RingBuffer does not take null elements");
+
+        long currentTail = tail.get();
+
+        if (currentTail - cachedHead >= elements.length)
+        {
+            cachedHead = head.get();
+            if (currentTail - cachedHead >= elements.length)
+                return false;
+        }
+
+        elements[(int) currentTail & mask] = element;
+        // A full barrier, not lazySet: the consumer writes waitingConsumer and then
+        // reads tail, we write tail and then read waitingConsumer, so one of us is
+        // sure to see the other and the consumer can't sleep through this element
+        tail.set(currentTail + 1);
+
+        Thread consumer = waitingConsumer;
+        if (consumer != null)
+            LockSupport.unpark(consumer);
+
+        return true;
+    }
+
+    // Consumer only. Hands up to limit elements to consumer without waiting and
+    // returns how many it handed over. The head is published once for the whole batch.
+    @SuppressWarnings("unchecked")
+    public int drain(Consumer<? super E> consumer, int limit)
+    {
+        long currentHead = head.get();
+        long available = tail.get() - currentHead;
+        int count = (int) Math.min(available, limit);
+
+        if (count <= 0)
+            return 0;
+
+        for (int drained = 0; drained < count; drained++)
+        {
+            int index = (int) (currentHead + drained) & mask;
+            E element = (E) elements[index];
+            elements[index] = null;
+            consumer.accept(element);
+        }
+
+        head.set(currentHead + count);
+
+        return count;
+    }
+
+    // Consumer only. Like drain, but waits for at least one element. The producer
+    // never waits, a full buffer is offer()'s caller's problem.
+    public int drainBlocking(Consumer<? super E> consumer, int limit) throws InterruptedException
+    {
+        int drained;
+        while ((drained = drain(consumer, limit)) == 0)
+        {
+            waitingConsumer = Thread.currentThread();
+            if (size() == 0)
+                idle();
+            waitingConsumer = null;
+        }
+
+        return drained;
+    }
+
+    public int size()
+    {
+        // Read head first so a racing producer can only make the answer bigger
+        long currentHead = head.get();
+        return (int) Math.max(0, Math.min(tail.get() - currentHead, elements.length));
+    }
+
+    public int remainingCapacity()
+    {
+        return elements.length - size();
+    }
+
+    public int capacity()
+    {
+        return elements.length;
+    }
+
+    public WaitStrategy getWaitStrategy()
+    {
+        return waitStrategy;
+    }
+
+    private void idle() throws InterruptedException
+    {
+        if (Thread.interrupted())
+            throw new InterruptedException();
+
+        switch (waitStrategy)
+        {
+            case SPIN:
+                break;
+            case YIELD:
+                Thread.yield();
+                break;
+            case PARK:
+                // No timeout needed, offer() unparks us. An interrupt wakes us too
+                // and is thrown on the next time around.
+                LockSupport.park(this);
+                break;
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static logUtils.Logger.log;
+
+// Who joined, left or spoke in a channel since the last frame, collected from the
+// dispatcher's workers and handed to the channel's UserList once per frame, after
+// that frame's messages.
+//
+// Twitch sends the users already in a channel as NAMES (353) replies, a few hundred
+// names at a time, and everyone after that as JOIN and PART lines in bursts. All of
+// it, and the name and badges of everyone who speaks, lands here as one pending
+// change per user. The last thing we heard about a user wins, so a PART after a
+// PRIVMSG leaves them parted, and whatever is left goes to the UserList as one
+// batch. Joining a big channel is then a handful of list changes instead of one per user.
+public class RosterUpdates
+{
+    private static final class Change
+    {
+        private static final Change JOIN = new Change(true, null, null, null),
+                PART = new Change(false, null, null, null);
+
+        private final boolean present;
+        // They spoke
+        private final ChatMessage message;
+        // Our own USERSTATE
+        private final String displayName;
+        private final List<String> badges;
+
+        private Change(boolean present, ChatMessage message, String displayName, List<String> badges)
+        {
+            this.present = present;
+            this.message = message;
+            this.displayName = displayName;
+            this.badges = badges;
+        }
+
+        private boolean isJoinOnly()
+        {
+            return present && message == null && displayName == null && badges == null;
+        }
+    }
+
+    private final UserList users;
+
+    // Guarded by this
+    private HashMap<String, Change> pending = new HashMap<>();
+    private boolean scheduled = false;
+    private int namesReceived = 0;
+
+    public RosterUpdates(UserList users)
+    {
+        this.users = users;
+    }
+
+    public void join(String login)
+    {
+        change(login, Change.JOIN);
+    }
+
+    public void part(String login)
+    {
+        change(login, Change.PART);
+    }
+
+    // Someone spoke, their name and badges may have changed
+    public void spoke(ChatMessage message)
+    {
+        change(message.getUser(), new Change(true, message, null, null));
+    }
+
+    // Our own USERSTATE. displayName may be null.
+    public void userState(String login, String displayName, List<String> badgeSignatures)
+    {
+        change(login, new Change(true, null, displayName, badgeSignatures));
+    }
+
+    // The trailing of a 353: logins separated by spaces
+    public void names(String logins)
+    {
+        if (logins == null)
+            return;
+
+        synchronized (this)
+        {
+            int start = 0, length = logins.length();
+            while (start < length)
+            {
+                int end = logins.indexOf(' ', start);
+                if (end < 0)
+                    end = length;
+
+                if (end > start)
+                {
+                    String login = logins.substring(start, end);
+                    Change before = pending.get(login);
+                    if (before == null || !before.present)
+                        pending.put(login, Change.JOIN);
+
+                    namesReceived++;
+                }
+
+                start = end + 1;
+            }
+
+            schedule();
+        }
+    }
+
+    // 366, the last NAMES reply for a channel
+    public synchronized void endOfNames()
+    {
+        log("Received " + namesReceived + " names for " + users.getChannel());
+        namesReceived = 0;
+    }
+
+    private synchronized void change(String login, Change change)
+    {
+        if (login == null)
+            return;
+
+        // A JOIN tells us nothing new about someone we just heard speak
+        Change before = pending.get(login);
+        if (!(change.isJoinOnly() && before != null && before.present))
+            pending.put(login, change);
+
+        schedule();
+    }
+
+    // Guarded by this. One apply per frame however many changes come in before it.
+    private void schedule()
+    {
+        if (scheduled || pending.isEmpty())
+            return;
+
+        scheduled = true;
+        WildChat.uiUpdates.post(this);
+    }
+
+    // FX thread, once per frame from UiUpdateBatcher
+    void apply()
+    {
+        HashMap<String, Change> changes;
+        synchronized (this)
+        {
+            changes = pending;
+            pending = new HashMap<>();
+            scheduled = false;
+        }
+
+        ArrayList<String> joined = new ArrayList<>(), parted = new ArrayList<>();
+        ArrayList<Map.Entry<String, Change>> updated = new ArrayList<>();
+        for (Map.Entry<String, Change> change : changes.entrySet())
+        {
+            if (!change.getValue().present)
+                parted.add(change.getKey());
+            else if (change.getValue().isJoinOnly())
+                joined.add(change.getKey());
+            else
+                updated.add(change);
+        }
+
+        users.applyRoster(joined, parted);
+
+        for (Map.Entry<String, Change> update : updated)
+        {
+            Change change = update.getValue();
+            if (change.message != null)
+                users.addUser(change.message);
+            else
+                users.addUser(update.getKey(), change.displayName, change.badges);
+        }
+    }
+}
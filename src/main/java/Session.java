@@ -13,35 +13,82 @@
  */
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+// Everything that belongs to one joined channel: who is in it, what our user
+// looks like there, the emotes we can use and the messages shown for it.
 public class Session
 {
-    private static String channel = null;
-    boolean mapSet = false;
+    private final String channel;
+    private final UserList userList;
+    private final RosterUpdates rosterUpdates;
+    private final MessageStore messages = new MessageStore(WildChat.scrollback);
+    private volatile boolean joined = false;
+    // Moderator, VIP or broadcaster here, which raises our chat rate limit
+    private volatile boolean elevated = false;
+    private final AtomicBoolean mapSet = new AtomicBoolean(false);
     private String clientColor = null, clientDisplayName = null;
     private ArrayList<String> badgeSignatures = null;
-    private Map<String, String> emoteCodesAndIDs = new HashMap<>();
+    // Filled in from EmoteSetLoader's threads, read on the FX thread
+    private final ConcurrentHashMap<String, String> emoteCodesAndIDs = new ConcurrentHashMap<>();
+    // Our emote codes, for TAB completion
+    private final CompletionIndex emoteCompletions = new CompletionIndex();
 
-    public Session()
+    public Session(String channel)
     {
-        clearData();
+        this.channel = channel;
+        this.userList = new UserList(channel);
+        this.rosterUpdates = new RosterUpdates(userList);
     }
 
-    public static String getChannel()
+    public String getChannel()
     {
         return channel;
     }
 
-    public void setChannel(String newChannel)
+    public UserList getUserList()
     {
-        channel = newChannel;
+        return userList;
     }
 
-    public static void clearData()
+    // Joins and parts on their way to the user list
+    public RosterUpdates getRosterUpdates()
     {
-        channel = null;
+        return rosterUpdates;
+    }
+
+    public MessageStore getMessages()
+    {
+        return messages;
+    }
+
+    // Twitch confirmed our JOIN
+    public boolean isJoined()
+    {
+        return joined;
+    }
+
+    public void setJoined(boolean joined)
+    {
+        this.joined = joined;
+    }
+
+    public boolean isElevated()
+    {
+        return elevated;
+    }
+
+    public void setElevated(boolean elevated)
+    {
+        this.elevated = elevated;
+    }
+
+    // USERSTATE for this channel has arrived
+    public boolean hasUserState()
+    {
+        return badgeSignatures != null;
     }
 
     public ArrayList<String> getBadgeSignatures()
@@ -79,17 +126,26 @@ public class Session
         return emoteCodesAndIDs;
     }
 
-    public void setEmoteCodesAndIDs(Map<String, String> emoteCodesAndIDs)
+    // One emote set's worth, as it arrives
+    public void addEmoteCodesAndIDs(Map<String, String> codesAndIDs)
     {
-        if (mapSet)
-            return;
+        emoteCodesAndIDs.putAll(codesAndIDs);
+        emoteCompletions.addAll(codesAndIDs.keySet());
+    }
 
-        this.emoteCodesAndIDs = emoteCodesAndIDs;
-        mapSet = true;
+    // The first caller gets to load our emote sets, true for it and false for the rest
+    public boolean claimEmoteLoad()
+    {
+        return mapSet.compareAndSet(false, true);
+    }
+
+    public CompletionIndex getEmoteCompletions()
+    {
+        return emoteCompletions;
     }
 
     public boolean isMapSet()
     {
-        return mapSet;
+        return mapSet.get();
     }
 }
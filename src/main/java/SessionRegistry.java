@@ -0,0 +1,112 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+// All the channels we have joined over our one connection, keyed by their #channel
+// name. Received lines find their Session here from the dispatcher's workers while
+// the UI opens, closes and switches between them, so lookups never lock.
+public class SessionRegistry
+{
+    private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+    // Join order, for showing the channels to the user
+    private final ArrayList<String> channels = new ArrayList<>();
+    // The session currently on screen, null when none are open
+    private volatile Session active = null;
+    // From GLOBALUSERSTATE, how we look outside of any channel
+    private volatile String globalColor = null, globalDisplayName = null;
+
+    // Turns "Streamer" or "#Streamer" into "#streamer"
+    public static String normalize(String channel)
+    {
+        channel = channel.trim().toLowerCase();
+        return channel.startsWith("#") ? channel : "#" + channel;
+    }
+
+    // Returns the already open session if there is one
+    public Session open(String channel)
+    {
+        String name = normalize(channel);
+        Session session = sessions.computeIfAbsent(name, Session::new);
+
+        synchronized (channels)
+        {
+            if (!channels.contains(name))
+                channels.add(name);
+        }
+
+        return session;
+    }
+
+    public Session get(String channel)
+    {
+        return channel == null ? null : sessions.get(channel);
+    }
+
+    // Forget a channel. If it was on screen, the next open one takes its place.
+    public Session close(String channel)
+    {
+        Session removed = sessions.remove(channel);
+
+        synchronized (channels)
+        {
+            channels.remove(channel);
+
+            if (removed != null && removed == active)
+                active = channels.isEmpty() ? null : sessions.get(channels.get(channels.size() - 1));
+        }
+
+        return removed;
+    }
+
+    public Session getActive()
+    {
+        return active;
+    }
+
+    public void setActive(Session session)
+    {
+        active = session;
+    }
+
+    public ArrayList<String> getChannels()
+    {
+        synchronized (channels)
+        {
+            return new ArrayList<>(channels);
+        }
+    }
+
+    public void setGlobalUserState(String color, String displayName)
+    {
+        globalColor = color;
+        globalDisplayName = displayName;
+    }
+
+    public String getGlobalColor()
+    {
+        return globalColor;
+    }
+
+    public String getGlobalDisplayName()
+    {
+        return globalDisplayName;
+    }
+
+    public int size()
+    {
+        return sessions.size();
+    }
+}
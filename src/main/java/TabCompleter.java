@@ -0,0 +1,62 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+
+// What TAB does in the message field. "@pre" completes to the most recently active
+// chatter starting with "pre", anything else to one of our emote codes. Pressing TAB
+// again right away moves on to the next best, around and around.
+public class TabCompleter
+{
+    static final int MAX_CANDIDATES = 16;
+
+    private ArrayList<String> candidates = new ArrayList<>();
+    private int next = 0;
+    // The text up to the word being completed, and what we last put in the field
+    private String before = null, completed = null;
+
+    // text with its last word completed, or null if there's nothing to complete it to
+    public String complete(String text, CompletionIndex users, CompletionIndex emotes)
+    {
+        if (completed != null && completed.equals(text) && candidates.size() > 1)
+        {
+            next = (next + 1) % candidates.size();
+            return completed = before + candidates.get(next);
+        }
+
+        reset();
+
+        int wordStart = text.lastIndexOf(' ') + 1;
+        boolean mention = text.startsWith("@", wordStart);
+        String prefix = text.substring(mention ? wordStart + 1 : wordStart);
+        if (prefix.isEmpty())
+            return null;
+
+        candidates = (mention ? users : emotes).complete(prefix, MAX_CANDIDATES);
+        if (candidates.isEmpty())
+            return null;
+
+        before = text.substring(0, mention ? wordStart + 1 : wordStart);
+        return completed = before + candidates.get(0);
+    }
+
+    // Anything but TAB ends a round of cycling
+    public void reset()
+    {
+        candidates = new ArrayList<>();
+        next = 0;
+        before = null;
+        completed = null;
+    }
+}
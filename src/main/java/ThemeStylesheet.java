@@ -0,0 +1,175 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import UISettings.UISettings;
+import javafx.collections.ObservableList;
+import javafx.scene.paint.Color;
+import javafx.scene.paint.Paint;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import static logUtils.Logger.log;
+
+// The look of chat messages, generated from UISettings into one stylesheet. Message
+// nodes only carry a style class, so JavaFX parses the theme once instead of an
+// inline style string on every Label of every message, and a theme change is one
+// stylesheet swap that restyles every row already on screen.
+//
+// Username colours are per user, so they don't go through CSS at all. They are set
+// directly as a Paint, out of a small cache so we don't parse the same colour
+// string for every message a user sends.
+//
+// FX thread only.
+public class ThemeStylesheet
+{
+    static final String TEXT = "chat-text", ACTION = "chat-action", WHISPER = "chat-whisper",
+            LINK = "chat-link", MENTION = "chat-mention", NAME = "chat-name", NOTICE = "chat-notice",
+            CELL = "chat-cell", USER = "chat-user";
+
+    private static final int MAX_CACHED_COLORS = 512;
+
+    // Most recently used last
+    private static final LinkedHashMap<String, Paint> colors =
+            new LinkedHashMap<String, Paint>(MAX_CACHED_COLORS * 4 / 3, 0.75f, true)
+            {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Paint> eldest)
+                {
+                    return size() > MAX_CACHED_COLORS;
+                }
+            };
+
+    private static String currentUrl = null;
+    private static File currentFile = null;
+    private static Paint textPaint = Color.WHITE;
+
+    // Prevent instantiation
+    private ThemeStylesheet() {}
+
+    static String generate(UISettings settings)
+    {
+        // Labels take -fx-text-fill and Text takes -fx-fill, give each class both
+        String fontSize = "    -fx-font-size: " + format(settings.getMessageFontSize()) + ";\n";
+
+        return rule(TEXT, fontSize, settings.getTextFill()) +
+                rule(NOTICE, fontSize, settings.getTextFill()) +
+                rule(ACTION, fontSize, settings.getActionColor()) +
+                rule(WHISPER, fontSize, settings.getWhisperTextColor()) +
+                rule(LINK, "    -fx-font-size: " + format(settings.getUiFont()) + ";\n" +
+                        "    -fx-underline: true;\n" +
+                        "    -fx-cursor: hand;\n", "dodgerblue") +
+                rule(USER, "    -fx-font-size: " + format(settings.getUiFont()) + ";\n", settings.getTextFill()) +
+                rule(MENTION, fontSize + "    -fx-font-weight: bold;\n", settings.getHighlightColor()) +
+                // Colour comes from nameColor()
+                "." + NAME + "\n{\n" + fontSize + "}\n\n" +
+                "." + CELL + "\n{\n" +
+                "    -fx-background-color: transparent;\n" +
+                "    -fx-padding: 1.5 0 1.5 0;\n" +
+                "}\n";
+    }
+
+    private static String rule(String styleClass, String body, String color)
+    {
+        return "." + styleClass + "\n{\n" + body +
+                "    -fx-text-fill: " + color + ";\n" +
+                "    -fx-fill: " + color + ";\n" +
+                "}\n\n";
+    }
+
+    private static String format(double value)
+    {
+        return String.format(Locale.ROOT, "%.1f", value);
+    }
+
+    // Swaps the old theme out of stylesheets for one generated from settings. JavaFX
+    // caches stylesheets by URL, so each theme gets its own file.
+    static void apply(ObservableList<String> stylesheets, UISettings settings)
+    {
+        File file;
+        try
+        {
+            file = File.createTempFile("wildchat-theme", ".css");
+            file.deleteOnExit();
+
+            try (Writer out = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))
+            {
+                out.write(generate(settings));
+            }
+        } catch (IOException e)
+        {
+            log("Could not write the theme: " + e.getMessage());
+            return;
+        }
+
+        String url = file.toURI().toString();
+
+        if (currentUrl != null)
+        {
+            int index = stylesheets.indexOf(currentUrl);
+            if (index >= 0)
+                stylesheets.set(index, url);
+            else
+                stylesheets.add(url);
+        } else
+            stylesheets.add(url);
+
+        if (currentFile != null && !currentFile.delete())
+            log("Could not delete old theme " + currentFile);
+
+        currentUrl = url;
+        currentFile = file;
+        textPaint = parse(settings.getTextFill(), Color.WHITE);
+        log("Applied theme " + url);
+    }
+
+    // What a username is drawn in. Falls back to the text colour for users without
+    // a colour or with one we can't read.
+    static Paint nameColor(String color)
+    {
+        if (color == null)
+            return textPaint;
+
+        Paint paint = colors.get(color);
+        if (paint == null)
+        {
+            paint = parse(color, null);
+            if (paint == null)
+                return textPaint;
+
+            colors.put(color, paint);
+        }
+
+        return paint;
+    }
+
+    private static Paint parse(String color, Paint fallback)
+    {
+        try
+        {
+            return Color.web(color);
+        } catch (IllegalArgumentException e)
+        {
+            log("Bad color: " + color);
+            return fallback;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.concurrent.TimeUnit;
+
+// Classic token bucket. Not thread safe, the owner is expected to lock around it.
+public class TokenBucket
+{
+    private double capacity, tokens, tokensPerNano;
+    private long lastRefill;
+
+    public TokenBucket(int capacity, double tokensPerSecond, long now)
+    {
+        setRate(capacity, tokensPerSecond);
+        this.tokens = capacity;
+        this.lastRefill = now;
+    }
+
+    // Twitch counts messages over a sliding window. A full bucket can spend its burst
+    // and then its refill in the same window, so split the limit between the two:
+    // half up front, the other half trickling in over the window.
+    public static TokenBucket forWindow(int limit, long window, TimeUnit unit, long now)
+    {
+        int burst = Math.max(1, (limit + 1) / 2);
+        double perSecond = (double) (limit - burst) / unit.toSeconds(window);
+        return new TokenBucket(burst, Math.max(perSecond, 0.01), now);
+    }
+
+    public void setRate(int capacity, double tokensPerSecond)
+    {
+        this.capacity = capacity;
+        this.tokensPerNano = tokensPerSecond / TimeUnit.SECONDS.toNanos(1);
+        tokens = Math.min(tokens, capacity);
+    }
+
+    public boolean tryAcquire(long now)
+    {
+        refill(now);
+
+        if (tokens < 1)
+            return false;
+
+        tokens--;
+        return true;
+    }
+
+    public boolean hasToken(long now)
+    {
+        refill(now);
+        return tokens >= 1;
+    }
+
+    // 0 when a token is available right now
+    public long nanosUntilAvailable(long now)
+    {
+        refill(now);
+
+        if (tokens >= 1)
+            return 0;
+
+        return (long) Math.ceil((1 - tokens) / tokensPerNano);
+    }
+
+    // now is System.nanoTime(), compared by difference since it may wrap
+    private void refill(long now)
+    {
+        if (now - lastRefill > 0)
+        {
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+            lastRefill = now;
+        }
+    }
+}
@@ -12,117 +12,133 @@
  * limitations under the License.
  */
 
-import javafx.application.Platform;
 
 import java.io.*;
-import java.net.Socket;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
 
 import static logUtils.Logger.log;
 
-public class TwitchConnect implements Runnable
+public class TwitchConnect implements Runnable, IrcConnection.Handler
 {
-    // Basically a first in first out array list that is also thread safe :D
-    private static LinkedBlockingQueue<String> messages = new LinkedBlockingQueue<>();
-    private static PipedOutputStream pipedOutputStream = new PipedOutputStream();
-    private static PipedInputStream pipedInputStream = new PipedInputStream();
+    static final int DEFAULT_RECEIVE_BUFFER_SIZE = 8192;
+    static final RingBuffer.WaitStrategy DEFAULT_WAIT_STRATEGY = RingBuffer.WaitStrategy.PARK;
+    // Most lines the messageProcessor takes off of the receive buffer at once
+    private static final int PROCESSOR_BATCH_SIZE = 256;
+    // Twitch PINGs us about every five minutes, but busy channels are never quiet that
+    // long. After a minute of silence we PING twitch, and if that gets no answer either
+    // the connection is dead.
+    static final int IDLE_PING_SECONDS = 60, PING_TIMEOUT_SECONDS = 20;
+    // Holds outgoing lines until Twitch's rate limits allow them out
+    private final OutboundScheduler outbound = new OutboundScheduler();
+    // Where the connection is at. The messageProcessor waits on it.
+    private final ConnectionLifecycle lifecycle = new ConnectionLifecycle();
     // The client using the program. Contains the user name and OAUTH token.
     private final Client client;
+    // Lines handed from the messageReceiver to the messageProcessor
+    private RingBuffer<String> receivedLines;
+    // Handed off after the last line once we're CLOSED, so the messageProcessor
+    // processes everything before it and stops. Compared by identity.
+    private static final String END_OF_LINES = new String("");
+    // The connection stopped reading because receivedLines was full. Whoever flips
+    // it back gets to resume it.
+    private final AtomicBoolean readingPaused = new AtomicBoolean(false);
+    // Processes lines on a fixed set of workers, keeping each channel's lines in order
+    private MessageDispatcher dispatcher;
     private final Thread messageProcessor = new Thread(() ->
     {
-        // Some thread safety?
-        while (!getMessageReceiverRunning())
-            ;
-
-        DataInputStream inputStream = null;
-        ExecutorService executor =
-                Executors.newCachedThreadPool();
         try
         {
-            pipedInputStream.connect(pipedOutputStream);
-            inputStream = new DataInputStream(pipedInputStream);
-        } catch (IOException e)
+            if (!lifecycle.awaitConnected())
+                return;
+        } catch (InterruptedException e)
         {
             log(e.getMessage());
+            return;
         }
 
-        if (inputStream != null)
-        {
-            while (!Thread.currentThread().isInterrupted())
-            {
-                String data = null;
-                try
-                {
-                    data = inputStream.readUTF();
-                } catch (IOException e)
-                {
-                    log(e.getMessage());
-                }
-                executor.execute(new DataProcessor(data));
-            }
-        }
-    });
-    private DataInputStream is;
-    private DataOutputStream os;
-    private String initialChannel = null;
-    private boolean acceptingMessages = true, messageReceiverRunning = false;
-    private final Thread messageSender = new Thread(() ->
-    {
-        // Some thread safety?
-        while (!getMessageReceiverRunning())
-            ;
+        dispatcher.start();
 
-        log("messageSender running");
-        while (!Thread.currentThread().isInterrupted())
+        boolean[] ended = { false };
+        while (!ended[0] && !Thread.currentThread().isInterrupted())
         {
             try
             {
-                // Don't spam twitch. It doesn't like it.
-                Thread.sleep(777);
-            } catch (InterruptedException y)
-            {
-                log(y.getMessage());
-            }
+                receivedLines.drainBlocking(data ->
+                {
+                    if (data == END_OF_LINES)
+                    {
+                        ended[0] = true;
+                        return;
+                    }
 
-            if (messages.size() < 1)
-                continue;
+                    try
+                    {
+                        dispatcher.dispatch(data);
+                    } catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                }, PROCESSOR_BATCH_SIZE);
 
-            if (messages.peek() == null)
-                continue;
-
-            try
-            {
-                if (getAcceptingMessages())
-                {
-                    log("messageSender sending: " + messages.peek());
-                    os.write(messages.poll().getBytes());
-                    os.flush();
-                }
-            } catch (IOException y)
+                if (readingPaused.get() && receivedLines.remainingCapacity() >= receivedLines.capacity() / 2 &&
+                        readingPaused.compareAndSet(true, false))
+                    resumeReading();
+            } catch (InterruptedException e)
             {
-                log(y.getMessage());
+                log(e.getMessage());
+                break;
             }
         }
+
+        dispatcher.shutdown();
     });
+    private String initialChannel = null;
+    private boolean acceptingMessages = true;
+    // Runs the socket for us along with any other connections in this process
+    private final ConnectionEngine engine;
+    private volatile IrcConnection connection = null;
+    // Brings the connection back when it drops
+    private final ReconnectSupervisor supervisor;
+    // The line onLine() is looking at. Only used on the engine's thread.
+    private final IrcMessage received = new IrcMessage();
+    private volatile boolean closing = false;
 
     public TwitchConnect(Client client)
     {
-        this.client = client;
+        this(client, null);
     }
 
     public TwitchConnect(Client client, String initialChannel)
+    {
+        this(client, initialChannel, DEFAULT_RECEIVE_BUFFER_SIZE, DEFAULT_WAIT_STRATEGY, new MessageDispatcher(),
+                new ConnectionEngine());
+    }
+
+    public TwitchConnect(Client client, String initialChannel, int receiveBufferSize,
+                         RingBuffer.WaitStrategy waitStrategy, MessageDispatcher dispatcher,
+                         ConnectionEngine engine)
     {
         this.client = client;
         this.initialChannel = initialChannel;
+        this.receivedLines = new RingBuffer<>(receiveBufferSize, waitStrategy);
+        this.dispatcher = dispatcher;
+        this.engine = engine;
+        this.supervisor = new ReconnectSupervisor(engine, this::reconnect);
+    }
+
+    public MessageDispatcher getDispatcher()
+    {
+        return dispatcher;
     }
 
     public void run()
     {
-        log("Starting messageReceiver service");
-        // Connect
-        connect();
+        log("Starting messageProcessor service");
+        messageProcessor.start();
 
         // Login
         logIn();
@@ -130,79 +146,201 @@ public class TwitchConnect implements Runnable
         // Enable TwitchAPI options
         twitchAPIOps();
 
-        // Start message Sender Thread
-        log("Starting messageSender service");
-        messageSender.start();
-        log("Starting messageProcessor service");
-        messageProcessor.start();
+        joinInitialChannel();
+
+        // Connect. Everything from here on happens on the engine's thread.
+        connect();
+    }
+
+    // Drop the current connection and go through the usual reconnect, e.g. because
+    // twitch sent RECONNECT before restarting the server we're on
+    public void requestReconnect()
+    {
+        IrcConnection current = connection;
+        if (current != null)
+            current.close();
+    }
+
+    // Leave twitch for good
+    public void close()
+    {
+        closing = true;
+
+        IrcConnection current = connection;
+        if (current != null)
+            current.close();
+    }
 
-        DataOutputStream outputStream = new DataOutputStream(pipedOutputStream);
+    @Override
+    public void onConnected(IrcConnection connection)
+    {
+        WildChat.connected = true;
+        lifecycle.transition(ConnectionLifecycle.State.AUTHENTICATING);
+    }
 
-        log("messageReceiver service running");
-        setMessageReceiverRunning(true);
-        while (!Thread.currentThread().isInterrupted())
+    @Override
+    public boolean onLine(IrcConnection connection, IrcLine line)
+    {
+        // Parsed in place, before anything is copied out of the receive buffer, to
+        // pick out the few lines we answer ourselves
+        IrcCommand command = IrcCommand.of(received.parse(line));
+
+        if (command == IrcCommand.PING)
+        {
+            sendMessage(pong(received));
+            return true;
+        } else if (command == IrcCommand.WELCOME &&
+                lifecycle.getState() == ConnectionLifecycle.State.AUTHENTICATING)
         {
-            // Don't add the received data directly to the StringProperty.
-            // Check it for relevance before adding.
-            String tmpData = String.valueOf(BasicIO.readLine(is));
+            lifecycle.transition(ConnectionLifecycle.State.READY);
 
-            if (tmpData.substring(0, 4).equals("PING"))
-            {
-                sendMessage("PONG " + tmpData.substring(5));
-            } else if (tmpData.length() > 51 && tmpData.substring(0, 52).equals(
-                    ":tmi.twitch.tv NOTICE * :Login authentication failed"))
+            if (supervisor.isRecovering())
             {
-                log("Bad credentials received");
-                setAcceptingMessages(false);
-                try
-                {
-                    outputStream.writeUTF("EEE: Incorrect login information!");
-                } catch (IOException e)
-                {
-                    log(e.getMessage());
-                }
-                messages.clear();
-            } else
-            {
-                try
-                {
-                    outputStream.writeUTF(tmpData);
-                } catch (IOException e)
-                {
-                    log(e.getMessage());
-                }
+                supervisor.connectionRecovered();
+                WildChat.uiUpdates.post(() -> WildChat.displayMessage("Reconnected to twitch.tv!"));
             }
+
+            return handOff(line.toString());
+        } else if (command == IrcCommand.NOTICE && received.hasTrailing() &&
+                received.getTrailing().startsWith("Login authentication failed"))
+        {
+            log("Bad credentials received");
+            setAcceptingMessages(false);
+            outbound.clear(new IOException("Login authentication failed"));
+            return handOff("EEE: Incorrect login information!");
+        } else
+        {
+            return handOff(line.toString());
         }
+    }
+
+    // The answer to a PING: PONG with whatever its last parameter was, so the
+    // server can match them up. A PING without one gets a bare PONG.
+    static String pong(IrcMessage ping)
+    {
+        if (ping.hasTrailing())
+            return "PONG :" + ping.getTrailing();
 
-        if (Thread.currentThread().isInterrupted())
+        return (ping.getParamCount() == 0) ? "PONG" : "PONG " + ping.getParam(ping.getParamCount() - 1);
+    }
+
+    @Override
+    public void onIdle(IrcConnection connection)
+    {
+        log("Nothing heard from twitch IRC services in a while, checking on them");
+        sendMessage("PING :tmi.twitch.tv");
+    }
+
+    @Override
+    public void onClosed(IrcConnection connection, IOException cause)
+    {
+        WildChat.connected = false;
+
+        if (cause == null)
+            log("Twitch IRC services closed the connection");
+        else
+            log("Lost connection to twitch IRC services: " + cause.getMessage());
+
+        // Bad credentials won't get any better by trying again
+        if (closing || !getAcceptingMessages())
         {
-            messageSender.interrupt();
-            messageProcessor.interrupt();
+            lifecycle.transition(ConnectionLifecycle.State.CLOSED);
+            outbound.clear(cause != null ? cause : new IOException("Connection closed"));
+            endLines();
+            return;
         }
+
+        lifecycle.transition(ConnectionLifecycle.State.RECONNECTING);
+        long delay = supervisor.connectionLost(TimeUnit.SECONDS);
+        WildChat.uiUpdates.post(() -> WildChat.displayMessage("Lost connection to twitch.tv! Reconnecting in " +
+                delay + " second(s)..."));
     }
 
-    private void connect()
+    // Give a line to the messageProcessor. If it has fallen behind this returns false
+    // and the connection stops reading, leaving the line in its buffer, until the
+    // messageProcessor has made room. That's the backpressure we want: TCP slows
+    // twitch down, and the event loop keeps serving everything else in the meantime.
+    private boolean handOff(String data)
     {
-        try
+        if (receivedLines.offer(data))
+            return true;
+
+        // The messageProcessor may have made room between the two offers without
+        // seeing the flag, so look once more before giving up
+        readingPaused.set(true);
+        if (receivedLines.offer(data))
         {
-            log("Connecting to twitch IRC services");
-            Socket socket = new Socket(TwitchConnectionInfo.getIrcChatTwitchTv(), TwitchConnectionInfo.getPort());
-            WildChat.connected = true;
-            is = new DataInputStream(socket.getInputStream());
-            os = new DataOutputStream(socket.getOutputStream());
-            log("Connection started");
-        } catch (IOException e)
+            readingPaused.compareAndSet(true, false);
+            return true;
+        }
+
+        return false;
+    }
+
+    // Nothing more is coming, so let the messageProcessor finish and stop. It isn't a
+    // daemon and would otherwise wait on an empty buffer forever. We're the only
+    // producer, and if the buffer is full there's no room to say so politely.
+    private void endLines()
+    {
+        if (!receivedLines.offer(END_OF_LINES))
+            messageProcessor.interrupt();
+    }
+
+    private void resumeReading()
+    {
+        IrcConnection current = connection;
+        if (current != null)
+            current.resumeReading();
+    }
+
+    private void connect()
+    {
+        log("Connecting to twitch IRC services");
+        lifecycle.transition(ConnectionLifecycle.State.CONNECTING);
+        connection = new IrcConnection(new InetSocketAddress(
+                TwitchConnectionInfo.getIrcChatTwitchTv(), TwitchConnectionInfo.getPort()), outbound, this);
+        connection.setTimeouts(IDLE_PING_SECONDS, IDLE_PING_SECONDS + PING_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        engine.register(connection);
+    }
+
+    // Runs on the engine's thread once the supervisor's wait is over. Whatever was
+    // queued while we were down stays queued, only the login and the JOINs are redone.
+    private void reconnect()
+    {
+        if (closing)
+            return;
+
+        // Stale PONGs and any login lines that never made it out
+        IOException replaced = new IOException("Replaced by a new login");
+        outbound.clear(OutboundScheduler.Lane.PRIORITY, replaced);
+        outbound.clear(OutboundScheduler.Lane.JOIN, replaced);
+
+        logIn();
+        twitchAPIOps();
+        rejoinChannels();
+        connect();
+    }
+
+    // JOIN every channel we have a session for again. They go through the JOIN lane's
+    // rate limit like any other JOIN.
+    private void rejoinChannels()
+    {
+        for (String channel : WildChat.sessions.getChannels())
         {
-            WildChat.connected = false;
-            log(e.getMessage());
-            log("Failed to connect to twitch IRC services");
+            Session session = WildChat.sessions.get(channel);
+            if (session == null)
+                continue;
+
+            log("Rejoining " + channel);
+            session.setJoined(false);
+            sendMessage("JOIN " + channel);
         }
     }
 
     private void logIn()
     {
         log("Sending client credentials");
-        // None of this actually happens until the messageSender is started
+        // None of this actually happens until the connection is up
         sendMessage("PASS oauth:" + client.getOauth());
         sendMessage("NICK " + client.getNick());
     }
@@ -210,17 +348,23 @@ public class TwitchConnect implements Runnable
     private void twitchAPIOps()
     {
         log("Requesting advanced operations from twitch IRC");
-        // None of this actually happens until the messenger services is started
+        // None of this actually happens until the connection is up
         sendMessage("CAP REQ :twitch.tv/membership");
         sendMessage("CAP REQ :twitch.tv/tags");
         sendMessage("CAP REQ :twitch.tv/commands");
+    }
+
+    private void joinInitialChannel()
+    {
         if (initialChannel != null)
         {
-            sendMessage("JOIN " + initialChannel);
-            Platform.runLater(() ->
+            // Open the session first so it's there when twitch answers
+            Session session = WildChat.sessions.open(initialChannel);
+            sendMessage("JOIN " + session.getChannel());
+            WildChat.uiUpdates.post(() ->
             {
-                WildChat.session.setChannel(initialChannel);
-                WildChat.displayMessage("Joining channel " + initialChannel + "...");
+                WildChat.showSession(session);
+                WildChat.displayMessage(session, "Joining channel " + session.getChannel() + "...");
             });
         }
     }
@@ -235,29 +379,33 @@ public class TwitchConnect implements Runnable
         this.acceptingMessages = acceptingMessages;
     }
 
-    private synchronized boolean getMessageReceiverRunning()
+    public ConnectionLifecycle getLifecycle()
     {
-        return this.messageReceiverRunning;
+        return lifecycle;
     }
 
-    private synchronized void setMessageReceiverRunning(boolean messageReceiverRunning)
+    // Reconnect counts and recovery times
+    public ReconnectSupervisor getReconnectSupervisor()
     {
-        this.messageReceiverRunning = messageReceiverRunning;
+        return supervisor;
     }
 
-    // Send a message to the Twitch IRC
-    public synchronized void sendMessage(String command)
+    // Send a message to the Twitch IRC. The future completes once the line has been written.
+    public CompletableFuture<Void> sendMessage(String command)
     {
-
-        if (acceptingMessages)
+        if (!getAcceptingMessages())
         {
-            try
-            {
-                messages.put(command + "\r\n");
-            } catch (InterruptedException e)
-            {
-                System.out.println(e.getMessage());
-            }
+            CompletableFuture<Void> rejected = new CompletableFuture<>();
+            rejected.completeExceptionally(new IllegalStateException("Not accepting messages"));
+            return rejected;
         }
+
+        return outbound.send(command);
+    }
+
+    // Moderators get a bigger chat budget from twitch in the channels they moderate
+    public void setElevatedChannels(Predicate<String> elevated)
+    {
+        outbound.setElevatedChannels(elevated);
     }
 }
@@ -0,0 +1,243 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import javafx.animation.AnimationTimer;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static logUtils.Logger.log;
+
+// Collects what the dispatcher's workers want to change on screen and applies it
+// once per frame, instead of every line posting its own Platform.runLater. Messages
+// for the same channel that arrive within one frame go into its scrollback as a
+// single change, so the view lays out once per frame no matter how busy chat gets.
+//
+// Who joined, left or spoke doesn't come through here one update at a time: each
+// channel's RosterUpdates collects it and is applied once at the end of the frame.
+// Runnables are for rare things like a cleared chat or a new title, and hold up the
+// messages queued behind them until the ones before them are shown.
+//
+// At most maxPerFrame updates are applied per frame, the rest wait for the next one.
+// If chat outruns us for long enough that maxPending updates are waiting, new chat
+// messages are dropped until we catch up. Our own notices and user list changes
+// never are.
+public class UiUpdateBatcher extends AnimationTimer
+{
+    static final int DEFAULT_MAX_PER_FRAME = 500,
+            DEFAULT_MAX_PENDING = 20000;
+    private static final long REPORT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    // Either a message for a session's scrollback (null for the status view) or
+    // anything else to run
+    private static final class Update
+    {
+        private final Session session;
+        private final ChatMessage message;
+        private final Runnable action;
+
+        private Update(Session session, ChatMessage message, Runnable action)
+        {
+            this.session = session;
+            this.message = message;
+            this.action = action;
+        }
+    }
+
+    private final ConcurrentLinkedQueue<Update> updates = new ConcurrentLinkedQueue<>();
+    // Channels whose user list has changes waiting. Each is in here at most once.
+    private final ConcurrentLinkedQueue<RosterUpdates> rosters = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicLong dropped = new AtomicLong();
+    private final int maxPerFrame, maxPending;
+
+    // Everything below is only touched on the FX thread
+
+    // Messages collected so far this frame, per session
+    private final LinkedHashMap<Session, ArrayList<ChatMessage>> batches = new LinkedHashMap<>();
+    private long frames = 0, applied = 0, deferredFrames = 0;
+    private int lastBatchSize = 0, maxBatchSize = 0;
+    private long lastReport = 0, droppedAtLastReport = 0;
+
+    public UiUpdateBatcher()
+    {
+        this(DEFAULT_MAX_PER_FRAME, DEFAULT_MAX_PENDING);
+    }
+
+    public UiUpdateBatcher(int maxPerFrame, int maxPending)
+    {
+        if (maxPerFrame < 1 || maxPending < maxPerFrame)
+            throw new IllegalArgumentException("Need 1 <= maxPerFrame <= maxPending. Received: " +
+                    maxPerFrame + ", " + maxPending);
+
+        this.maxPerFrame = maxPerFrame;
+        this.maxPending = maxPending;
+    }
+
+    // Show a message in a session, or in the status view for a null session. Any thread.
+    public void post(Session session, ChatMessage message)
+    {
+        if (!message.isNotice() && pending.get() >= maxPending)
+        {
+            dropped.incrementAndGet();
+            return;
+        }
+
+        pending.incrementAndGet();
+        updates.add(new Update(session, message, null));
+    }
+
+    public void postNotice(Session session, String notice)
+    {
+        post(session, ChatMessage.notice((session == null) ? null : session.getChannel(), notice));
+    }
+
+    // Run something on the FX thread, in order with the messages around it. Any thread.
+    public void post(Runnable action)
+    {
+        pending.incrementAndGet();
+        updates.add(new Update(null, null, action));
+    }
+
+    // Apply a channel's user list changes at the end of the next frame. Any thread.
+    public void post(RosterUpdates roster)
+    {
+        rosters.add(roster);
+    }
+
+    @Override
+    public void handle(long now)
+    {
+        int batchSize = 0;
+        Update update;
+
+        while (batchSize < maxPerFrame && (update = updates.poll()) != null)
+        {
+            batchSize++;
+
+            if (update.action == null)
+            {
+                batches.computeIfAbsent(update.session, session -> new ArrayList<>()).add(update.message);
+                continue;
+            }
+
+            // Whatever it does has to see the messages that came before it
+            flush();
+
+            try
+            {
+                update.action.run();
+            } catch (RuntimeException e)
+            {
+                log("UI update failed: " + e);
+            }
+        }
+
+        flush();
+        pending.addAndGet(-batchSize);
+
+        RosterUpdates roster;
+        while ((roster = rosters.poll()) != null)
+        {
+            try
+            {
+                roster.apply();
+            } catch (RuntimeException e)
+            {
+                log("User list update failed: " + e);
+            }
+        }
+
+        if (batchSize > 0)
+        {
+            frames++;
+            applied += batchSize;
+            lastBatchSize = batchSize;
+            maxBatchSize = Math.max(maxBatchSize, batchSize);
+
+            if (!updates.isEmpty())
+                deferredFrames++;
+        }
+
+        report(now);
+    }
+
+    private void flush()
+    {
+        for (Map.Entry<Session, ArrayList<ChatMessage>> batch : batches.entrySet())
+            WildChat.displayMessages(batch.getKey(), batch.getValue());
+
+        batches.clear();
+    }
+
+    // Only says something when we are falling behind
+    private void report(long now)
+    {
+        if (now - lastReport < REPORT_INTERVAL_NANOS)
+            return;
+
+        long droppedNow = dropped.get();
+        if (droppedNow != droppedAtLastReport || pending.get() > maxPerFrame)
+            log("UI updates: " + pending.get() + " pending, last batch " + lastBatchSize + ", max batch " +
+                    maxBatchSize + ", " + deferredFrames + " frame(s) left work over, " +
+                    (droppedNow - droppedAtLastReport) + " message(s) dropped since last report");
+
+        lastReport = now;
+        droppedAtLastReport = droppedNow;
+    }
+
+    public int getPending()
+    {
+        return pending.get();
+    }
+
+    // Chat messages thrown away because we were too far behind
+    public long getDropped()
+    {
+        return dropped.get();
+    }
+
+    // The rest are only meaningful on the FX thread
+
+    public int getLastBatchSize()
+    {
+        return lastBatchSize;
+    }
+
+    public int getMaxBatchSize()
+    {
+        return maxBatchSize;
+    }
+
+    // Frames that hit maxPerFrame and pushed work to the next frame
+    public long getDeferredFrames()
+    {
+        return deferredFrames;
+    }
+
+    public long getFrames()
+    {
+        return frames;
+    }
+
+    public long getApplied()
+    {
+        return applied;
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import javafx.geometry.Pos;
+import javafx.scene.control.Label;
+import javafx.scene.control.ListCell;
+import javafx.scene.image.ImageView;
+import javafx.scene.layout.HBox;
+
+// One row of the user list: the user's badges, then their name. Like the message
+// view, only the rows on screen exist and they're handed whichever user scrolls
+// into their spot.
+public class UserCell extends ListCell<UserList.User>
+{
+    private final HBox row = new HBox();
+    private final Label name = new Label();
+
+    public UserCell()
+    {
+        getStyleClass().add(ThemeStylesheet.CELL);
+        name.getStyleClass().add(ThemeStylesheet.USER);
+        row.setAlignment(Pos.CENTER_LEFT);
+        row.setSpacing(WildChat.uiFont * 0.33);
+    }
+
+    @Override
+    protected void updateItem(UserList.User user, boolean empty)
+    {
+        super.updateItem(user, empty);
+        setText(null);
+
+        if (empty || user == null)
+        {
+            setGraphic(null);
+            return;
+        }
+
+        String channel = (getListView().getItems() instanceof UserList)
+                         ? ((UserList) getListView().getItems()).getChannel()
+                         : null;
+
+        row.getChildren().clear();
+        for (int badge = 0; badge < user.getBadgeCount(); badge++)
+        {
+            ImageView view = ChatMessageRenderer.badgeView(channel, user.getBadge(badge));
+            if (view != null)
+                row.getChildren().add(view);
+        }
+
+        name.setText(user.getName());
+        row.getChildren().add(name);
+        setGraphic(row);
+    }
+}
@@ -12,141 +12,322 @@
  * limitations under the License.
  */
 
-import javafx.geometry.Pos;
-import javafx.scene.Node;
-import javafx.scene.control.Label;
-import javafx.scene.image.Image;
-import javafx.scene.image.ImageView;
-import javafx.scene.layout.HBox;
-import javafx.scene.layout.VBox;
+import javafx.collections.ObservableListBase;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
 
-import static UISettings.ReadOnlyUISettings.getTextFill;
-import static UISettings.ReadOnlyUISettings.getUiFont;
-
-public class UserList extends VBox
+// The users in one channel, in the order the user list shows them: broadcaster,
+// staff, moderators, VIPs and subscribers first, then everybody else, each group by
+// name. A ListView shows it, so only the rows on screen have nodes.
+//
+// Users are found by login through a map, and the sorted list is kept sorted one
+// binary searched insert or remove at a time. Every change is one small list change,
+// so a join in a channel of 20000 users doesn't touch the other 19999 rows. Joins and
+// parts come in through RosterUpdates, a frame's worth at a time.
+//
+// FX thread only, like the ListView it's shown in.
+public class UserList extends ObservableListBase<UserList.User>
 {
-    private ArrayList<String> users = new ArrayList<>();
+    private static final String[] NO_BADGES = new String[0];
 
-    public UserList() {}
+    // Lower ranks are listed first
+    private static final String[] RANKED_SETS = {
+            "broadcaster", "staff", "admin", "global_mod", "moderator", "vip", "subscriber"
+    };
+    private static final int UNRANKED = RANKED_SETS.length;
+    // More joins and parts than this in one frame rebuild the list in one pass
+    private static final int INCREMENTAL_LIMIT = 64;
 
-    public void addUser(String userName, ArrayList<Image> badges)
+    private static final Comparator<User> ORDER = (a, b) ->
     {
-        if (badges == null)
+        if (a.rank != b.rank)
+            return Integer.compare(a.rank, b.rank);
+
+        int byName = a.sortName.compareTo(b.sortName);
+        return (byName != 0) ? byName : a.login.compareTo(b.login);
+    };
+
+    public static final class User
+    {
+        private final String login, name, sortName;
+        private final String[] badges;
+        private final int rank;
+
+        private User(String login, String name, String[] badges)
         {
-            addUser(userName);
-            return;
+            this.login = login;
+            this.name = name;
+            this.sortName = name.toLowerCase(Locale.ROOT);
+            this.badges = badges;
+            this.rank = rank(badges);
         }
 
-        if (indexOfUsersHBox(userName) != null)
+        public String getLogin()
         {
-            addBadgesToUser(userName, badges);
-            return;
+            return login;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        // What @mentions them: their display name, unless it's more than a change of
+        // case from their login
+        public String mention()
+        {
+            return name.equalsIgnoreCase(login) ? name : login;
+        }
+
+        public int getBadgeCount()
+        {
+            return badges.length;
+        }
+
+        public String getBadge(int badge)
+        {
+            return badges[badge];
+        }
+
+        @Override
+        public String toString()
+        {
+            return name;
         }
+    }
+
+    private final String channel;
+    private final HashMap<String, User> byLogin = new HashMap<>();
+    private final ArrayList<User> sorted = new ArrayList<>();
+    // Whoever is here, for @mention completion
+    private final CompletionIndex completions = new CompletionIndex();
+
+    public UserList()
+    {
+        this(null);
+    }
+
+    public UserList(String channel)
+    {
+        this.channel = channel;
+    }
 
-        addUser(userName);
-        addBadgesToUser(userName, badges);
+    // The channel whose badges the rows show
+    public String getChannel()
+    {
+        return channel;
+    }
+
+    @Override
+    public User get(int index)
+    {
+        return sorted.get(index);
+    }
+
+    @Override
+    public int size()
+    {
+        return sorted.size();
     }
 
-    public void addUser(String userName)
+    // Someone spoke, or our own USERSTATE came in. Moves them where they belong if
+    // their badges changed. displayName may be null, the login is shown then.
+    public void addUser(String login, String displayName, List<String> badgeSignatures)
     {
-        if (indexOfUsersHBox(userName) != null)
+        if (login == null)
+            return;
+
+        String name = (displayName == null || displayName.isEmpty()) ? login : displayName;
+        String[] badges = (badgeSignatures == null || badgeSignatures.isEmpty())
+                          ? NO_BADGES
+                          : badgeSignatures.toArray(new String[badgeSignatures.size()]);
+
+        User old = byLogin.get(key(login));
+        if (old != null && old.name.equals(name) && Arrays.equals(old.badges, badges))
             return;
 
-        HBox userContainter = new HBox();
-        Label userNameLabel = new Label(userName);
-        userNameLabel.setStyle("-fx-font-size: " + getUiFont() + ";" +
-                "-fx-text-fill: " + getTextFill() + ";");
+        put(new User(key(login), name, badges));
+    }
 
-        userNameLabel.setCache(true);
+    public void addUser(ChatMessage message)
+    {
+        ArrayList<String> badges = new ArrayList<>(message.getBadgeCount());
+        for (int badge = 0; badge < message.getBadgeCount(); badge++)
+            badges.add(message.getBadge(badge));
 
-        userContainter.getChildren().add(userNameLabel);
-        userContainter.setSpacing(3.0);
-        userContainter.setCache(true);
+        addUser(message.getUser(), message.getDisplayName(), badges);
 
-        users.add(userName);
+        User user = byLogin.get(key(message.getUser()));
+        if (user != null)
+            completions.touch(user.mention());
+    }
 
-        this.getChildren().add(userContainter);
+    public CompletionIndex getCompletions()
+    {
+        return completions;
     }
 
-    public Integer indexOfUsersHBox(String userToSearchFor)
+    // Everyone who joined and left since the last frame, as one list change. A few
+    // users are inserted and removed one by one, a roster's worth are merged in with
+    // one pass over the list.
+    public void applyRoster(List<String> joined, List<String> parted)
     {
-        for (Node hbox : this.getChildren())
+        ArrayList<User> added = new ArrayList<>(joined.size());
+        ArrayList<String> mentions = new ArrayList<>(joined.size());
+        for (String login : joined)
         {
-            if (hbox instanceof HBox)
+            String key = key(login);
+            if (!byLogin.containsKey(key))
             {
-                for (Node node : ((HBox) hbox).getChildren())
-                {
-                    if (node instanceof Label)
-                    {
-                        if (((Label) node).getText().equals(userToSearchFor))
-                        { return this.getChildren().indexOf(hbox); }
-                    }
-                }
+                User user = new User(key, login, NO_BADGES);
+                byLogin.put(key, user);
+                mentions.add(user.mention());
+                added.add(user);
             }
         }
 
-        return null;
-    }
+        // In bulk, so a roster's worth is one merge into the index rather than one
+        // array shift per name
+        completions.addAll(mentions);
+        mentions.clear();
 
-    public void addBadgesToUser(String userToSearchFor, ArrayList<Image> badges)
-    {
-        Integer indexOfUsersHBox;
+        ArrayList<User> removed = new ArrayList<>(parted.size());
+        for (String login : parted)
+        {
+            User user = byLogin.remove(key(login));
+            if (user != null)
+            {
+                mentions.add(user.mention());
+                removed.add(user);
+            }
+        }
+
+        completions.removeAll(mentions);
+
+        if (added.isEmpty() && removed.isEmpty())
+            return;
 
-        // find the users hbox and test if the user exists
-        if ((indexOfUsersHBox = indexOfUsersHBox(userToSearchFor)) != null)
+        beginChange();
+        try
         {
-            Label userName = null;
-            HBox alreadyLoadedHBox;
-            HBox newHBox = new HBox();
-            newHBox.setAlignment(Pos.CENTER_LEFT);
-            newHBox.setSpacing(WildChat.uiFont * 0.33);
+            if (added.size() + removed.size() <= INCREMENTAL_LIMIT)
+            {
+                for (User user : removed)
+                {
+                    int index = position(user);
+                    sorted.remove(index);
+                    nextRemove(index, user);
+                }
 
-            alreadyLoadedHBox = (HBox) this.getChildren().get(indexOfUsersHBox);
+                for (User user : added)
+                {
+                    int index = -(Collections.binarySearch(sorted, user, ORDER) + 1);
+                    sorted.add(index, user);
+                    nextAdd(index, index + 1);
+                }
+            } else
+                merge(added, removed);
+        } finally
+        {
+            endChange();
+        }
+    }
 
-            // Reuse the users name
-            for (Node node : alreadyLoadedHBox.getChildren())
-                if (node instanceof Label)
-                    userName = (Label) node;
+    // Rebuilds sorted without removed and with added, which are sorted first. Only
+    // the rows that really come and go are reported, so the ListView keeps its
+    // selection and scroll position. Each change is reported at its index in the
+    // list as it stands part way through: merged so far, followed by the old rows
+    // not looked at yet.
+    private void merge(ArrayList<User> added, ArrayList<User> removed)
+    {
+        added.sort(ORDER);
+        HashSet<User> gone = new HashSet<>(removed);
 
-            for (Image img : badges)
+        ArrayList<User> merged = new ArrayList<>(sorted.size() + added.size() - removed.size());
+        int next = 0;
+        for (User user : sorted)
+        {
+            if (gone.contains(user))
             {
-                ImageView badge = new ImageView(img);
-                badge.setCache(true);
-                newHBox.getChildren().add(badge);
+                nextRemove(merged.size(), user);
+                continue;
             }
 
-            if (userName == null)
-                throw new IllegalArgumentException("Failed to find username despite finding it earlier");
+            while (next < added.size() && ORDER.compare(added.get(next), user) < 0)
+                insert(merged, added.get(next++));
+
+            merged.add(user);
+        }
+
+        while (next < added.size())
+            insert(merged, added.get(next++));
+
+        sorted.clear();
+        sorted.addAll(merged);
+    }
+
+    private void insert(ArrayList<User> merged, User user)
+    {
+        merged.add(user);
+        nextAdd(merged.size() - 1, merged.size());
+    }
 
-            if (! userName.isCache())
-                userName.setCache(true);
+    // Adds user, or replaces whoever had its login. Replacing is a remove and an add
+    // so a new rank or name lands in the right place.
+    private void put(User user)
+    {
+        User old = byLogin.put(user.login, user);
+        if (old != null && !old.mention().equalsIgnoreCase(user.mention()))
+            completions.remove(old.mention());
 
-            newHBox.getChildren().add(userName);
+        completions.add(user.mention());
 
-            this.getChildren().remove(indexOfUsersHBox.intValue());
+        beginChange();
+        try
+        {
+            if (old != null)
+            {
+                int oldIndex = position(old);
+                sorted.remove(oldIndex);
+                nextRemove(oldIndex, old);
+            }
 
-            newHBox.setCache(true);
-            this.getChildren().add(indexOfUsersHBox, newHBox);
-        } else
-            addUser(userToSearchFor, badges);
+            int index = -(Collections.binarySearch(sorted, user, ORDER) + 1);
+            sorted.add(index, user);
+            nextAdd(index, index + 1);
+        } finally
+        {
+            endChange();
+        }
     }
 
-    public void removeUser(String userToSearchFor)
+    // Where user is in sorted. Users in sorted are always the ones in byLogin, so it's there.
+    private int position(User user)
     {
-        Integer index;
-        if ((index = indexOfUsersHBox(userToSearchFor)) != null)
-            this.getChildren().remove(index.intValue());
+        return Collections.binarySearch(sorted, user, ORDER);
     }
 
-    public void removeAllUsers()
+    private static String key(String login)
     {
-        this.getChildren().clear();
+        return login.toLowerCase(Locale.ROOT);
     }
 
-    public ArrayList<String> getUsers()
+    private static int rank(String[] badges)
     {
-        return users;
+        int rank = UNRANKED;
+        for (String badge : badges)
+            for (int set = 0; set < rank; set++)
+                if (badge.startsWith(RANKED_SETS[set]) && badge.length() > RANKED_SETS[set].length() &&
+                        badge.charAt(RANKED_SETS[set].length()) == '/')
+                    rank = set;
+
+        return rank;
     }
 }
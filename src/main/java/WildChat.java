@@ -14,11 +14,13 @@
 
 import UISettings.UISettings;
 import javafx.application.Application;
+import javafx.application.Platform;
 import javafx.beans.property.SimpleStringProperty;
 import javafx.beans.property.StringProperty;
 import javafx.beans.value.ChangeListener;
 import javafx.geometry.HPos;
 import javafx.geometry.Insets;
+import javafx.geometry.Orientation;
 import javafx.geometry.Pos;
 import javafx.geometry.VPos;
 import javafx.scene.Cursor;
@@ -30,9 +32,10 @@ import javafx.scene.image.ImageView;
 import javafx.scene.input.KeyCode;
 import javafx.scene.input.KeyCombination;
 import javafx.scene.input.KeyEvent;
+import javafx.scene.input.MouseEvent;
+import javafx.scene.input.ScrollEvent;
 import javafx.scene.layout.*;
 import javafx.scene.shape.Circle;
-import javafx.scene.text.Text;
 import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 import javafx.stage.StageStyle;
@@ -47,21 +50,29 @@ import static logUtils.Logger.setShouldLog;
 public class WildChat extends Application
 {
     static Client client = null;
-    static Session session = new Session();
-    static UserList userList = new UserList();
+    // One session per joined channel, all over the same connection
+    static SessionRegistry sessions = new SessionRegistry();
     static String textFill, backgroundColor, highlightColor,
             uiAccentColor, highlightTextColor, actionColor;
     static double messageFontSize, uiFont;
     static volatile boolean connected = false,
             connectionMessageReceived = false,
-            connectedToChannel = false,
-            credentialsAvailable = false,
-            hasUserState = false;
+            credentialsAvailable = false;
     private static String[] launchArgs;
     private static Stage primaryStage = null;
     private static ScrollPane messagePane = new ScrollPane(),
             userListPane = new ScrollPane();
-    private static VBox messageHolder = new VBox();
+    // Shows one MessageStore at a time, the active channel's
+    private static ListView<ChatMessage> messageView = new ListView<>();
+    // What we show while no channel is open
+    private static MessageStore statusMessages = new MessageStore();
+    // Whether new messages scroll the view down. Off while the user is reading back.
+    private static boolean followTail = true;
+    static int scrollback = MessageStore.DEFAULT_CAPACITY;
+    private static UserList emptyUserList = new UserList();
+    // Shows one UserList at a time, the active channel's
+    private static ListView<UserList.User> userView = new ListView<>();
+    private static ChoiceBox<String> channelSelector = new ChoiceBox<>();
     private final String filePrefix = ".WildChat/",
             credentials = "credentials.dat",
             uiSettingsFileName = "uisettings.dat",
@@ -74,7 +85,12 @@ public class WildChat extends Application
     private Scene root;
     private Thread baseConnectionThread = null;
     static UISettings uiSettings = new UISettings();
-    private TwitchConnect socketRunner = null;
+    static TwitchConnect socketRunner = null;
+    // Everything the networking side wants on screen goes through here, once per frame
+    static UiUpdateBatcher uiUpdates = null;
+    // Emote and badge images from earlier runs
+    static DiskImageCache imageCache = null;
+    static EmoteSetLoader emoteSetLoader = null;
     private SplitPane mainContentHolder = new SplitPane();
     private GridPane mainContent = new GridPane();
     private HBox menuBar = new HBox();
@@ -83,12 +99,21 @@ public class WildChat extends Application
             disconnectButton = new Button("Disconnect"),
             aboutButton = new Button("About");
     private TextField messageField = new TextField();
+    private TabCompleter tabCompleter = new TabCompleter();
     private ColumnConstraints column1Constraints = new ColumnConstraints(),
             column2Constraints = new ColumnConstraints();
     private RowConstraints row1Constraints = new RowConstraints(),
             row2Constraints = new RowConstraints(),
             row3Constraints = new RowConstraints();
     private String initialChannel = null;
+    private int receiveBufferSize = TwitchConnect.DEFAULT_RECEIVE_BUFFER_SIZE;
+    private RingBuffer.WaitStrategy waitStrategy = TwitchConnect.DEFAULT_WAIT_STRATEGY;
+    private int dispatchWorkers = MessageDispatcher.DEFAULT_WORKER_COUNT,
+            dispatchQueueSize = MessageDispatcher.DEFAULT_QUEUE_CAPACITY;
+    private MessageDispatcher.OverflowPolicy overflowPolicy = MessageDispatcher.DEFAULT_OVERFLOW_POLICY;
+    private int ioThreads = ConnectionEngine.DEFAULT_LOOP_COUNT;
+    private int uiBatchSize = UiUpdateBatcher.DEFAULT_MAX_PER_FRAME;
+    private long imageCacheBytes = DiskImageCache.DEFAULT_MAX_BYTES;
     static SimpleStringProperty title = new SimpleStringProperty();
 
     public WildChat()
@@ -126,6 +151,102 @@ public class WildChat extends Application
                 } else if (arg.contains("--channel="))
                 {
                     initialChannel = "#" + arg.substring(arg.indexOf('=') + 1);
+                } else if (arg.contains("--receive-buffer="))
+                {
+                    try
+                    {
+                        int size = Integer.parseInt(arg.substring(arg.indexOf('=') + 1));
+                        if (size >= 2)
+                            receiveBufferSize = size;
+                    } catch (NumberFormatException e)
+                    {
+                        log("Ignoring bad receive buffer size: " + arg);
+                    }
+                } else if (arg.contains("--wait-strategy="))
+                {
+                    try
+                    {
+                        waitStrategy = RingBuffer.WaitStrategy.fromString(arg.substring(arg.indexOf('=') + 1));
+                    } catch (IllegalArgumentException e)
+                    {
+                        log(e.getMessage());
+                    }
+                } else if (arg.contains("--dispatch-workers="))
+                {
+                    try
+                    {
+                        int workers = Integer.parseInt(arg.substring(arg.indexOf('=') + 1));
+                        if (workers >= 1)
+                            dispatchWorkers = workers;
+                    } catch (NumberFormatException e)
+                    {
+                        log("Ignoring bad dispatch worker count: " + arg);
+                    }
+                } else if (arg.contains("--dispatch-queue="))
+                {
+                    try
+                    {
+                        int size = Integer.parseInt(arg.substring(arg.indexOf('=') + 1));
+                        if (size >= 1)
+                            dispatchQueueSize = size;
+                    } catch (NumberFormatException e)
+                    {
+                        log("Ignoring bad dispatch queue size: " + arg);
+                    }
+                } else if (arg.contains("--io-threads="))
+                {
+                    try
+                    {
+                        int threads = Integer.parseInt(arg.substring(arg.indexOf('=') + 1));
+                        if (threads >= 1)
+                            ioThreads = threads;
+                    } catch (NumberFormatException e)
+                    {
+                        log("Ignoring bad io thread count: " + arg);
+                    }
+                } else if (arg.contains("--ui-batch="))
+                {
+                    try
+                    {
+                        int size = Integer.parseInt(arg.substring(arg.indexOf('=') + 1));
+                        if (size >= 1)
+                            uiBatchSize = size;
+                    } catch (NumberFormatException e)
+                    {
+                        log("Ignoring bad UI batch size: " + arg);
+                    }
+                } else if (arg.contains("--scrollback="))
+                {
+                    try
+                    {
+                        int lines = Integer.parseInt(arg.substring(arg.indexOf('=') + 1));
+                        if (lines >= 1)
+                            scrollback = lines;
+                    } catch (NumberFormatException e)
+                    {
+                        log("Ignoring bad scrollback size: " + arg);
+                    }
+                } else if (arg.contains("--image-cache-mb="))
+                {
+                    try
+                    {
+                        long megabytes = Long.parseLong(arg.substring(arg.indexOf('=') + 1));
+                        if (megabytes >= 1)
+                            imageCacheBytes = megabytes * 1024 * 1024;
+                    } catch (NumberFormatException e)
+                    {
+                        log("Ignoring bad image cache size: " + arg);
+                    }
+                } else if (arg.contains("--dispatch-overflow="))
+                {
+                    try
+                    {
+                        overflowPolicy = MessageDispatcher.OverflowPolicy.fromString(
+                                arg.substring(arg.indexOf('=') + 1));
+                    } catch (IllegalArgumentException e)
+                    {
+                        log(e.getMessage());
+                    }
                 }
             }
         }
@@ -201,17 +322,65 @@ public class WildChat extends Application
         actionColor = uiSettings.getActionColor();
     }
 
-    private void clearMessageArea()
+    private static void clearMessageArea()
     {
-        log("Populating the message holder");
-        messageHolder.getChildren().clear();
+        activeMessages().clear();
+    }
 
-        for (int count = 0; count <= 200; count++)
-        {
-            Text dummy = new Text(" ");
-            dummy.setCache(true);
-            messageHolder.getChildren().add(count, dummy);
-        }
+    private static MessageStore activeMessages()
+    {
+        Session active = sessions.getActive();
+        return (active == null) ? statusMessages : active.getMessages();
+    }
+
+    private static UserList activeUserList()
+    {
+        Session active = sessions.getActive();
+        return (active == null) ? emptyUserList : active.getUserList();
+    }
+
+    // Put the active channel's messages and users back on screen
+    static void showMessageArea()
+    {
+        userView.setItems(activeUserList());
+        userListPane.setContent(userView);
+        messageView.setItems(activeMessages());
+        messagePane.setContent(messageView);
+        scrollToBottom();
+    }
+
+    private static void scrollToBottom()
+    {
+        followTail = true;
+        if (!messageView.getItems().isEmpty())
+            messageView.scrollTo(messageView.getItems().size() - 1);
+    }
+
+    static void showSession(Session session)
+    {
+        sessions.setActive(session);
+        updateChannelSelector();
+        updateTitle();
+        showMessageArea();
+    }
+
+    static void updateChannelSelector()
+    {
+        Session active = sessions.getActive();
+
+        channelSelector.getItems().setAll(sessions.getChannels());
+        channelSelector.setValue((active == null) ? null : active.getChannel());
+        channelSelector.setVisible(active != null);
+    }
+
+    static void updateTitle()
+    {
+        Session active = sessions.getActive();
+
+        if (active != null && active.isJoined())
+            title.set("WildChat - " + VERSION + " - " + active.getChannel());
+        else
+            title.set("WildChat - " + VERSION);
     }
 
     static void styleCircle(Circle circleToStyle, String color)
@@ -309,25 +478,39 @@ public class WildChat extends Application
 
     static void displayMessage(String message)
     {
-        Label newMessage = new Label(uiSettings.getMessagePrefix() + message);
-        newMessage.setWrapText(true);
-        newMessage.setStyle("-fx-font-size: " + messageFontSize + ";" +
-                "-fx-text-fill: " + textFill + ";");
-        newMessage.prefWidthProperty().bind(messagePane.widthProperty());
+        displayMessage(sessions.getActive(), message);
+    }
+
+    static void displayMessage(Session session, String message)
+    {
+        displayMessage(session, ChatMessage.notice((session == null) ? null : session.getChannel(), message));
+    }
 
-        newMessage.setCache(true);
+    static void displayMessage(ChatMessage message)
+    {
+        displayMessage(sessions.getActive(), message);
+    }
 
-        messageHolder.getChildren().remove(0);
-        messageHolder.getChildren().add(200, newMessage);
+    // Nodes for the message are only built if and when its row is on screen
+    static void displayMessage(Session session, ChatMessage message)
+    {
+        MessageStore messages = (session == null) ? statusMessages : session.getMessages();
+        messages.append(message);
+        followNewMessages(messages);
     }
 
-    static void displayMessage(FlowPane holder)
+    // A frame's worth of messages for one session, as one change to its scrollback
+    static void displayMessages(Session session, ArrayList<ChatMessage> batch)
     {
-        holder.maxWidthProperty().bind(messagePane.widthProperty());
-        holder.setCache(true);
+        MessageStore messages = (session == null) ? statusMessages : session.getMessages();
+        messages.appendAll(batch);
+        followNewMessages(messages);
+    }
 
-        messageHolder.getChildren().remove(0);
-        messageHolder.getChildren().add(200, holder);
+    private static void followNewMessages(MessageStore messages)
+    {
+        if (followTail && messages == messageView.getItems() && !messages.isEmpty())
+            messageView.scrollTo(messages.size() - 1);
     }
     // END TODO
 
@@ -361,6 +544,23 @@ public class WildChat extends Application
         }
 
         log("Correct client data entered");
+        if (socketRunner != null)
+            socketRunner.close();
+
+        if (uiUpdates != null)
+            uiUpdates.stop();
+
+        log("Emote cache: " + Emotes.getCache() + ", " + Emotes.getLoader());
+        log("Badge cache: " + Badges.getCache() + ", " + Badges.getLoader());
+        if (imageCache != null)
+        {
+            log("Image cache: " + imageCache);
+            imageCache.close();
+        }
+
+        if (emoteSetLoader != null)
+            emoteSetLoader.close();
+
         connected = false;
         log("ShutDown");
         System.exit(0);
@@ -382,8 +582,25 @@ public class WildChat extends Application
             System.exit(1);
         }
 
+        uiUpdates = new UiUpdateBatcher(uiBatchSize,
+                Math.max(uiBatchSize, UiUpdateBatcher.DEFAULT_MAX_PENDING));
+        uiUpdates.start();
+
+        imageCache = new DiskImageCache(new File(dotDirLocation + filePrefix + "cache"), imageCacheBytes,
+                DiskImageCache.DEFAULT_REVALIDATE_AFTER, DiskImageCache.DEFAULT_FETCHERS);
+        Badges.prefetch(imageCache);
+        Badges.loadGlobal();
+        emoteSetLoader = new EmoteSetLoader();
+
         log("Setting up networking");
-        socketRunner = new TwitchConnect(client, initialChannel);
+        socketRunner = new TwitchConnect(client, initialChannel, receiveBufferSize, waitStrategy,
+                new MessageDispatcher(dispatchWorkers, dispatchQueueSize, overflowPolicy),
+                new ConnectionEngine(ioThreads, new BufferPool(IrcLineReader.DEFAULT_CAPACITY, 64)));
+        socketRunner.setElevatedChannels(channel ->
+        {
+            Session session = sessions.get(SessionRegistry.normalize(channel));
+            return session != null && session.isElevated();
+        });
 
         log("Setting scene");
         root = new Scene(mainContent, uiSettings.getWindowWidth(), uiSettings.getWindowHeight());
@@ -434,6 +651,28 @@ public class WildChat extends Application
 
         if (userListPaneScrollBar != null)
         { styleScrollBar((ScrollBar) userListPaneScrollBar); }
+
+        // The view's own scroll bar, the pane's is hidden while it is showing
+        for (Node node : messageView.lookupAll(".scroll-bar"))
+        {
+            if (node instanceof ScrollBar && ((ScrollBar) node).getOrientation() == Orientation.VERTICAL)
+            {
+                ScrollBar messageViewScrollBar = (ScrollBar) node;
+                styleScrollBar(messageViewScrollBar);
+
+                // Keep following new messages only while the user is sitting at the bottom. Checked
+                // after the view has handled the scroll.
+                Runnable checkTail = () -> followTail = !messageViewScrollBar.isVisible() ||
+                        messageViewScrollBar.getValue() >= messageViewScrollBar.getMax();
+                messageView.addEventFilter(ScrollEvent.SCROLL, e -> Platform.runLater(checkTail));
+                messageView.addEventFilter(MouseEvent.MOUSE_RELEASED, e -> Platform.runLater(checkTail));
+                messageView.addEventFilter(KeyEvent.KEY_RELEASED, e -> Platform.runLater(checkTail));
+            }
+        }
+
+        for (Node node : userView.lookupAll(".scroll-bar"))
+            if (node instanceof ScrollBar)
+                styleScrollBar((ScrollBar) node);
     }
 
     private void setVisibleProperties()
@@ -442,12 +681,16 @@ public class WildChat extends Application
         // Container stuff
         menuBar.setMaxHeight(22.0);
         messageField.setPromptText("Message");
-        VBox.setMargin(userList, new Insets(4, 0, 4, 4));
         userListPane.setMaxWidth(450.0);
         userListPane.setPrefWidth(175.0);
         userListPane.setMinWidth(100.0);
-        userList.setSpacing(3.0);
-        messageHolder.setSpacing(3.0);
+        userView.setCellFactory(view -> new UserCell());
+        userView.setItems(emptyUserList);
+        userView.setFocusTraversable(false);
+        messageView.setCellFactory(view -> new ChatMessageCell());
+        messageView.setItems(statusMessages);
+        messageView.setFocusTraversable(false);
+        channelSelector.setVisible(false);
         messagePane.setPrefWidth(450.0);
         messagePane.setMinWidth(100.0);
         messagePane.setMaxWidth(Double.MAX_VALUE);
@@ -456,7 +699,6 @@ public class WildChat extends Application
         userListPane.setHbarPolicy(ScrollPane.ScrollBarPolicy.NEVER);
         messagePane.setFitToWidth(true);
         messagePane.setPannable(false);
-        messagePane.vvalueProperty().bind(messageHolder.heightProperty());
         column1Constraints.setHgrow(Priority.ALWAYS);
         column1Constraints.setHalignment(HPos.LEFT);
         column1Constraints.setFillWidth(true);
@@ -479,18 +721,27 @@ public class WildChat extends Application
         styleButton(disconnectButton);
         styleButton(uiSettingsButton);
         styleButton(aboutButton);
+        channelSelector.setStyle("-fx-font-size: " + uiFont + ";" +
+                "-fx-background-color: " + uiAccentColor + ";");
         styleTextField(messageField);
         menuBar.setStyle("-fx-background-color: " + uiAccentColor + ";");
         messagePane.setStyle("-fx-background-color: " + backgroundColor + ";" +
                 "-fx-background: " + backgroundColor + ";" +
                 "-fx-background-insets: 0, 1;");
+        messageView.setStyle("-fx-background-color: " + backgroundColor + ";" +
+                "-fx-control-inner-background: " + backgroundColor + ";" +
+                "-fx-background-insets: 0;");
         userListPane.setStyle("-fx-background-color: " + backgroundColor + ";" +
                 "-fx-background: " + backgroundColor + ";" +
                 "-fx-background-insets: 0;");
+        userView.setStyle("-fx-background-color: " + backgroundColor + ";" +
+                "-fx-control-inner-background: " + backgroundColor + ";" +
+                "-fx-background-insets: 0;");
         mainContent.setStyle("-fx-background-color: " + backgroundColor + ";");
         mainContentHolder.setStyle("-fx-background-color: " + uiAccentColor + ";");
 
         root.getStylesheets().add("css/stylesheet.css");
+        ThemeStylesheet.apply(root.getStylesheets(), uiSettings);
 
         primaryStage.getIcons().addAll(
                 new Image(WildChat.class.getResourceAsStream("icons/wildchat_logo_1024.png")),
@@ -501,9 +752,6 @@ public class WildChat extends Application
                 new Image(WildChat.class.getResourceAsStream("icons/wildchat_logo_32.png")),
                 new Image(WildChat.class.getResourceAsStream("icons/wildchat_logo_16.png"))
         );
-
-        clearMessageArea();
-
     }
 
     private void setInteractions()
@@ -524,14 +772,32 @@ public class WildChat extends Application
         });
         disconnectButton.setOnAction(e -> disconnectFromChannel());
         uiSettingsButton.setOnAction(e -> showUISettingsWindow());
+        channelSelector.setOnAction(e ->
+        {
+            Session selected = sessions.get(channelSelector.getValue());
+            if (selected != null && selected != sessions.getActive())
+                showSession(selected);
+        });
 
-        messagePane.vvalueProperty().addListener((obs, oldVal, newVal) ->
+        // The message view scrolls itself. Everything else shown in the pane scrolls with the pane.
+        messagePane.contentProperty().addListener((obs, oldVal, newVal) ->
         {
-            if (newVal.doubleValue() != 1.0)
-                messagePane.vvalueProperty().unbind();
+            boolean isMessageView = newVal == messageView;
+            messagePane.setFitToHeight(isMessageView);
+            messagePane.setVbarPolicy(isMessageView
+                                      ? ScrollPane.ScrollBarPolicy.NEVER
+                                      : ScrollPane.ScrollBarPolicy.ALWAYS);
+        });
 
-            else
-                messagePane.vvalueProperty().bind(messageHolder.heightProperty());
+        // Same for the user list, which has forms shown in its place too
+        userListPane.contentProperty().addListener((obs, oldVal, newVal) ->
+        {
+            boolean isUserView = newVal == userView;
+            userListPane.setFitToHeight(isUserView);
+            userListPane.setFitToWidth(isUserView);
+            userListPane.setVbarPolicy(isUserView
+                                       ? ScrollPane.ScrollBarPolicy.NEVER
+                                       : ScrollPane.ScrollBarPolicy.AS_NEEDED);
         });
 
         aboutButton.setOnAction(e -> showAboutWindow());
@@ -545,48 +811,22 @@ public class WildChat extends Application
                     event.consume();
 
                     log("TAB pressed");
-                    String message = messageField.getText().trim();
-                    if (message.length() > 1)
-                    {
-                        log("Message: " + message);
-                        int lastWordIndex = message.lastIndexOf(" ") + 1;
-                        String word;
-
-                        if (lastWordIndex < 0)
-                            return;
-
-                        if (lastWordIndex == 0)
-                        {
-                            word = message;
-                        } else
-                        {
-                            word = message.substring(lastWordIndex);
-                        }
-
-                        log("Last word: " + word);
-
-                        if (!word.startsWith("@"))
-                            return;
+                    Session session = sessions.getActive();
+                    if (session == null)
+                        return;
 
-                        int wordLen = word.length() - 1;
-                        log("last word len: " + wordLen);
-                        for (String user : userList.getUsers())
-                        {
-                            String charsToMatch = user.substring(0, wordLen);
-                            charsToMatch = "@" + charsToMatch;
-                            log("User to match: " + charsToMatch);
-
-                            if (charsToMatch.equals(word))
-                            {
-                                log("MATCH!");
-                                message = message.substring(0, lastWordIndex);
-                                message += "@" + user;
-                                messageField.setText(message);
-                                messageField.positionCaret(message.length());
-                            }
-                        }
+                    String completed = tabCompleter.complete(messageField.getText(),
+                            session.getUserList().getCompletions(), session.getEmoteCompletions());
+                    if (completed != null)
+                    {
+                        messageField.setText(completed);
+                        messageField.positionCaret(completed.length());
                     }
                 }
+            } else
+            {
+                // Anything else ends a round of cycling through completions
+                tabCompleter.reset();
             }
         });
 
@@ -627,17 +867,19 @@ public class WildChat extends Application
                             }
                         }
 
-                        if (!connectedToChannel)
+                        Session session = sessions.getActive();
+                        if (session == null || !session.isJoined())
                         {
                             displayMessage("You are not connected to a channel yet!");
                             messageField.clear();
                             return;
                         }
 
-                        sendMessage("PRIVMSG " + Session.getChannel() + " :" + message);
-                    if (!hasUserState)
+                        sendMessage("PRIVMSG " + session.getChannel() + " :" + message);
+                    if (!session.hasUserState())
                         {
-                            displayMessage(client.getNick() + " : " + message);
+                            String name = sessions.getGlobalDisplayName();
+                            displayMessage(((name == null) ? client.getNick() : name) + " : " + message);
                         } else
                         {
                             boolean isWhisp = false;
@@ -654,129 +896,22 @@ public class WildChat extends Application
                                 String receivingUser = message.substring(userStartIndex, endUserStart);
                                 String whisperMessage = message.substring(endUserStart + 1);
 
-                                ArrayList<Node> messageNodes = new ArrayList<>();
-                                StringBuilder sb = new StringBuilder();
-                                char[] rawMessage = whisperMessage.toCharArray();
-
-                                int messageLength = whisperMessage.length();
-                                int index = 0;
-                                for (char c : rawMessage)
-                                {
-                                    index++;
-                                    if (c == 32 || index == messageLength)
-                                    {
-                                        if (index == messageLength)
-                                        {
-                                            sb.append(c);
-                                        }
-
-                                        String word = sb.toString();
-                                        if (session.getEmoteCodesAndIDs()
-                                                .containsKey(word))
-                                        {
-                                            log("Found emote");
-                                            String emoteID =
-                                                    session.getEmoteCodesAndIDs().get(word);
-                                            log(emoteID);
-                                            if (Emotes.hasEmote(emoteID))
-                                            {
-                                                messageNodes.add(new ImageView(
-                                                        Emotes.getEmote(emoteID)));
-                                            } else
-                                            {
-                                                Image emote = new Image(
-                                                        String.format(
-                                                                HandleData.EMOTE_DOWNLOAD_URL,
-                                                                emoteID),
-                                                        true
-                                                );
-                                                Emotes.cacheEmote(emote, emoteID);
-                                                messageNodes.add(new ImageView(emote));
-                                            }
-                                        } else
-                                        {
-                                            messageNodes.add(new Label(sb.toString()));
-                                        }
-                                        sb = new StringBuilder();
-                                        continue;
-                                    }
-                                    sb.append(c);
-                                }
-
-                                FlowPane result = DataProcessor.formatMessage(null,
-                                        "Whispering " + receivingUser, null, messageNodes,
-                                        true);
-
-                                displayMessage(result);
+                                displayMessage(new ChatMessage(ChatMessage.Kind.WHISPER, null, client.getNick(),
+                                        "Whispering " + receivingUser, null, null, null, whisperMessage,
+                                        ChatMessage.emotesTag(whisperMessage, session.getEmoteCodesAndIDs())));
                             } else
                             {
-
-                                ArrayList<Image> clientImageBadges = null;
-                                ArrayList<Node> messageNodes = new ArrayList<>();
-                                StringBuilder sb = new StringBuilder();
-                                char[] rawMessage = message.toCharArray();
-
-                                if (session.getBadgeSignatures().size() >= 1)
-                                {
-                                    clientImageBadges = new ArrayList<>();
-
-                                    for (String badge : session.getBadgeSignatures())
-                                    {
-                                        clientImageBadges.add(Badges.getBadge(badge));
-                                    }
-                                }
-
-                                userList.addUser(client.getNick(), clientImageBadges);
-
-                                int messageLength = message.length();
-                                int index = 0;
-                                for (char c : rawMessage)
-                                {
-                                    index++;
-                                    if (c == 32 || index == messageLength)
-                                    {
-                                        if (index == messageLength)
-                                        {
-                                            sb.append(c);
-                                        }
-
-                                        String word = sb.toString();
-                                        if (session.getEmoteCodesAndIDs()
-                                                .containsKey(word))
-                                        {
-                                            String emoteID =
-                                                    session.getEmoteCodesAndIDs().get(word);
-                                            log(emoteID);
-                                            if (Emotes.hasEmote(emoteID))
-                                            {
-                                                messageNodes.add(new ImageView(
-                                                        Emotes.getEmote(emoteID)));
-                                            } else
-                                            {
-                                                Image emote = new Image(
-                                                        String.format(
-                                                                HandleData.EMOTE_DOWNLOAD_URL,
-                                                                emoteID),
-                                                        true
-                                                );
-                                                Emotes.cacheEmote(emote, emoteID);
-                                                messageNodes.add(new ImageView(emote));
-                                            }
-                                        } else
-                                        {
-                                            messageNodes.add(new Label(sb.toString()));
-                                        }
-                                        sb = new StringBuilder();
-                                        continue;
-                                    }
-                                    sb.append(c);
-                                }
-
-                                FlowPane result = DataProcessor.formatMessage(
-                                        clientImageBadges, session.getClientDisplayName(),
-                                        session.getClientColor(), messageNodes, false);
-
-                                displayMessage(result);
+                                // Twitch doesn't echo our own messages, show them the way it would
+                                ChatMessage echo = new ChatMessage(ChatMessage.Kind.CHAT, session.getChannel(),
+                                        client.getNick(), session.getClientDisplayName(), session.getClientColor(),
+                                        session.getBadgeSignatures(), null, message,
+                                        ChatMessage.emotesTag(message, session.getEmoteCodesAndIDs()));
+
+                                session.getUserList().addUser(echo);
+                                for (int segment = 0; segment < echo.getSegmentCount(); segment++)
+                                    if (echo.isEmote(segment))
+                                        session.getEmoteCompletions().touch(echo.getSegmentText(segment));
+                                displayMessage(session, echo);
                             }
                         }
                     }
@@ -793,11 +928,12 @@ public class WildChat extends Application
     private void addNodesToParents()
     {
         log("Adding nodes to parents");
-        menuBar.getChildren().addAll(connectButton, disconnectButton, uiSettingsButton, aboutButton);
+        menuBar.getChildren().addAll(connectButton, disconnectButton, uiSettingsButton, aboutButton,
+                channelSelector);
         mainContent.getColumnConstraints().addAll(column1Constraints, column2Constraints);
         mainContent.getRowConstraints().addAll(row1Constraints, row2Constraints, row3Constraints);
-        messagePane.setContent(messageHolder);
-        userListPane.setContent(userList);
+        messagePane.setContent(messageView);
+        userListPane.setContent(userView);
         mainContentHolder.getItems().setAll(messagePane, userListPane);
         mainContent.add(menuBar, 0, 0, 2, 1);
         mainContent.add(mainContentHolder, 0, 1, 2, 1);
@@ -828,9 +964,7 @@ public class WildChat extends Application
 
         exitButton.setOnAction(e ->
         {
-            userListPane.setContent(userList);
-            messagePane.vvalueProperty().bind(messageHolder.heightProperty());
-            messagePane.setContent(messageHolder);
+            showMessageArea();
             messageField.setDisable(false);
         });
         githubPage.setOnMouseClicked(e ->
@@ -897,31 +1031,31 @@ public class WildChat extends Application
         styleButton(confirmButton);
         confirmButton.setOnAction(e ->
         {
-            String channel = streamerField.getText();
-
-            if (connectedToChannel)
-            { disconnectFromChannel(); }
+            if (streamerField.getText().trim().isEmpty())
+                return;
 
-            if (!channel.substring(0, 1).contains("#"))
-            { channel = "#" + channel; }
+            String channel = SessionRegistry.normalize(streamerField.getText());
+            Session session = sessions.get(channel);
 
-            channel = channel.toLowerCase();
+            // Already in there, just bring it up
+            if (session == null)
+            {
+                // Open the session first so it's there when twitch answers
+                session = sessions.open(channel);
+                displayMessage(session, "Joining channel " + channel + "...");
 
-            log("Connecting to " + channel);
-            sendMessage("JOIN " + channel);
+                log("Connecting to " + channel);
+                sendMessage("JOIN " + channel);
+            }
 
-            session.setChannel(channel);
-            displayMessage("Joining channel " + Session.getChannel() + "...");
+            showSession(session);
             cancelButton.fire();
         });
 
         styleButton(cancelButton);
         cancelButton.setOnAction(e ->
         {
-            userListPane.setContent(userList);
-            messagePane.setVvalue(1.0);
-            messagePane.vvalueProperty().bind(messageHolder.heightProperty());
-            messagePane.setContent(messageHolder);
+            showMessageArea();
             messageField.setDisable(false);
         });
 
@@ -1117,10 +1251,7 @@ public class WildChat extends Application
         styleButton(closeButton);
         closeButton.setOnAction(e ->
         {
-            messagePane.setVvalue(1.0); // scroll to the bottom
-            messagePane.vvalueProperty().bind(messageHolder.heightProperty());
-            messagePane.setContent(messageHolder);
-            userListPane.setContent(userList);
+            showMessageArea(); // scrolls to the bottom
             messageField.setDisable(false);
         });
 
@@ -1141,6 +1272,9 @@ public class WildChat extends Application
 
             log("recording ui setting data");
             writeUISettingsToFile(uiSettings, uiSettingsFile);
+
+            // Messages pick up the new theme right away, the rest on restart
+            ThemeStylesheet.apply(root.getStylesheets(), uiSettings);
         });
 
         styleButton(resetButton);
@@ -1424,18 +1558,20 @@ public class WildChat extends Application
         socketRunner.sendMessage(message.trim());
     }
 
+    // Leave the channel on screen. Any other joined channels stay joined.
     private void disconnectFromChannel()
     {
-        if (connectedToChannel)
+        Session session = sessions.getActive();
+        if (session != null)
         {
-            log("Disconnecting from " + Session.getChannel());
-            sendMessage("PART " + Session.getChannel());
-            displayMessage("Leaving channel " + Session.getChannel());
-            WildChat.title.setValue("WildChat - " + VERSION);
-            session = new Session();
-            userList.removeAllUsers();
-            hasUserState = false;
-            connectedToChannel = false;
+            String channel = session.getChannel();
+            log("Disconnecting from " + channel);
+            sendMessage("PART " + channel);
+            session.setJoined(false);
+            sessions.close(channel);
+            Badges.unloadChannel(channel);
+            showSession(sessions.getActive());
+            displayMessage("Left channel " + channel);
         } else
         {
             displayMessage("You are not connected to a channel!");
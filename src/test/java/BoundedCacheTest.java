@@ -0,0 +1,105 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class BoundedCacheTest
+{
+    // Loads by hand: each key's future is completed by the test
+    private static final class Loads
+    {
+        private final HashMap<String, CompletableFuture<String>> pending = new HashMap<>();
+        private final AtomicInteger started = new AtomicInteger();
+
+        private CompletableFuture<String> load(String key)
+        {
+            started.incrementAndGet();
+            CompletableFuture<String> load = new CompletableFuture<>();
+            pending.put(key, load);
+            return load;
+        }
+    }
+
+    @Test
+    public void loadsOnceWhileLoading()
+    {
+        Loads loads = new Loads();
+        BoundedCache<String> cache = new BoundedCache<>(loads::load, String::length, 100);
+
+        CompletableFuture<String> first = cache.get("kappa"), second = cache.get("kappa");
+        assertSame(first, second);
+        assertEquals(1, loads.started.get());
+        assertNull(cache.getIfPresent("kappa"));
+        assertEquals(0, cache.getWeight());
+
+        loads.pending.get("kappa").complete("image");
+        assertEquals("image", first.join());
+        assertEquals("image", cache.getIfPresent("kappa"));
+        assertEquals(5, cache.getWeight());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void forgetsFailedLoads()
+    {
+        Loads loads = new Loads();
+        BoundedCache<String> cache = new BoundedCache<>(loads::load, String::length, 100);
+
+        CompletableFuture<String> failed = cache.get("kappa");
+        loads.pending.get("kappa").completeExceptionally(new RuntimeException("404"));
+        assertNull(failed.join());
+        assertEquals(1, cache.getLoadFailureCount());
+        assertEquals(0, cache.size());
+
+        cache.get("kappa");
+        loads.pending.get("kappa").complete(null);
+        assertEquals(2, cache.getLoadFailureCount());
+
+        cache.get("kappa");
+        assertEquals(3, loads.started.get());
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsedButNotWhatsLoading()
+    {
+        Loads loads = new Loads();
+        BoundedCache<String> cache = new BoundedCache<>(loads::load, String::length, 35);
+
+        for (String key : new String[] { "a", "b", "c" })
+        {
+            cache.get(key);
+            loads.pending.get(key).complete("0123456789");
+        }
+
+        cache.get("loading");
+        assertEquals("0123456789", cache.getIfPresent("a"));
+
+        cache.get("d");
+        loads.pending.get("d").complete("0123456789");
+
+        assertEquals(1, cache.getEvictionCount());
+        assertNull(cache.getIfPresent("b"));
+        assertNotNull(cache.getIfPresent("a"));
+        assertNotNull(cache.getIfPresent("c"));
+        assertNotNull(cache.getIfPresent("d"));
+        assertFalse(cache.get("loading").isDone());
+        assertEquals(30, cache.getWeight());
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ChatMessageTest
+{
+    // An emoji, two chars in Java but one code point to twitch
+    private static final String GRIN = "\ud83d\ude00";
+
+    private static ChatMessage chat(String text, String emotes)
+    {
+        return new ChatMessage(ChatMessage.Kind.CHAT, "#channel", "someone", "Someone", "#FF0000",
+                null, "id", text, emotes);
+    }
+
+    // Each segment as its text, emotes as [id:text]
+    private static List<String> segments(ChatMessage message)
+    {
+        ArrayList<String> segments = new ArrayList<>();
+        for (int segment = 0; segment < message.getSegmentCount(); segment++)
+            segments.add(message.isEmote(segment)
+                         ? "[" + message.getEmoteID(segment) + ":" + message.getSegmentText(segment) + "]"
+                         : message.getSegmentText(segment));
+
+        return segments;
+    }
+
+    @Test
+    public void splicesEmotesInOrder()
+    {
+        ChatMessage message = chat("Kappa hello Keepo Kappa", "25:0-4,18-22/1902:12-16");
+
+        assertEquals(Arrays.asList("[25:Kappa]", " hello ", "[1902:Keepo]", " ", "[25:Kappa]"),
+                segments(message));
+        assertEquals(2, message.getEmoteCount());
+    }
+
+    @Test
+    public void countsSurrogatePairsAsOneCodePoint()
+    {
+        // Twitch puts Kappa at code points 2-6, which is chars 3-7
+        ChatMessage message = chat(GRIN + " Kappa " + GRIN + GRIN + " Keepo", "25:2-6/1902:11-15");
+
+        assertEquals(Arrays.asList(GRIN + " ", "[25:Kappa]", " " + GRIN + GRIN + " ", "[1902:Keepo]"),
+                segments(message));
+    }
+
+    @Test
+    public void emoteMadeOfSurrogatePairsKeepsThemWhole()
+    {
+        ChatMessage message = chat("a " + GRIN + GRIN + " b", "99:2-3");
+
+        assertEquals(Arrays.asList("a ", "[99:" + GRIN + GRIN + "]", " b"), segments(message));
+    }
+
+    @Test
+    public void skipsMalformedAndOverlappingRanges()
+    {
+        ChatMessage message = chat("Kappa Keepo", "25:0-4,x-2,3-1/1902:2-8,6-10/7");
+
+        assertEquals(Arrays.asList("[25:Kappa]", " ", "[1902:Keepo]"), segments(message));
+    }
+
+    @Test
+    public void countsPositionsInsideTheActionWrapper()
+    {
+        ChatMessage message = chat("\u0001ACTION waves Kappa\u0001", "25:6-10");
+
+        assertEquals(ChatMessage.Kind.ACTION, message.getKind());
+        assertEquals(Arrays.asList("waves ", "[25:Kappa]"), segments(message));
+    }
+
+    @Test
+    public void emotesTagMatchesWhatTwitchWouldSend()
+    {
+        String text = GRIN + " Kappa x Kappa";
+        String tag = ChatMessage.emotesTag(text, Collections.singletonMap("Kappa", "25"));
+
+        assertEquals("25:2-6/25:10-14", tag);
+        assertEquals(Arrays.asList(GRIN + " ", "[25:Kappa]", " x ", "[25:Kappa]"),
+                segments(chat(text, tag)));
+        assertNull(ChatMessage.emotesTag("no emotes here", Collections.singletonMap("Kappa", "25")));
+    }
+}
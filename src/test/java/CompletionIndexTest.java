@@ -0,0 +1,161 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class CompletionIndexTest
+{
+    @Test
+    public void ranksRecentlyUsedThenShortestThenAlphabetical()
+    {
+        CompletionIndex index = new CompletionIndex();
+        index.addAll(Arrays.asList("kappa", "Kappa123", "KappaPride", "keepo"));
+
+        assertEquals(Arrays.asList("kappa", "Kappa123", "KappaPride"), index.complete("KAP", 16));
+
+        index.touch("KappaPride");
+        assertEquals(Arrays.asList("KappaPride", "kappa"), index.complete("kap", 2));
+        assertEquals(Collections.singletonList("keepo"), index.complete("ke", 16));
+        assertTrue(index.complete("x", 16).isEmpty());
+    }
+
+    @Test
+    public void touchTakesTheNewSpelling()
+    {
+        CompletionIndex index = new CompletionIndex();
+        index.add("streamer");
+        index.touch("StreamER");
+
+        assertEquals(1, index.size());
+        assertEquals(Collections.singletonList("StreamER"), index.complete("str", 16));
+    }
+
+    @Test
+    public void bulkAddAndRemoveMatchOneAtATime()
+    {
+        Random random = new Random(23);
+        CompletionIndex bulk = new CompletionIndex(), single = new CompletionIndex();
+
+        for (int round = 0; round < 50; round++)
+        {
+            List<String> words = words(random, 200);
+            bulk.addAll(words);
+            for (String word : words)
+                single.add(word);
+
+            List<String> gone = words(random, 100);
+            bulk.removeAll(gone);
+            for (String word : gone)
+                single.remove(word);
+
+            String touched = words(random, 1).get(0);
+            bulk.touch(touched);
+            single.touch(touched);
+
+            assertEquals(single.size(), bulk.size());
+            for (String prefix : Arrays.asList("a", "b", "ab", "ca", "d"))
+                assertEquals(single.complete(prefix, 16), bulk.complete(prefix, 16));
+        }
+    }
+
+    // Checked against sorting every match by hand, with prefixes common enough that
+    // both ways of ranking a lookup get used
+    @Test
+    public void completeMatchesABruteForceRanking()
+    {
+        Random random = new Random(7);
+        CompletionIndex index = new CompletionIndex();
+        HashMap<String, String> words = new HashMap<>();
+        HashMap<String, Long> lastUsed = new HashMap<>();
+        long clock = 0;
+
+        for (int step = 0; step < 20000; step++)
+        {
+            String word = words(random, 1).get(0), key = word.toLowerCase(Locale.ROOT);
+            switch (random.nextInt(4))
+            {
+                case 0:
+                    index.add(word);
+                    words.putIfAbsent(key, word);
+                    lastUsed.putIfAbsent(key, 0L);
+                    break;
+                case 1:
+                    index.remove(word);
+                    words.remove(key);
+                    lastUsed.remove(key);
+                    break;
+                case 2:
+                    index.touch(word);
+                    words.put(key, word);
+                    lastUsed.put(key, ++clock);
+                    break;
+                default:
+                    String prefix = key.substring(0, 1 + random.nextInt(Math.min(2, key.length())));
+                    int limit = 1 + random.nextInt(16);
+                    assertEquals(expected(words, lastUsed, prefix, limit), index.complete(prefix, limit));
+            }
+        }
+    }
+
+    private static List<String> words(Random random, int count)
+    {
+        String letters = "abcdABCD";
+        ArrayList<String> words = new ArrayList<>(count);
+        for (int word = 0; word < count; word++)
+        {
+            StringBuilder builder = new StringBuilder();
+            for (int length = 1 + random.nextInt(5); length > 0; length--)
+                builder.append(letters.charAt(random.nextInt(letters.length())));
+
+            words.add(builder.toString());
+        }
+
+        return words;
+    }
+
+    private static List<String> expected(Map<String, String> words, Map<String, Long> lastUsed, String prefix,
+                                         int limit)
+    {
+        ArrayList<String> keys = new ArrayList<>();
+        for (String key : words.keySet())
+            if (key.startsWith(prefix))
+                keys.add(key);
+
+        keys.sort((a, b) ->
+        {
+            if (!lastUsed.get(a).equals(lastUsed.get(b)))
+                return Long.compare(lastUsed.get(b), lastUsed.get(a));
+            if (a.length() != b.length())
+                return Integer.compare(a.length(), b.length());
+
+            return a.compareTo(b);
+        });
+
+        ArrayList<String> expected = new ArrayList<>();
+        for (String key : keys.subList(0, Math.min(limit, keys.size())))
+            expected.add(words.get(key));
+
+        return expected;
+    }
+}
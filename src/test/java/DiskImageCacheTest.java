@@ -0,0 +1,185 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+// Runs DiskImageCache against a local HttpServer that counts what it's asked for.
+// Every path is its own image: its bytes are the path, padded out to /size when a
+// path ends in one, and its ETag is derived from the path.
+public class DiskImageCacheTest
+{
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private HttpServer server;
+    private String base;
+    private File dir;
+    private final AtomicInteger requests = new AtomicInteger(), notModified = new AtomicInteger();
+
+    @Before
+    public void startServer() throws IOException
+    {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange ->
+        {
+            requests.incrementAndGet();
+
+            String path = exchange.getRequestURI().getPath();
+            String etag = "\"" + Integer.toHexString(path.hashCode()) + "\"";
+            if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match")))
+            {
+                notModified.incrementAndGet();
+                exchange.sendResponseHeaders(304, -1);
+                exchange.close();
+                return;
+            }
+
+            byte[] body = path.getBytes(StandardCharsets.UTF_8);
+            int slash = path.lastIndexOf('/');
+            if (slash > 0)
+                body = Arrays.copyOf(body, Integer.parseInt(path.substring(slash + 1)));
+
+            exchange.getResponseHeaders().add("ETag", etag);
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        server.start();
+
+        base = "http://127.0.0.1:" + server.getAddress().getPort();
+        dir = folder.newFolder("cache");
+    }
+
+    @After
+    public void stopServer()
+    {
+        server.stop(0);
+    }
+
+    @Test
+    public void missDownloadsAndStores()
+    {
+        DiskImageCache cache = new DiskImageCache(dir, 10000, HOUR, 2);
+        try
+        {
+            assertNull(cache.lookup(base + "/a"));
+            assertEquals(0, requests.get());
+
+            assertEquals("/a", string(cache.fetch(base + "/a")));
+            assertEquals(1, requests.get());
+            assertEquals("/a", string(cache.lookup(base + "/a")));
+            assertEquals(1, cache.size());
+        } finally
+        {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void warmCacheNeverAsksTheServer()
+    {
+        DiskImageCache cold = new DiskImageCache(dir, 10000, HOUR, 2);
+        cold.fetch(base + "/a");
+        cold.fetch(base + "/b");
+        cold.close();
+        requests.set(0);
+
+        DiskImageCache warm = new DiskImageCache(dir, 10000, HOUR, 2);
+        try
+        {
+            assertEquals("/a", string(warm.lookup(base + "/a")));
+            assertEquals("/b", string(warm.fetch(base + "/b")));
+            assertEquals(2, warm.size());
+            assertEquals(0, requests.get());
+        } finally
+        {
+            warm.close();
+        }
+    }
+
+    @Test
+    public void staleEntryIsRevalidatedWithA304()
+    {
+        DiskImageCache fresh = new DiskImageCache(dir, 10000, HOUR, 2);
+        fresh.fetch(base + "/a");
+        fresh.close();
+
+        // Every entry is due for revalidation straight away
+        DiskImageCache stale = new DiskImageCache(dir, 10000, -1, 2);
+        try
+        {
+            assertNull(stale.lookup(base + "/a"));
+            assertEquals("/a", string(stale.fetch(base + "/a")));
+            assertEquals(2, requests.get());
+            assertEquals(1, notModified.get());
+        } finally
+        {
+            stale.close();
+        }
+    }
+
+    @Test
+    public void leastRecentlyUsedIsEvictedAtTheCap()
+    {
+        DiskImageCache cache = new DiskImageCache(dir, 10000, HOUR, 2);
+        try
+        {
+            cache.fetch(base + "/first/4000");
+            cache.fetch(base + "/second/4000");
+            // Using first makes second the least recently used
+            assertNotNull(cache.lookup(base + "/first/4000"));
+            cache.fetch(base + "/third/4000");
+
+            assertTrue(cache.getBytes() <= 10000);
+            assertEquals(2, cache.size());
+            assertNull(cache.lookup(base + "/second/4000"));
+            assertNotNull(cache.lookup(base + "/first/4000"));
+            assertNotNull(cache.lookup(base + "/third/4000"));
+            assertEquals(2, new File(dir, "objects").list().length);
+        } finally
+        {
+            cache.close();
+        }
+    }
+
+    private static String string(ByteBuffer bytes)
+    {
+        assertNotNull(bytes);
+
+        byte[] copy = new byte[bytes.remaining()];
+        bytes.duplicate().get(copy);
+        int end = 0;
+        while (end < copy.length && copy[end] != 0)
+            end++;
+
+        return new String(copy, 0, end, StandardCharsets.UTF_8);
+    }
+}
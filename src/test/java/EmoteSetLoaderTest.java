@@ -0,0 +1,244 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static logUtils.Logger.log;
+import static org.junit.Assert.*;
+
+public class EmoteSetLoaderTest
+{
+    private static final int MAX_CONCURRENT = 4;
+    private static final long TIMEOUT_MILLIS = 1500, SET_MILLIS = 100, SLOW_SET_MILLIS = 5000;
+    // About the size of the biggest sets, a couple of MiB of JSON
+    private static final int PAYLOAD_EMOTES = 50000;
+
+    private HttpServer server;
+    private ExecutorService serverThreads;
+    private EmoteSetLoader loader;
+    private final AtomicInteger inFlight = new AtomicInteger(), maxInFlight = new AtomicInteger();
+
+    // Answers ?emotesets=<id> with one emote, E<id>, after SET_MILLIS. The set called
+    // "bad" is a 500 and the one called "slow" takes longer than the loader will wait.
+    @Before
+    public void startServer() throws IOException
+    {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 64);
+        serverThreads = Executors.newCachedThreadPool();
+        server.setExecutor(serverThreads);
+        server.createContext("/", exchange ->
+        {
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            try
+            {
+                String set = exchange.getRequestURI().getQuery().split("=")[1];
+                Thread.sleep(set.equals("slow") ? SLOW_SET_MILLIS : SET_MILLIS);
+
+                byte[] body = ("{\"emoticon_sets\":{\"" + set + "\":[{\"code\":\"E" + set + "\",\"id\":" +
+                        (1000 + set.hashCode() % 1000) + "}]}}").getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
+                exchange.sendResponseHeaders(set.equals("bad") ? 500 : 200, body.length);
+                exchange.getResponseBody().write(body);
+            } catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            } finally
+            {
+                inFlight.decrementAndGet();
+                exchange.close();
+            }
+        });
+        server.start();
+
+        loader = new EmoteSetLoader("http://127.0.0.1:" + server.getAddress().getPort() + "/?emotesets=%s",
+                MAX_CONCURRENT, TIMEOUT_MILLIS);
+    }
+
+    @After
+    public void stopServer()
+    {
+        loader.close();
+        server.stop(0);
+        serverThreads.shutdownNow();
+    }
+
+    @Test
+    public void loadsAtMostMaxConcurrentSetsAtOnce() throws Exception
+    {
+        ConcurrentHashMap<String, String> emotes = new ConcurrentHashMap<>();
+
+        int loaded = loader.load(setIDs(12), emotes::putAll).get(10, TimeUnit.SECONDS);
+
+        assertEquals(12, loaded);
+        assertEquals(12, emotes.size());
+        assertTrue("max in flight " + maxInFlight.get(), maxInFlight.get() <= MAX_CONCURRENT);
+        assertTrue("max in flight " + maxInFlight.get(), maxInFlight.get() > 1);
+    }
+
+    @Test
+    public void handsOverEachSetAsItArrives() throws Exception
+    {
+        List<String> ids = setIDs(8);
+        ids.add("slow");
+        List<Long> arrivals = new CopyOnWriteArrayList<>();
+        long start = System.nanoTime();
+
+        loader.load(ids, set -> arrivals.add(System.nanoTime())).get(10, TimeUnit.SECONDS);
+        long finished = System.nanoTime();
+
+        assertEquals(8, arrivals.size());
+        // The fast sets don't wait for the slow one to give up
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(arrivals.get(0) - start) < TIMEOUT_MILLIS / 2);
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(finished - arrivals.get(arrivals.size() - 1)) >=
+                TIMEOUT_MILLIS / 3);
+    }
+
+    @Test
+    public void skipsFailedAndTimedOutSets() throws Exception
+    {
+        List<String> ids = setIDs(3);
+        ids.add("bad");
+        ids.add("slow");
+        ConcurrentHashMap<String, String> emotes = new ConcurrentHashMap<>();
+        long start = System.nanoTime();
+
+        int loaded = loader.load(ids, emotes::putAll).get(10, TimeUnit.SECONDS);
+
+        assertEquals(3, loaded);
+        assertTrue(emotes.containsKey("E0") && emotes.containsKey("E1") && emotes.containsKey("E2"));
+        assertFalse(emotes.containsKey("Ebad"));
+        assertFalse(emotes.containsKey("Eslow"));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < SLOW_SET_MILLIS);
+    }
+
+    @Test
+    public void parsesAGeneratedPayloadLikeATreeWould() throws IOException
+    {
+        byte[] body = payload(PAYLOAD_EMOTES);
+        HashMap<String, String> streamed = new HashMap<>();
+
+        assertEquals(PAYLOAD_EMOTES, EmoteSetLoader.parse(reader(body), streamed));
+        assertEquals(tree(body), streamed);
+        // The smileys come back as what people type
+        assertEquals("1", streamed.get(":)"));
+    }
+
+    // Not a benchmark harness, just enough rounds for the JIT to settle before
+    // comparing what each way allocates
+    @Test
+    public void streamingAllocatesLessThanATree() throws IOException
+    {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        Assume.assumeTrue(allocations.isThreadAllocatedMemorySupported());
+
+        byte[] body = payload(PAYLOAD_EMOTES);
+        long thread = Thread.currentThread().getId(), treeBytes = 0, streamedBytes = 0, treeNanos = 0,
+                streamedNanos = 0;
+
+        for (int round = 0; round < 10; round++)
+        {
+            long before = allocations.getThreadAllocatedBytes(thread), start = System.nanoTime();
+            tree(body);
+            long between = allocations.getThreadAllocatedBytes(thread), middle = System.nanoTime();
+            EmoteSetLoader.parse(reader(body), new HashMap<>());
+            long after = allocations.getThreadAllocatedBytes(thread), end = System.nanoTime();
+
+            treeBytes = between - before;
+            streamedBytes = after - between;
+            treeNanos = middle - start;
+            streamedNanos = end - middle;
+        }
+
+        log("Parsing " + PAYLOAD_EMOTES + " emotes (" + body.length / 1024 + " KiB): tree " +
+                TimeUnit.NANOSECONDS.toMillis(treeNanos) + "ms " + (treeBytes >> 20) + " MiB, streaming " +
+                TimeUnit.NANOSECONDS.toMillis(streamedNanos) + "ms " + (streamedBytes >> 20) + " MiB");
+        assertTrue(streamedBytes < treeBytes);
+    }
+
+    // A smiley as the API sends it, then emoteCode0, emoteCode1, ... in one big set:
+    // {"emoticon_sets": {"0": [{"code": "\\:-?\\)", "id": 1}], "19194": [{"code": "emoteCode0", ...
+    private static byte[] payload(int emotes)
+    {
+        StringBuilder json = new StringBuilder("{\"emoticon_sets\":{\"0\":[{\"code\":\"\\\\:-?\\\\)\",\"id\":1}],\"19194\":[");
+        for (int emote = 0; emote < emotes - 1; emote++)
+        {
+            if (emote > 0)
+                json.append(',');
+
+            json.append("{\"code\":\"emoteCode").append(emote).append("\",\"id\":").append(100000 + emote).append('}');
+        }
+
+        json.append("]}}");
+        return json.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static InputStreamReader reader(byte[] body)
+    {
+        return new InputStreamReader(new ByteArrayInputStream(body), StandardCharsets.UTF_8);
+    }
+
+    // What was done before parse(): the whole body as a String, then a tree
+    private static Map<String, String> tree(byte[] body)
+    {
+        HashMap<String, String> emotes = new HashMap<>();
+        JsonObject sets = new Gson().fromJson(new String(body, StandardCharsets.UTF_8), JsonObject.class)
+                .getAsJsonObject("emoticon_sets");
+        for (Map.Entry<String, JsonElement> set : sets.entrySet())
+        {
+            for (JsonElement element : set.getValue().getAsJsonArray())
+            {
+                JsonObject emote = element.getAsJsonObject();
+                String id = emote.get("id").getAsString();
+                emotes.put(EmoteSetLoader.fixCode(id, emote.get("code").getAsString()), id);
+            }
+        }
+
+        return emotes;
+    }
+
+    private static List<String> setIDs(int count)
+    {
+        ArrayList<String> ids = new ArrayList<>();
+        for (int id = 0; id < count; id++)
+            ids.add(Integer.toString(id));
+
+        return ids;
+    }
+}
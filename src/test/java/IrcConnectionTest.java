@@ -0,0 +1,153 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class IrcConnectionTest
+{
+    private ServerSocket server;
+    private ConnectionEngine engine;
+
+    // Takes lines while there's room and turns them down when there isn't
+    private static class BoundedHandler implements IrcConnection.Handler
+    {
+        private final ArrayBlockingQueue<String> lines = new ArrayBlockingQueue<>(8);
+        private final AtomicInteger refused = new AtomicInteger();
+        private final CountDownLatch closed = new CountDownLatch(1);
+        private final AtomicReference<IOException> cause = new AtomicReference<>();
+
+        @Override
+        public void onConnected(IrcConnection connection) {}
+
+        @Override
+        public boolean onLine(IrcConnection connection, IrcLine line)
+        {
+            if (lines.offer(line.toString()))
+                return true;
+
+            refused.incrementAndGet();
+            return false;
+        }
+
+        @Override
+        public void onIdle(IrcConnection connection) {}
+
+        @Override
+        public void onClosed(IrcConnection connection, IOException cause)
+        {
+            this.cause.set(cause);
+            closed.countDown();
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException
+    {
+        server = new ServerSocket(0);
+        engine = new ConnectionEngine();
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        engine.shutdown();
+        server.close();
+    }
+
+    private IrcConnection connection(IrcConnection.Handler handler)
+    {
+        return new IrcConnection(new InetSocketAddress("127.0.0.1", server.getLocalPort()),
+                new OutboundScheduler(), handler);
+    }
+
+    @Test
+    public void refusedLinesComeBackInOrderAfterResuming() throws Exception
+    {
+        int count = 5000;
+        Thread twitch = new Thread(() ->
+        {
+            try (Socket socket = server.accept())
+            {
+                OutputStream out = socket.getOutputStream();
+                for (int line = 0; line < count; line++)
+                    out.write(("line " + line + "\r\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                Thread.sleep(TimeUnit.SECONDS.toMillis(30));
+            } catch (IOException | InterruptedException e)
+            {
+                // Closed by the test
+            }
+        });
+        twitch.setDaemon(true);
+        twitch.start();
+
+        BoundedHandler handler = new BoundedHandler();
+        IrcConnection connection = connection(handler);
+        engine.register(connection);
+
+        long giveUp = System.nanoTime() + TimeUnit.SECONDS.toNanos(20);
+        int next = 0;
+        while (next < count && System.nanoTime() - giveUp < 0)
+        {
+            String line = handler.lines.poll(100, TimeUnit.MILLISECONDS);
+            if (line != null)
+                assertEquals("line " + next++, line);
+
+            if (handler.lines.isEmpty())
+                connection.resumeReading();
+        }
+
+        assertEquals(count, next);
+        assertTrue("the handler never ran out of room", handler.refused.get() > 0);
+    }
+
+    @Test
+    public void closeBeforeOpenNeverConnects() throws Exception
+    {
+        BoundedHandler handler = new BoundedHandler();
+        IrcConnection connection = connection(handler);
+        connection.close();
+        engine.register(connection);
+
+        assertTrue(handler.closed.await(10, TimeUnit.SECONDS));
+        assertNull(handler.cause.get());
+        assertTrue(connection.isClosed());
+        assertFalse(connection.isConnected());
+
+        server.setSoTimeout(500);
+        try (Socket unexpected = server.accept())
+        {
+            fail("connected after close()");
+        } catch (SocketTimeoutException e)
+        {
+            // Nobody came, as it should be
+        }
+    }
+}
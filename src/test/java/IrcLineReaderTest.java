@@ -0,0 +1,121 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class IrcLineReaderTest
+{
+    // Hands out the bytes given, at most chunk of them per read
+    private static final class ChunkedChannel implements ReadableByteChannel
+    {
+        private final byte[] bytes;
+        private final int chunk;
+        private int position = 0;
+
+        private ChunkedChannel(byte[] bytes, int chunk)
+        {
+            this.bytes = bytes;
+            this.chunk = chunk;
+        }
+
+        @Override
+        public int read(ByteBuffer dst)
+        {
+            if (position >= bytes.length)
+                return -1;
+
+            int count = Math.min(Math.min(chunk, dst.remaining()), bytes.length - position);
+            dst.put(bytes, position, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public boolean isOpen()
+        {
+            return true;
+        }
+
+        @Override
+        public void close() {}
+    }
+
+    private static List<String> readAll(String text, int chunk, int capacity) throws IOException
+    {
+        IrcLineReader reader = new IrcLineReader(
+                new ChunkedChannel(text.getBytes(StandardCharsets.UTF_8), chunk), capacity);
+        ArrayList<String> lines = new ArrayList<>();
+
+        IrcLine line;
+        while ((line = reader.readLine()) != null)
+            lines.add(line.toString());
+
+        return lines;
+    }
+
+    @Test
+    public void multiByteCharsSplitAcrossReads() throws IOException
+    {
+        // 2, 3 and 4 byte sequences, the last one a surrogate pair in Java
+        List<String> expected = Arrays.asList(
+                "PRIVMSG #channel :caf\u00e9",
+                "PRIVMSG #channel :\u20ac\u20ac\u20ac",
+                "PRIVMSG #channel :Kappa \ud83d\ude00 Kappa",
+                "PING :tmi.twitch.tv");
+        String text = String.join("\r\n", expected) + "\r\n";
+
+        // Every split point inside every sequence gets hit by one chunk size or another
+        for (int chunk = 1; chunk <= 7; chunk++)
+            assertEquals("chunk " + chunk, expected, readAll(text, chunk, 64));
+    }
+
+    @Test
+    public void skipsBlankLinesAndBareLineFeeds() throws IOException
+    {
+        assertEquals(Arrays.asList("one", "two", "three"), readAll("one\r\n\r\ntwo\nthree\r\n", 3, 64));
+    }
+
+    @Test
+    public void growsForALineLongerThanTheBuffer() throws IOException
+    {
+        char[] filler = new char[5000];
+        Arrays.fill(filler, '\u00e9');
+        String longLine = "PRIVMSG #channel :" + new String(filler);
+
+        assertEquals(Arrays.asList(longLine, "PING"), readAll(longLine + "\r\nPING\r\n", 1000, 64));
+    }
+
+    @Test
+    public void unreadHandsTheSameLineOutAgain() throws IOException
+    {
+        IrcLineReader reader = new IrcLineReader(
+                new ChunkedChannel("first\r\nsecond\r\n".getBytes(StandardCharsets.UTF_8), 64), 64);
+        reader.fill();
+
+        assertEquals("first", reader.nextLine().toString());
+        reader.unread();
+        assertEquals("first", reader.nextLine().toString());
+        assertEquals("second", reader.nextLine().toString());
+        assertNull(reader.nextLine());
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class IrcMessageTest
+{
+    private static final String PRIVMSG = "@badges=moderator/1,subscriber/12;color=#FF0000;" +
+            "display-name=Some\\sOne;emotes=;mod=1 :someone!someone@someone.tmi.twitch.tv " +
+            "PRIVMSG #channel :hello there :)";
+
+    @Test
+    public void splitsTagsPrefixCommandParamsAndTrailing()
+    {
+        IrcMessage message = new IrcMessage(PRIVMSG);
+
+        assertEquals("PRIVMSG", message.getCommand());
+        assertEquals("someone", message.getNick());
+        assertEquals(1, message.getParamCount());
+        assertEquals("#channel", message.getParam(0));
+        assertEquals("hello there :)", message.getTrailing());
+        assertEquals("moderator/1,subscriber/12", message.getTag("badges"));
+        assertTrue(message.tagEquals("mod", "1"));
+        assertTrue(message.isTagEmpty("emotes"));
+        assertTrue(message.isTagEmpty("missing"));
+        assertNull(message.getTag("missing"));
+    }
+
+    @Test
+    public void unescapesTagValues()
+    {
+        IrcMessage message = new IrcMessage("@msg=semi\\:colon\\sspace\\\\slash\\r\\n;" +
+                "unknown=\\x;trailing=end\\;empty= :tmi.twitch.tv USERNOTICE #channel");
+
+        assertEquals("semi;colon space\\slash\r\n", message.getTag("msg"));
+        assertEquals("x", message.getTag("unknown"));
+        assertEquals("end", message.getTag("trailing"));
+        assertEquals("", message.getTag("empty"));
+        assertTrue(message.tagEquals("msg", "semi;colon space\\slash\r\n"));
+        assertEquals("Some One", new IrcMessage(PRIVMSG).getTag("display-name"));
+    }
+
+    @Test
+    public void reusedForTheNextLine()
+    {
+        IrcMessage message = new IrcMessage(PRIVMSG);
+        message.parse("PING :tmi.twitch.tv");
+
+        assertEquals("PING", message.getCommand());
+        assertFalse(message.hasPrefix());
+        assertNull(message.getNick());
+        assertEquals(0, message.getParamCount());
+        assertEquals("tmi.twitch.tv", message.getTrailing());
+        assertNull(message.getTag("badges"));
+    }
+
+    @Test
+    public void elevatedByModTagOrBadge()
+    {
+        String userState = " :tmi.twitch.tv USERSTATE #channel";
+
+        assertTrue(new HandleData("@badges=;mod=1" + userState).hasElevatedRateLimit());
+        assertTrue(new HandleData("@badges=subscriber/12,vip/1;mod=0" + userState).hasElevatedRateLimit());
+        assertTrue(new HandleData("@badges=broadcaster/1;mod=0" + userState).hasElevatedRateLimit());
+        assertFalse(new HandleData("@badges=subscriber/12,vipper/1;mod=0" + userState).hasElevatedRateLimit());
+        assertFalse(new HandleData("@badges=moderator;mod=0" + userState).hasElevatedRateLimit());
+        assertFalse(new HandleData("@badges=moderator/1;mod=1" + PRIVMSG.substring(PRIVMSG.indexOf(' ')))
+                .hasElevatedRateLimit());
+    }
+}
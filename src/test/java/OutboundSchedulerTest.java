@@ -0,0 +1,83 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class OutboundSchedulerTest
+{
+    private static int countTo(String channel, ArrayList<OutboundScheduler.PendingLine> batch)
+    {
+        int count = 0;
+        for (OutboundScheduler.PendingLine pending : batch)
+            if (channel.equals(pending.getChannel()))
+                count++;
+
+        return count;
+    }
+
+    @Test
+    public void allChatSharesOneBudget()
+    {
+        OutboundScheduler scheduler = new OutboundScheduler();
+        scheduler.setElevatedChannels(channel -> channel.equals("#mod"));
+        for (int line = 0; line < 60; line++)
+        {
+            if (line < 30)
+                scheduler.send("PRIVMSG #viewer :hello " + line);
+            scheduler.send("PRIVMSG #mod :hello " + line);
+        }
+
+        long now = System.nanoTime();
+        ArrayList<OutboundScheduler.PendingLine> batch = new ArrayList<>();
+        scheduler.drainReady(batch, 1000, now);
+
+        // Half of each limit goes up front, see TokenBucket.forWindow
+        assertEquals(OutboundScheduler.USER_CHAT_LIMIT / 2, countTo("#viewer", batch));
+        assertEquals(OutboundScheduler.MODERATOR_CHAT_LIMIT / 2, batch.size());
+        assertTrue(scheduler.nanosUntilReady(now) > 0);
+    }
+
+    @Test
+    public void aFullChannelDoesNotHoldUpAnElevatedOne()
+    {
+        OutboundScheduler scheduler = new OutboundScheduler();
+        scheduler.setElevatedChannels(channel -> channel.equals("#mod"));
+        for (int line = 0; line < 15; line++)
+            scheduler.send("PRIVMSG #viewer :hello " + line);
+        scheduler.send("PRIVMSG #mod :after");
+
+        ArrayList<OutboundScheduler.PendingLine> batch = new ArrayList<>();
+        scheduler.drainReady(batch, 1000, System.nanoTime());
+
+        assertEquals(1, countTo("#mod", batch));
+        assertEquals(OutboundScheduler.USER_CHAT_LIMIT / 2, countTo("#viewer", batch));
+    }
+
+    @Test
+    public void bucketRefillsAcrossNanoTimeWrapping()
+    {
+        long beforeWrap = Long.MAX_VALUE - TimeUnit.MILLISECONDS.toNanos(1);
+        TokenBucket bucket = new TokenBucket(1, 1, beforeWrap);
+        assertTrue(bucket.tryAcquire(beforeWrap));
+        assertFalse(bucket.tryAcquire(beforeWrap));
+
+        long afterWrap = beforeWrap + TimeUnit.SECONDS.toNanos(2);
+        assertTrue(afterWrap < beforeWrap);
+        assertTrue(bucket.tryAcquire(afterWrap));
+    }
+}
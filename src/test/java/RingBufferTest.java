@@ -0,0 +1,111 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class RingBufferTest
+{
+    @Test
+    public void roundsCapacityUpToAPowerOfTwo()
+    {
+        assertEquals(8, new RingBuffer<String>(5, RingBuffer.WaitStrategy.PARK).capacity());
+        assertEquals(8, new RingBuffer<String>(8, RingBuffer.WaitStrategy.PARK).capacity());
+    }
+
+    @Test
+    public void keepsOrderAcrossTheWrap()
+    {
+        RingBuffer<Integer> buffer = new RingBuffer<>(4, RingBuffer.WaitStrategy.PARK);
+        ArrayList<Integer> drained = new ArrayList<>();
+
+        int next = 0;
+        for (int round = 0; round < 10; round++)
+        {
+            while (buffer.offer(next))
+                next++;
+
+            assertEquals(0, buffer.remainingCapacity());
+            assertEquals(3, buffer.drain(drained::add, 3));
+            assertEquals(3, buffer.remainingCapacity());
+        }
+
+        buffer.drain(drained::add, Integer.MAX_VALUE);
+        assertEquals(0, buffer.size());
+        assertEquals(next, drained.size());
+        for (int element = 0; element < next; element++)
+            assertEquals(element, (int) drained.get(element));
+    }
+
+    @Test
+    public void parkedConsumerWakesForEveryOffer() throws Exception
+    {
+        RingBuffer<Integer> buffer = new RingBuffer<>(2, RingBuffer.WaitStrategy.PARK);
+        ArrayList<Integer> drained = new ArrayList<>();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        int count = 20000;
+
+        Thread consumer = new Thread(() ->
+        {
+            try
+            {
+                while (drained.size() < count)
+                    buffer.drainBlocking(drained::add, 1);
+            } catch (Throwable t)
+            {
+                failure.set(t);
+            }
+        });
+        consumer.start();
+
+        for (int element = 0; element < count; element++)
+            while (!buffer.offer(element))
+                Thread.yield();
+
+        consumer.join(TimeUnit.SECONDS.toMillis(30));
+        assertFalse("consumer slept through an offer", consumer.isAlive());
+        assertNull(failure.get());
+        assertEquals(count, drained.size());
+        assertEquals(Arrays.asList(0, 1, 2), drained.subList(0, 3));
+    }
+
+    @Test
+    public void interruptWakesAParkedConsumer() throws Exception
+    {
+        RingBuffer<String> buffer = new RingBuffer<>(2, RingBuffer.WaitStrategy.PARK);
+        AtomicReference<Throwable> thrown = new AtomicReference<>();
+
+        Thread consumer = new Thread(() ->
+        {
+            try
+            {
+                buffer.drainBlocking(line -> {}, 1);
+            } catch (Throwable t)
+            {
+                thrown.set(t);
+            }
+        });
+        consumer.start();
+        consumer.interrupt();
+        consumer.join(TimeUnit.SECONDS.toMillis(10));
+
+        assertFalse(consumer.isAlive());
+        assertTrue(thrown.get() instanceof InterruptedException);
+    }
+}
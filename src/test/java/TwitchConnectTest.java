@@ -0,0 +1,42 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TwitchConnectTest
+{
+    @Test
+    public void pongEchoesThePingsParameter()
+    {
+        assertEquals("PONG :tmi.twitch.tv", TwitchConnect.pong(new IrcMessage("PING :tmi.twitch.tv")));
+        assertEquals("PONG tmi.twitch.tv", TwitchConnect.pong(new IrcMessage("PING tmi.twitch.tv")));
+        assertEquals("PONG :", TwitchConnect.pong(new IrcMessage("PING :")));
+    }
+
+    @Test
+    public void bareOrPrefixedPingStillGetsAPong()
+    {
+        assertEquals("PONG", TwitchConnect.pong(new IrcMessage("PING")));
+        assertEquals("PONG :tmi.twitch.tv", TwitchConnect.pong(new IrcMessage(":tmi.twitch.tv PING :tmi.twitch.tv")));
+    }
+
+    @Test
+    public void onlyThePingCommandIsAPing()
+    {
+        assertEquals(IrcCommand.PING, IrcCommand.of(new IrcMessage("PING")));
+        assertEquals(IrcCommand.UNKNOWN, IrcCommand.of(new IrcMessage("PINGS :not a ping")));
+        assertEquals(IrcCommand.PONG, IrcCommand.of(new IrcMessage(":tmi.twitch.tv PONG tmi.twitch.tv :PING")));
+    }
+}
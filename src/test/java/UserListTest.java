@@ -0,0 +1,133 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import javafx.collections.ListChangeListener;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class UserListTest
+{
+    // Replays every change the list reports onto a plain copy, the way a ListView
+    // follows it
+    private static ArrayList<UserList.User> mirror(UserList users)
+    {
+        ArrayList<UserList.User> mirror = new ArrayList<>(users);
+        users.addListener((ListChangeListener<UserList.User>) change ->
+        {
+            while (change.next())
+            {
+                if (change.wasRemoved())
+                    mirror.subList(change.getFrom(), change.getFrom() + change.getRemovedSize()).clear();
+                if (change.wasAdded())
+                    mirror.addAll(change.getFrom(), change.getAddedSubList());
+            }
+        });
+
+        return mirror;
+    }
+
+    private static List<String> names(List<UserList.User> users)
+    {
+        ArrayList<String> names = new ArrayList<>(users.size());
+        for (UserList.User user : users)
+            names.add(user.getName());
+
+        return names;
+    }
+
+    @Test
+    public void ranksBadgesFirstThenByName()
+    {
+        UserList users = new UserList("#channel");
+        users.applyRoster(Arrays.asList("zed", "amy", "bob"), Collections.emptyList());
+        users.addUser("zed", "Zed", Collections.singletonList("moderator/1"));
+        users.addUser("bob", "bob", Collections.singletonList("broadcaster/1"));
+
+        assertEquals(Arrays.asList("bob", "Zed", "amy"), names(users));
+    }
+
+    @Test
+    public void fewChangesAreReportedOneByOne()
+    {
+        UserList users = new UserList("#channel");
+        users.applyRoster(Arrays.asList("carol", "alice", "erin"), Collections.emptyList());
+        ArrayList<UserList.User> mirror = mirror(users);
+
+        users.applyRoster(Arrays.asList("bob", "dave"), Collections.singletonList("carol"));
+
+        assertEquals(Arrays.asList("alice", "bob", "dave", "erin"), names(users));
+        assertEquals(names(users), names(mirror));
+    }
+
+    @Test
+    public void mergeReportsExactlyTheRowsThatChange()
+    {
+        Random random = new Random(42);
+        UserList users = new UserList("#channel");
+        ArrayList<String> here = new ArrayList<>();
+        ArrayList<String> joined = new ArrayList<>();
+        for (int user = 0; user < 2000; user++)
+            joined.add("viewer" + random.nextInt(100000));
+        users.applyRoster(joined, Collections.emptyList());
+        for (String login : joined)
+            if (!here.contains(login))
+                here.add(login);
+
+        ArrayList<UserList.User> mirror = mirror(users);
+
+        for (int round = 0; round < 10; round++)
+        {
+            joined = new ArrayList<>();
+            ArrayList<String> parted = new ArrayList<>();
+            for (int user = 0; user < 300; user++)
+                joined.add("viewer" + random.nextInt(100000));
+            for (int user = 0; user < 300; user++)
+                parted.add(here.get(random.nextInt(here.size())));
+
+            users.applyRoster(joined, parted);
+            for (String login : joined)
+                if (!here.contains(login))
+                    here.add(login);
+            here.removeAll(parted);
+
+            assertEquals(here.size(), users.size());
+            assertEquals(names(users), names(mirror));
+        }
+
+        Collections.sort(here);
+        assertEquals(here, names(users));
+    }
+
+    @Test
+    public void completionsFollowTheRoster()
+    {
+        UserList users = new UserList("#channel");
+        ArrayList<String> joined = new ArrayList<>();
+        for (int user = 0; user < 100; user++)
+            joined.add("fan" + user);
+        users.applyRoster(joined, Collections.emptyList());
+        users.applyRoster(Collections.singletonList("fanatic"), joined.subList(0, 50));
+
+        assertEquals(51, users.getCompletions().size());
+        assertEquals(Arrays.asList("fan50", "fan51"), users.getCompletions().complete("fan5", 2));
+        assertTrue(users.getCompletions().complete("fan1", 16).isEmpty());
+        assertEquals(Collections.singletonList("fanatic"), users.getCompletions().complete("fana", 16));
+    }
+}